@@ -0,0 +1,20 @@
+package controller;
+
+import model.CalendarChange;
+
+/**
+ * Listens for changes to the events of any of the calendars of a {@link CalendarController}
+ *
+ * @author Kitty Elliott
+ */
+@FunctionalInterface
+public interface CalendarChangeListener {
+	/**
+	 * Called on the thread which made the change, once for each change, or batch of
+	 * changes, made to a calendar
+	 *
+	 * @param calName the name of the calendar which changed
+	 * @param change  everything that changed in it
+	 */
+	void calendarChanged(String calName, CalendarChange change);
+}
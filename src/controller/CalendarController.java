@@ -1,79 +1,169 @@
 package controller;
 
+import javafx.util.Pair;
+import model.CalendarChange;
 import model.CalendarEvent;
+import model.CalendarListener;
 import model.CalendarModel;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author mollyopheim
  * @author Kitty Elliott
  */
 public class CalendarController {
-	private final HashMap<String, CalendarModel> map;
+	/**
+	 * The log is folded into a new snapshot by {@link #checkpoint()} once it is
+	 * larger than both this many bytes and the last snapshot
+	 */
+	private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+	// calendars are decoded from the snapshot the first time they are used
+	private final CalendarStore map;
 	/**
 	 * Represents the file on disk where the calendar(s) are saved and/or loaded
 	 */
 	public final File calFile;
+	private final SnapshotStorage storage;
+	private final OperationLog log;
+	// the generation of the snapshot in calFile
+	private volatile long generation;
+	// what was lost recovering from damaged files when the calendars were loaded, if anything
+	private String loadWarning;
+	// whether calFile was in the legacy format when it was loaded
+	private boolean legacy;
+	// writes snapshots and forces the log to disk, one task at a time
+	private final ExecutorService saver = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "calendar-saver");
+		t.setDaemon(true);
+		return t;
+	});
+	private CompletableFuture<Void> saving = CompletableFuture.completedFuture(null);
+	// a snapshot saved in the background, and the copy of the calendars it was saved from,
+	// which the calendars have not been moved to yet
+	private final AtomicReference<Pair<CalendarStore.Frozen, List<CalendarStore.Block>>> savedSnapshot =
+			new AtomicReference<>();
+	// the calendars changed since the outermost open batch began
+	private int batchDepth;
+	private final Set<CalendarModel> batched = Collections.newSetFromMap(new IdentityHashMap<>());
+	// the calendars which have been changed through this controller, by their current names,
+	// whose changes are passed on to the listeners
+	private final Map<CalendarModel, String> watched = new IdentityHashMap<>();
+	private final List<CalendarChangeListener> listeners = new CopyOnWriteArrayList<>();
+	// the events of the runs of days the views have asked for, by calendar
+	private final QueryCache queryCache = new QueryCache();
+	private final CalendarListener forwarder = (model, change) -> {
+		String name = watched.get(model);
+		if (name == null) return;
+		for (CalendarChangeListener listener : listeners) {
+			listener.calendarChanged(name, change);
+		}
+	};
 
 
 	/**
 	 * Initializes the CalendarController to have one default CalendarModel
 	 * in the map that keeps track of the CalendarModel objects.
 	 * Loads previous CalendarModel's and their respective events
-	 * from the calendarFile if applicable.
+	 * from the calendarFile if applicable, along with any changes
+	 * recorded in its operation log since it was last saved.
+	 * <p>
+	 * If calFile is a directory, each calendar is kept in a file of its own
+	 * inside it, so that saving only rewrites the calendars which changed.
+	 * Otherwise all the calendars are kept in calFile.
 	 */
 	public CalendarController(File calFile) throws IOException {
 		if (calFile == null) {
 			throw new IllegalArgumentException("given File must not be null");
 		}
 		this.calFile = calFile;
-		if (calFile.exists()) {
+		this.storage = calFile.isDirectory() ? new ShardedStorage(calFile) : new SingleFileStorage(calFile);
+		this.log = new OperationLog(new File(calFile.getPath() + ".log"));
+		if (storage.exists()) {
 			map = loadCalendars();
+			log.replay(generation, map);
+			List<File> orphans = log.orphans();
+			if (!orphans.isEmpty()) {
+				// the log is kept rather than replaced, so that the changes can be recovered by hand
+				loadWarning = (loadWarning == null ? "" : loadWarning + " ") + String.format(
+						"Changes made after it was saved could not be applied, and were lost; "
+								+ "their log was kept in %s.", orphans.stream()
+								.map(f -> "\"" + f.getAbsolutePath() + "\"").collect(Collectors.joining(", ")));
+			}
+			if (legacy) {
+				// migrate now rather than when the log is next compacted, which for calendars that
+				// are rarely changed may be never, so that the next start need not deserialize it
+				saveCalendarsAsync().whenComplete((v, e) -> {
+					if (e != null) e.printStackTrace();
+				});
+			}
 		} else {
-			map = new HashMap<>();
+			map = new CalendarStore();
 			map.put("Default", new CalendarModel());
+			// a log or backups without a snapshot are left over from a calendar file that was deleted
+			log.discard();
+			storage.clear();
+			saveCalendars();
 		}
-		saveCalendars();
 	}
 
 	/**
 	 * Load the calendar state from the file specified by {@link #calFile}.
+	 * Only the names of the calendars are parsed here; the file is read into memory
+	 * and each calendar is decoded the first time it is used.
+	 * If the file is torn or corrupt, the newest backup which is
+	 * valid is loaded instead, and put back in its place.
+	 * Also sets {@link #generation} to the generation of the loaded snapshot, and
+	 * {@link #loadWarning} if a backup was loaded.
+	 * Files in the legacy Java serialization format are read too, and
+	 * {@link #legacy} is set so that they are migrated.
 	 *
 	 * @return the mapping of calendar names to CalendarModel objects which
 	 * was loaded from the file
 	 * @throws IOException if there was an error reading the file, or if the
-	 *                     file data is somehow corrupt
+	 *                     file data is somehow corrupt, and no backup could be read either
 	 */
-	@SuppressWarnings({"unchecked", "rawtypes"})
-	private HashMap<String, CalendarModel> loadCalendars() throws IOException {
-		HashMap loaded;
-		try {
-			FileInputStream fIn = new FileInputStream(calFile);
-			ObjectInputStream objIn = new ObjectInputStream(fIn);
-			loaded = (HashMap) objIn.readObject();
-		} catch (IOException | ClassNotFoundException e) {
-			throw new IOException(String.format("Error loading the calendar file at \"%s\"\n",
-					calFile.getAbsolutePath()));
-		}
-		Set<Map.Entry> loadedEntries = loaded.entrySet();
-		if (!loadedEntries.isEmpty()) {
-			for (Map.Entry e : loadedEntries) {
-				if (!(e.getKey() instanceof String && e.getValue() instanceof CalendarModel)) {
-					throw new IOException(String.format("Calendar file at \"%s\" is corrupted.",
-							calFile.getAbsolutePath()));
-				}
-			}
-		} else {
-			loaded.put("Default", new CalendarModel());
+	private CalendarStore loadCalendars() throws IOException {
+		SnapshotFormat.Snapshot loaded = storage.load();
+		generation = loaded.generation;
+		legacy = loaded.legacy;
+		if (loaded.fellBackFrom != null) {
+			loaded.fellBackFrom.printStackTrace();
+			loadWarning = String.format("The calendar file \"%s\" was damaged, so its newest good backup "
+					+ "was loaded instead.", calFile.getAbsolutePath());
+		}
+		if (loaded.calendars.isEmpty()) {
+			loaded.calendars.put("Default", new CalendarModel());
 		}
-		return (HashMap<String, CalendarModel>) loaded;
+		return loaded.calendars;
+	}
+
+	/**
+	 * Get a description of what was lost when the calendars were loaded, if the calendar
+	 * file was damaged and a backup was loaded instead. The logged changes which could not
+	 * be applied to the backup are moved aside, never deleted, and the description names
+	 * where they were moved.
+	 *
+	 * @return the description, or null if the calendars were loaded as they were saved
+	 */
+	public String getLoadWarning() {
+		return loadWarning;
 	}
 
 	/**
@@ -96,6 +186,7 @@ public class CalendarController {
 			throw new CalendarAlreadyExistsException(name);
 		} else {
 			map.put(name, new CalendarModel());
+			log.calendarCreated(name);
 		}
 	}
 
@@ -106,7 +197,16 @@ public class CalendarController {
 	 * @param name -- the name of the CalendarModel to be removed
 	 */
 	public boolean deleteCalendar(String name) {
-		return map.remove(name) != null;
+		if (!map.containsKey(name)) {
+			return false;
+		}
+		// only a calendar which was decoded can have been changed, and so be watched
+		CalendarModel model = map.remove(name);
+		if (model != null && watched.remove(model) != null) {
+			model.removeListener(forwarder);
+		}
+		log.calendarDeleted(name);
+		return true;
 	}
 
 	/**
@@ -125,7 +225,11 @@ public class CalendarController {
 		} else if (map.containsKey(newName)) {
 			throw new CalendarAlreadyExistsException(newName);
 		} else {
-			map.put(newName, map.remove(oldName));
+			map.rename(oldName, newName);
+			if (map.isLoaded(newName)) {
+				watched.replace(map.get(newName), newName);
+			}
+			log.calendarRenamed(oldName, newName);
 		}
 	}
 
@@ -138,12 +242,165 @@ public class CalendarController {
 	 */
 	public void addEvent(String calName, CalendarEvent newEvent) throws NoSuchCalendarException {
 		if (map.containsKey(calName)) {
-			map.get(calName).addEvent(newEvent);
+			if (edit(calName).addEvent(newEvent)) {
+				log.eventAdded(calName, newEvent);
+			}
 		} else {
 			throw new NoSuchCalendarException(calName);
 		}
 	}
 
+	/**
+	 * Adds many events to a calendar at once. The calendar's indexes are updated and its
+	 * listeners notified once for all of them, and they are logged as a single record.
+	 *
+	 * @param calName   -- name of the calendar
+	 * @param newEvents -- the CalendarEvents to add to the CalendarModel
+	 * @return the number of events which were added, leaving out those already in the calendar
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public int addEvents(String calName, Collection<CalendarEvent> newEvents) throws NoSuchCalendarException {
+		if (!map.containsKey(calName)) {
+			throw new NoSuchCalendarException(calName);
+		}
+		return addEventsTo(calName, newEvents);
+	}
+
+	/**
+	 * Imports the events of an iCalendar (.ics) file into a calendar, adding them in batches
+	 *
+	 * @param calName -- name of the calendar
+	 * @param in      -- the contents of the file, which is read a line at a time
+	 * @return how many events were imported, and how quickly
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @throws IOException             if the file could not be read. The batches read before
+	 *                                 the error stay in the calendar.
+	 * @see IcsImporter
+	 */
+	public IcsImporter.Result importEvents(String calName, Reader in) throws NoSuchCalendarException, IOException {
+		if (!map.containsKey(calName)) {
+			throw new NoSuchCalendarException(calName);
+		}
+		return new IcsImporter().read(in, batch -> addEventsTo(calName, batch));
+	}
+
+	/**
+	 * Exports every event of a calendar as an iCalendar (.ics) file, one event at a time
+	 *
+	 * @param calName -- name of the calendar
+	 * @param out     -- where to write the file. It is flushed but not closed.
+	 * @return the number of events which were exported
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @throws IOException             if the file could not be written
+	 * @see IcsExporter
+	 */
+	public int exportCalendar(String calName, Writer out) throws NoSuchCalendarException, IOException {
+		if (!map.containsKey(calName)) {
+			throw new NoSuchCalendarException(calName);
+		}
+		return new IcsExporter(out).write(calName, map.get(calName).getAllEvents().iterator());
+	}
+
+	/**
+	 * Exports the events of a calendar which start within a range as an iCalendar (.ics)
+	 * file, walking the index rather than collecting the events first
+	 *
+	 * @param calName -- name of the calendar
+	 * @param before  -- start of the range, exclusive
+	 * @param after   -- end of the range, exclusive
+	 * @param out     -- where to write the file. It is flushed but not closed.
+	 * @return the number of events which were exported
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @throws IOException             if the file could not be written
+	 */
+	public int exportEvents(String calName, LocalDateTime before, LocalDateTime after, Writer out)
+			throws NoSuchCalendarException, IOException {
+		if (!map.containsKey(calName)) {
+			throw new NoSuchCalendarException(calName);
+		}
+		return new IcsExporter(out).write(calName, map.get(calName).iterateEventsInRange(before, after));
+	}
+
+	/**
+	 * Exports several calendars, each into a file of its own, in parallel
+	 *
+	 * @param targets -- the file to export each calendar to, by the calendar's name
+	 * @return the total number of events which were exported
+	 * @throws NoSuchCalendarException if one of the calendars does not exist. Nothing is exported.
+	 * @throws IOException             if one of the files could not be written
+	 */
+	public int exportCalendars(Map<String, File> targets) throws NoSuchCalendarException, IOException {
+		return exportShared(sharedEventsOf(targets.keySet()), targets);
+	}
+
+	/**
+	 * Starts exporting several calendars, each into a file of its own, on another thread.
+	 * The calendars are looked up and loaded, and their lists of events taken by
+	 * {@link CalendarModel#shareEvents()}, on the calling thread, which must be the one that
+	 * changes them. So events added or removed once this returns are not exported, and the
+	 * calendars may be changed while the files are written.
+	 *
+	 * @param targets  -- the file to export each calendar to, by the calendar's name
+	 * @param executor -- runs the export
+	 * @return a future of the total number of events which were exported, which fails with
+	 * an {@link UncheckedIOException} if one of the files could not be written
+	 * @throws NoSuchCalendarException if one of the calendars does not exist. Nothing is exported.
+	 */
+	public CompletableFuture<Integer> exportCalendarsAsync(Map<String, File> targets, Executor executor)
+			throws NoSuchCalendarException {
+		List<Pair<String, List<CalendarEvent>>> calendars = sharedEventsOf(targets.keySet());
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return exportShared(calendars, targets);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * @param calNames -- names of calendars
+	 * @return the name of each calendar, and its list of events as it is now
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	private List<Pair<String, List<CalendarEvent>>> sharedEventsOf(Set<String> calNames)
+			throws NoSuchCalendarException {
+		List<Pair<String, List<CalendarEvent>>> calendars = new ArrayList<>(calNames.size());
+		for (Pair<String, CalendarModel> p : modelsOf(calNames)) {
+			calendars.add(new Pair<>(p.getKey(), p.getValue().shareEvents()));
+		}
+		return calendars;
+	}
+
+	/**
+	 * export the shared lists of events of calendars, in parallel
+	 */
+	private static int exportShared(List<Pair<String, List<CalendarEvent>>> calendars, Map<String, File> targets)
+			throws IOException {
+		try {
+			return calendars.parallelStream().mapToInt(p -> {
+				try (Writer out = Files.newBufferedWriter(targets.get(p.getKey()).toPath(), StandardCharsets.UTF_8)) {
+					return new IcsExporter(out).write(p.getKey(), p.getValue().iterator());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).sum();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private int addEventsTo(String calName, Collection<CalendarEvent> newEvents) {
+		CalendarModel model = edit(calName);
+		int first = model.getAllEvents().size();
+		int added = model.addEvents(newEvents);
+		if (added > 0) {
+			// the added events are appended to the calendar's list, in order
+			log.eventsAdded(calName, model.getAllEvents().subList(first, first + added));
+		}
+		return added;
+	}
+
 	/**
 	 * Takes a CalendarModel and removes an event from it
 	 *
@@ -153,12 +410,163 @@ public class CalendarController {
 	 */
 	public void removeEvent(String calName, CalendarEvent newEvent) throws NoSuchCalendarException {
 		if (map.containsKey(calName)) {
-			map.get(calName).removeEvent(newEvent);
+			CalendarModel model = edit(calName);
+			int index = model.indexOf(newEvent);
+			if (model.removeEvent(newEvent)) {
+				log.eventRemoved(calName, index);
+			}
 		} else {
 			throw new NoSuchCalendarException(calName);
 		}
 	}
 
+	/**
+	 * Notifies a CalendarModel that one of its events was edited,
+	 * so that its indexes can be brought up to date
+	 *
+	 * @param calName -- name of the calendar
+	 * @param event   -- the CalendarEvent which was modified
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public void markModified(String calName, CalendarEvent event) throws NoSuchCalendarException {
+		if (map.containsKey(calName)) {
+			CalendarModel model = edit(calName);
+			model.markModified(event);
+			int index = model.indexOf(event);
+			if (index >= 0) {
+				log.eventModified(calName, index, event);
+			}
+		} else {
+			throw new NoSuchCalendarException(calName);
+		}
+	}
+
+	/**
+	 * Removes many events from a calendar at once. The calendar's indexes are updated and
+	 * its listeners notified once for all of them, and they are logged as a single record.
+	 *
+	 * @param calName  -- name of the calendar
+	 * @param toRemove -- the CalendarEvents to remove from the CalendarModel
+	 * @return the number of events which were removed, leaving out those not in the calendar
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 */
+	public int removeEvents(String calName, Collection<CalendarEvent> toRemove) throws NoSuchCalendarException {
+		if (!map.containsKey(calName)) {
+			throw new NoSuchCalendarException(calName);
+		}
+		return replaceEventsIn(calName, toRemove, Collections.emptyList());
+	}
+
+	/**
+	 * Removes some events from a calendar and adds others, as a single change which is
+	 * logged as a single record
+	 *
+	 * @param calName  -- name of the calendar
+	 * @param toRemove -- the CalendarEvents to remove from the CalendarModel
+	 * @param toAdd    -- the CalendarEvents to add to the CalendarModel
+	 * @return true if the calendar changed
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @see CalendarModel#replaceEvents(Collection, Collection)
+	 */
+	public boolean replaceEvents(String calName, Collection<CalendarEvent> toRemove, Collection<CalendarEvent> toAdd)
+			throws NoSuchCalendarException {
+		if (!map.containsKey(calName)) {
+			throw new NoSuchCalendarException(calName);
+		}
+		CalendarModel model = map.get(calName);
+		long version = model.getVersion();
+		replaceEventsIn(calName, toRemove, toAdd);
+		return model.getVersion() != version;
+	}
+
+	/**
+	 * @return the number of events removed
+	 */
+	private int replaceEventsIn(String calName, Collection<CalendarEvent> toRemove, Collection<CalendarEvent> toAdd) {
+		CalendarModel model = edit(calName);
+		Set<CalendarEvent> removing = Collections.newSetFromMap(new IdentityHashMap<>());
+		removing.addAll(toRemove);
+		// the log identifies events by their position, so find them all in one pass
+		List<CalendarEvent> events = model.getAllEvents();
+		int[] indexes = new int[Math.min(removing.size(), events.size())];
+		int found = 0;
+		for (int i = 0; i < events.size() && found < indexes.length; i++) {
+			if (removing.contains(events.get(i))) indexes[found++] = i;
+		}
+		int kept = events.size() - found;
+		if (model.replaceEvents(toRemove, toAdd)) {
+			// the remaining events keep their order, and the added ones follow them
+			events = model.getAllEvents();
+			log.eventsReplaced(calName, Arrays.copyOf(indexes, found), events.subList(kept, events.size()));
+		}
+		return found;
+	}
+
+	/**
+	 * Starts a batch of changes. Until the matching {@link #endBatch()}, the calendars which
+	 * are changed through this controller do not notify their listeners; each then notifies
+	 * them once, with everything that changed in it. Batches may be nested.
+	 */
+	public void beginBatch() {
+		batchDepth++;
+	}
+
+	/**
+	 * Ends a batch of changes started by {@link #beginBatch()}
+	 *
+	 * @return everything that changed during the batch, by the name of the calendar, leaving
+	 * out calendars which did not change or were deleted. Empty if an enclosing batch is still open.
+	 * @throws IllegalStateException if no batch was started
+	 */
+	public Map<String, CalendarChange> endBatch() {
+		if (batchDepth == 0) {
+			throw new IllegalStateException("No batch to end");
+		}
+		if (--batchDepth > 0) {
+			return Collections.emptyMap();
+		}
+		// calendars may have been renamed during the batch
+		Map<CalendarModel, String> names = new IdentityHashMap<>();
+		for (String name : map.keySet()) {
+			if (map.isLoaded(name)) names.put(map.get(name), name);
+		}
+		Map<String, CalendarChange> changes = new HashMap<>();
+		for (CalendarModel model : batched) {
+			CalendarChange change = model.endBatch();
+			String name = names.get(model);
+			if (name != null && !change.isEmpty()) changes.put(name, change);
+		}
+		batched.clear();
+		return changes;
+	}
+
+	/**
+	 * Registers a listener to be told about every change made through this controller
+	 * to the events of any calendar
+	 *
+	 * @param listener -- the listener
+	 */
+	public void addListener(CalendarChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener -- a listener which was registered with {@link #addListener}
+	 */
+	public void removeListener(CalendarChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * get a calendar which is about to be changed, adding it to the open batch if there is one
+	 */
+	private CalendarModel edit(String calName) {
+		CalendarModel model = map.get(calName);
+		if (watched.put(model, calName) == null) model.addListener(forwarder);
+		if (batchDepth > 0 && batched.add(model)) model.beginBatch();
+		return model;
+	}
+
 	/**
 	 * Looks for events within a year for a certain calendar
 	 *
@@ -244,18 +652,407 @@ public class CalendarController {
 		}
 	}
 
+	/**
+	 * Gets the events of several calendars within a time range, merged into one list.
+	 * Each calendar's index is already ordered by start, so the calendars are
+	 * combined with a k-way merge rather than concatenated and re-sorted.
+	 *
+	 * @param calNames -- names of the calendars to search
+	 * @param before   -- the LocalDateTime for the start of the search
+	 * @param after    -- the LocalDateTime for the end of the search
+	 * @return (calendar name, event) pairs for the events found in that range,
+	 * ordered by start time. Events which start at the same time are ordered by calendar name.
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public List<Pair<String, CalendarEvent>> getEventsInRange(Set<String> calNames, LocalDateTime before,
+															  LocalDateTime after) throws NoSuchCalendarException {
+		return streamEventsInRange(calNames, before, after).collect(Collectors.toList());
+	}
+
+	/**
+	 * Lazily streams the events of several calendars within a time range, in the same order
+	 * as {@link #getEventsInRange(Set, LocalDateTime, LocalDateTime)}. The merge only advances
+	 * as far as the stream is consumed, so {@code findFirst()} or {@code limit(n)} stop early.
+	 * The calendars must not be modified while the stream is in use.
+	 *
+	 * @param calNames -- names of the calendars to search
+	 * @param before   -- the LocalDateTime for the start of the search
+	 * @param after    -- the LocalDateTime for the end of the search
+	 * @return a sequential stream of (calendar name, event) pairs
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public Stream<Pair<String, CalendarEvent>> streamEventsInRange(Set<String> calNames, LocalDateTime before,
+																   LocalDateTime after) throws NoSuchCalendarException {
+		PriorityQueue<MergeHead> heads = new PriorityQueue<>(Math.max(1, calNames.size()));
+		map.loadAll(calNames);
+		for (String name : calNames) {
+			if (!map.containsKey(name)) {
+				throw new NoSuchCalendarException(name);
+			}
+			MergeHead head = new MergeHead(name, map.get(name).iterateEventsInRange(before, after));
+			if (head.advance()) {
+				heads.add(head);
+			}
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merge(heads),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * @param heads the first event of each calendar which has any
+	 * @return an iterator which merges the events of the calendars, in order of start
+	 */
+	private static Iterator<Pair<String, CalendarEvent>> merge(PriorityQueue<MergeHead> heads) {
+		return new Iterator<Pair<String, CalendarEvent>>() {
+			@Override
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+
+			@Override
+			public Pair<String, CalendarEvent> next() {
+				MergeHead head = heads.remove();
+				Pair<String, CalendarEvent> p = new Pair<>(head.calName, head.event);
+				if (head.advance()) {
+					heads.add(head);
+				}
+				return p;
+			}
+		};
+	}
+
+	/**
+	 * Lazily streams a page of the events in a time range of one calendar
+	 *
+	 * @param calName -- name of the calendar
+	 * @param before  -- the LocalDateTime for the start of the search
+	 * @param after   -- the LocalDateTime for the end of the search
+	 * @param offset  -- the number of events at the start of the range to skip
+	 * @param limit   -- the maximum number of events in the stream
+	 * @return a sequential stream of the events found in that range, ordered by start
+	 * @throws NoSuchCalendarException if there is no calendar with the given name
+	 * @see CalendarModel#spliteratorEventsInRange(LocalDateTime, LocalDateTime, long, long)
+	 */
+	public Stream<CalendarEvent> streamEventsInRange(String calName, LocalDateTime before, LocalDateTime after,
+													 long offset, long limit) throws NoSuchCalendarException {
+		if (map.containsKey(calName)) {
+			return map.get(calName).streamEventsInRange(before, after, offset, limit);
+		} else {
+			throw new NoSuchCalendarException(calName);
+		}
+	}
+
+	/**
+	 * Counts the events of several calendars within a time range without collecting them
+	 *
+	 * @param calNames -- names of the calendars to search
+	 * @param before   -- the LocalDateTime for the start of the search
+	 * @param after    -- the LocalDateTime for the end of the search
+	 * @return the total number of events found in that range
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public int countEventsInRange(Set<String> calNames, LocalDateTime before, LocalDateTime after)
+			throws NoSuchCalendarException {
+		int count = 0;
+		for (String name : calNames) {
+			if (!map.containsKey(name)) {
+				throw new NoSuchCalendarException(name);
+			}
+			count += map.get(name).countEventsInRange(before, after);
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the next event of several calendars after a point in time
+	 *
+	 * @param calNames -- names of the calendars to search
+	 * @param time     -- the point in time
+	 * @return the (calendar name, event) pair of the earliest event which starts after
+	 * the given time, if there is one
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public Optional<Pair<String, CalendarEvent>> getNextEvent(Set<String> calNames, LocalDateTime time)
+			throws NoSuchCalendarException {
+		return streamEventsInRange(calNames, time, LocalDateTime.MAX).findFirst();
+	}
+
+	/**
+	 * The next unmerged event of one calendar, used by the k-way merge in
+	 * {@link #streamEventsInRange(Set, LocalDateTime, LocalDateTime)}
+	 */
+	private static final class MergeHead implements Comparable<MergeHead> {
+		private final String calName;
+		private final Iterator<CalendarEvent> rest;
+		private CalendarEvent event;
+		private LocalDateTime start;
+
+		private MergeHead(String calName, Iterator<CalendarEvent> rest) {
+			this.calName = calName;
+			this.rest = rest;
+		}
+
+		/**
+		 * @return false if the calendar has no more events
+		 */
+		private boolean advance() {
+			if (!rest.hasNext()) return false;
+			event = rest.next();
+			start = event.getDate().atTime(event.getStartTime());
+			return true;
+		}
+
+		@Override
+		public int compareTo(MergeHead o) {
+			int c = start.compareTo(o.start);
+			return c != 0 ? c : calName.compareTo(o.calName);
+		}
+	}
+
+	/**
+	 * Gets the events of several calendars over a run of consecutive days, grouped by day.
+	 * Each calendar's index is walked once for the whole run, so this is much cheaper
+	 * than calling {@link #getEventsInDay} for every day and calendar.
+	 * Each calendar's events are kept in the {@link #getQueryCache() query cache}, so asking
+	 * for the same days again only reads the calendars which changed since.
+	 *
+	 * @param calNames -- names of the calendars to get events from
+	 * @param first    -- the first day to get events from
+	 * @param numDays  -- the number of days to get events from
+	 * @return a list with one entry per day, starting at first. Each entry holds the
+	 * (calendar name, event) pairs of the events on that day, ordered by start time.
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public List<List<Pair<String, CalendarEvent>>> getEventsByDay(Set<String> calNames, LocalDate first, int numDays)
+			throws NoSuchCalendarException {
+		return readByDay(modelsOf(calNames), first, numDays, true);
+	}
+
+	/**
+	 * Gets the events of several calendars over a run of consecutive days, grouped by day,
+	 * as {@link #getEventsByDay} does, but without going through the query cache. For the
+	 * one-off runs a view patches after a change, which would only push out the months and
+	 * weeks the cache is kept for.
+	 *
+	 * @param calNames -- names of the calendars to get events from
+	 * @param first    -- the first day to get events from
+	 * @param numDays  -- the number of days to get events from
+	 * @return a list with one entry per day, as returned by {@link #getEventsByDay}
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public List<List<Pair<String, CalendarEvent>>> getChangedEventsByDay(Set<String> calNames, LocalDate first,
+			int numDays) throws NoSuchCalendarException {
+		return readByDay(modelsOf(calNames), first, numDays, false);
+	}
+
+	/**
+	 * Starts getting the events of several calendars over a run of consecutive days, grouped
+	 * by day, as {@link #getEventsByDay} does, but on another thread. The calendars are looked
+	 * up and loaded on the calling thread, which must be the one that changes them; they are
+	 * then read through {@link CalendarModel#read}, so a change waits for the read rather than
+	 * tearing it. An event being edited in place may still be seen half changed, so the
+	 * result should be dropped if a change to its days is delivered before it is used.
+	 *
+	 * @param calNames -- names of the calendars to get events from
+	 * @param first    -- the first day to get events from
+	 * @param numDays  -- the number of days to get events from
+	 * @param executor -- runs the read
+	 * @return a future of a list with one entry per day, as returned by {@link #getEventsByDay}
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	public CompletableFuture<List<List<Pair<String, CalendarEvent>>>> getEventsByDayAsync(Set<String> calNames,
+			LocalDate first, int numDays, Executor executor) throws NoSuchCalendarException {
+		List<Pair<String, CalendarModel>> models = modelsOf(calNames);
+		return CompletableFuture.supplyAsync(() -> readByDay(models, first, numDays, true), executor);
+	}
+
+	/**
+	 * @param calNames -- names of calendars
+	 * @return the (name, calendar) pair of each, with the calendars loaded
+	 * @throws NoSuchCalendarException if there is no calendar with one of the given names
+	 */
+	private List<Pair<String, CalendarModel>> modelsOf(Set<String> calNames) throws NoSuchCalendarException {
+		map.loadAll(calNames);
+		List<Pair<String, CalendarModel>> models = new ArrayList<>(calNames.size());
+		for (String name : calNames) {
+			if (!map.containsKey(name)) {
+				throw new NoSuchCalendarException(name);
+			}
+			models.add(new Pair<>(name, map.get(name)));
+		}
+		return models;
+	}
+
+	/**
+	 * Reads the events of several calendars over a run of days, and merges them by day.
+	 * Safe to call from any thread.
+	 *
+	 * @param models  -- the (name, calendar) pair of each calendar to read
+	 * @param first   -- the first day to get events from
+	 * @param numDays -- the number of days to get events from
+	 * @param cached  -- whether to read through the query cache
+	 * @return a list with one entry per day, as returned by {@link #getEventsByDay}
+	 */
+	private List<List<Pair<String, CalendarEvent>>> readByDay(List<Pair<String, CalendarModel>> models,
+			LocalDate first, int numDays, boolean cached) {
+		LocalDateTime before = first.atStartOfDay().minusNanos(1);
+		LocalDateTime after = first.plusDays(numDays).atStartOfDay();
+		PriorityQueue<MergeHead> heads = new PriorityQueue<>(Math.max(1, models.size()));
+		for (Pair<String, CalendarModel> p : models) {
+			CalendarModel model = p.getValue();
+			CalendarEvent[] events = cached
+					? queryCache.getEventsByDay(p.getKey(), model, first, numDays)
+					: model.read(() -> model.getEventsInRange(before, after));
+			MergeHead head = new MergeHead(p.getKey(), Arrays.asList(events).iterator());
+			if (head.advance()) {
+				heads.add(head);
+			}
+		}
+		return groupByDay(merge(heads), first, numDays);
+	}
+
+	/**
+	 * Get the cache of the events read by {@link #getEventsByDay} and
+	 * {@link #getEventsByDayAsync}, but not {@link #getChangedEventsByDay}, to see how well it is doing or to resize it
+	 *
+	 * @return the query cache of this controller
+	 */
+	public QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * @param merged  (calendar name, event) pairs in order of start
+	 * @param first   the first day to group by
+	 * @param numDays the number of days to group by
+	 * @return a list with the pairs of each day, starting at first. Pairs of other days are dropped.
+	 */
+	private static List<List<Pair<String, CalendarEvent>>> groupByDay(Iterator<Pair<String, CalendarEvent>> merged,
+			LocalDate first, int numDays) {
+		List<List<Pair<String, CalendarEvent>>> days = new ArrayList<>(numDays);
+		for (int i = 0; i < numDays; i++) {
+			days.add(new ArrayList<>());
+		}
+		// the merged events are in order, so each day's list is too
+		while (merged.hasNext()) {
+			Pair<String, CalendarEvent> p = merged.next();
+			long day = p.getValue().getDate().toEpochDay() - first.toEpochDay();
+			if (day >= 0 && day < numDays) {
+				days.get((int) day).add(p);
+			}
+		}
+		return days;
+	}
+
+	/**
+	 * Makes every change made so far durable. This is cheap: the changes are already in
+	 * the operation log, which only has to be forced to the disk. Once the log has grown
+	 * larger than the last snapshot, it is compacted by {@link #saveCalendarsAsync()}.
+	 * The work is done on a background thread.
+	 *
+	 * @return a future which completes once the changes are on disk, or completes
+	 * exceptionally if they could not be written
+	 */
+	public CompletableFuture<Void> checkpoint() {
+		if (saving.isDone() && log.size() > Math.max(MIN_COMPACTION_BYTES, storage.size())) {
+			return saveCalendarsAsync().thenCompose(v -> syncLog());
+		}
+		return syncLog();
+	}
+
 	/**
 	 * Saves the CalendarModel objects and their respective CalendarEvents
-	 * to the calendar file specified by {@link #calFile}
+	 * to the calendar file specified by {@link #calFile} as a new snapshot,
+	 * then starts a new, empty operation log on top of it.
+	 * Waits for the snapshot to be written, and prints any error.
 	 */
 	public void saveCalendars() {
-		BufferedWriter writer = null;
 		try {
-			FileOutputStream fOut = new FileOutputStream(calFile);
-			ObjectOutputStream objOut = new ObjectOutputStream(fOut);
-			objOut.writeObject(map);
+			// the snapshot must include every change made so far
+			saving.handle((v, e) -> null).join();
+			saveCalendarsAsync().join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts saving the calendars to {@link #calFile} as a new snapshot. Only a copy of
+	 * the calendars is taken on the calling thread; the snapshot is written and forced to
+	 * disk on a background thread. Changes made from then on go to a new operation log,
+	 * which extends the new snapshot.
+	 * <p>
+	 * If a snapshot is already being written, another one is not started. Instead the
+	 * returned future also covers forcing the operation log to disk, which holds the
+	 * changes made since that snapshot was begun.
+	 * <p>
+	 * Calendars which have not changed since they were last saved are copied
+	 * from the old snapshot as they are. If no calendar has changed, and none were
+	 * created, renamed or deleted, no snapshot is written at all.
+	 *
+	 * @return a future which completes once the snapshot is saved, or completes
+	 * exceptionally if it could not be
+	 */
+	public CompletableFuture<Void> saveCalendarsAsync() {
+		moveToSavedSnapshot();
+		if (!saving.isDone()) {
+			return saving.thenCompose(v -> syncLog());
+		}
+		if (!map.isDirty()) {
+			return syncLog();
+		}
+		long newGeneration = generation + 1;
+		CalendarStore.Frozen frozen = map.freeze();
+		try {
+			log.rotate(newGeneration);
+		} catch (IOException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		saving = CompletableFuture.runAsync(() -> writeSnapshot(frozen, newGeneration), saver);
+		return saving;
+	}
+
+	/**
+	 * write a snapshot to calFile, on the saver thread. The snapshot it replaces
+	 * becomes the newest backup.
+	 */
+	private void writeSnapshot(CalendarStore.Frozen frozen, long newGeneration) {
+		List<CalendarStore.Block> blocks;
+		try {
+			// the snapshot must be on disk before the log it replaces is dropped
+			blocks = storage.save(frozen, newGeneration);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new UncheckedIOException(e);
+		}
+		generation = newGeneration;
+		log.rotated();
+		if (blocks != null) {
+			savedSnapshot.set(new Pair<>(frozen, blocks));
 		}
 	}
+
+	/**
+	 * let go of the old snapshot, once a newer one has been saved
+	 */
+	private void moveToSavedSnapshot() {
+		Pair<CalendarStore.Frozen, List<CalendarStore.Block>> saved = savedSnapshot.getAndSet(null);
+		if (saved != null) {
+			map.saved(saved.getKey(), saved.getValue());
+		}
+	}
+
+	/**
+	 * force the operation log to disk, on the saver thread
+	 */
+	private CompletableFuture<Void> syncLog() {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				log.sync();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, saver);
+	}
 }
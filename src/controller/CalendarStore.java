@@ -0,0 +1,421 @@
+package controller;
+
+import model.CalendarEvent;
+import model.CalendarModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The mapping of calendar names to calendars, where the calendars read from a snapshot
+ * are only decoded the first time they are looked up. Until then, a calendar is just its
+ * block in the snapshot, so opening a snapshot costs the same however many events the
+ * calendars hold.
+ * <p>
+ * The store also tracks which calendars have changed since they were last saved, using
+ * {@link CalendarModel#getVersion()}. The blocks of unchanged calendars are copied into the
+ * next snapshot as they are, and if nothing has changed there is nothing to save.
+ * <p>
+ * Iterating over the keys does not decode any calendar, but looking up a value,
+ * including through {@link #entrySet()}, does.
+ *
+ * @author Kitty Elliott
+ */
+final class CalendarStore extends AbstractMap<String, CalendarModel> {
+    // calendars which have been decoded, or were created since the snapshot was read
+    private final HashMap<String, CalendarModel> loaded = new HashMap<>();
+    // the saved block of each calendar which has one. a decoded calendar's block
+    // is only up to date while the calendar is still at its saved version
+    private final HashMap<String, Block> blocks = new HashMap<>();
+    private final HashMap<String, Long> savedVersions = new HashMap<>();
+    // the names of the calendars in the newest snapshot on disk
+    private Set<String> savedNames = new HashSet<>();
+
+    /**
+     * Create an empty store
+     */
+    CalendarStore() {
+    }
+
+    /**
+     * Create a store of the calendars of a snapshot, without decoding any of them
+     *
+     * @param saved the block of each calendar in the snapshot
+     */
+    CalendarStore(List<Block> saved) {
+        for (Block block : saved) {
+            // a new snapshot's entries always have the calendars' current names
+            blocks.put(block.entry.name, block);
+            savedNames.add(block.entry.name);
+        }
+    }
+
+    /**
+     * @param name the name of a calendar
+     * @return true if the calendar is held in memory, false if it has not been decoded
+     * from the snapshot yet, or does not exist
+     */
+    boolean isLoaded(String name) {
+        return loaded.containsKey(name);
+    }
+
+    /**
+     * @param name the name of a calendar in this store
+     * @return true if the calendar has changed since it was last saved, or was never saved
+     */
+    boolean isDirty(String name) {
+        if (!blocks.containsKey(name)) return true;
+        CalendarModel model = loaded.get(name);
+        return model != null && model.getVersion() != savedVersions.get(name);
+    }
+
+    /**
+     * @return true if the newest snapshot does not hold exactly the calendars of this store
+     */
+    boolean isDirty() {
+        if (!savedNames.equals(keys())) return true;
+        for (String name : loaded.keySet()) {
+            if (isDirty(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get a calendar, decoding it from the snapshot if this is the first time it is needed
+     *
+     * @throws UncheckedIOException if the calendar's block in the snapshot is corrupt
+     */
+    @Override
+    public CalendarModel get(Object key) {
+        CalendarModel model = loaded.get(key);
+        if (model == null) {
+            Block block = blocks.get(key);
+            if (block == null) return null;
+            try {
+                model = block.decode();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // the block's entry has the calendar's old name if it was renamed
+            loaded.put((String) key, model);
+            savedVersions.put((String) key, model.getVersion());
+        }
+        return model;
+    }
+
+    /**
+     * Decode any of the given calendars which have not been decoded yet, in parallel
+     *
+     * @param names names of calendars in this store
+     * @throws UncheckedIOException if the block of one of the calendars is corrupt
+     */
+    void loadAll(Collection<String> names) {
+        List<String> toDecode = new ArrayList<>();
+        for (String name : names) {
+            if (!loaded.containsKey(name) && blocks.containsKey(name)) {
+                toDecode.add(name);
+            }
+        }
+        if (toDecode.size() < 2) return;
+        List<CalendarModel> decoded = toDecode.stream().map(blocks::get).collect(Collectors.toList())
+                .parallelStream().map(block -> {
+                    try {
+                        return block.decode();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).collect(Collectors.toList());
+        for (int i = 0; i < toDecode.size(); i++) {
+            String name = toDecode.get(i);
+            loaded.put(name, decoded.get(i));
+            savedVersions.put(name, decoded.get(i).getVersion());
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return loaded.containsKey(key) || blocks.containsKey(key);
+    }
+
+    /**
+     * Add or replace a calendar. A calendar which is replaced is not decoded, so it is only
+     * returned if it already was.
+     */
+    @Override
+    public CalendarModel put(String key, CalendarModel value) {
+        CalendarModel old = loaded.put(key, value);
+        blocks.remove(key);
+        savedVersions.remove(key);
+        return old;
+    }
+
+    /**
+     * Remove a calendar, without decoding it, so that a calendar whose block is corrupt
+     * can still be removed
+     *
+     * @return the calendar, if it had been decoded, or null if it had not or does not exist
+     */
+    @Override
+    public CalendarModel remove(Object key) {
+        CalendarModel model = loaded.remove(key);
+        blocks.remove(key);
+        savedVersions.remove(key);
+        return model;
+    }
+
+    /**
+     * Give a calendar a new name, without decoding it
+     *
+     * @param oldName the name of a calendar in this store
+     * @param newName a name which no calendar in this store has
+     */
+    void rename(String oldName, String newName) {
+        if (loaded.containsKey(oldName)) loaded.put(newName, loaded.remove(oldName));
+        if (blocks.containsKey(oldName)) blocks.put(newName, blocks.remove(oldName));
+        if (savedVersions.containsKey(oldName)) savedVersions.put(newName, savedVersions.remove(oldName));
+    }
+
+    @Override
+    public int size() {
+        return keys().size();
+    }
+
+    @Override
+    public Set<Entry<String, CalendarModel>> entrySet() {
+        return new AbstractSet<Entry<String, CalendarModel>>() {
+            @Override
+            public Iterator<Entry<String, CalendarModel>> iterator() {
+                Iterator<String> names = new ArrayList<>(keys()).iterator();
+                return new Iterator<Entry<String, CalendarModel>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return names.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, CalendarModel> next() {
+                        return new LazyEntry(names.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CalendarStore.this.size();
+            }
+        };
+    }
+
+    /**
+     * Take a copy of the calendars which later changes to them do not affect, so that it
+     * can be written out on another thread. The copy takes constant time per calendar: the
+     * calendars which changed since they were last saved share their lists of events, which
+     * they copy before they next change them, and the others are still in a snapshot, which
+     * does not change.
+     * <p>
+     * The events are not copied, so one edited in place after the copy is taken may be
+     * written edited. This is harmless, since the edit is logged after the copy, and
+     * replaying the log overwrites the event.
+     *
+     * @return the copy
+     */
+    Frozen freeze() {
+        Frozen frozen = new Frozen();
+        for (String name : keys()) {
+            frozen.names.add(name);
+            if (isDirty(name)) {
+                CalendarModel model = loaded.get(name);
+                frozen.models.add(model);
+                frozen.versions.add(model.getVersion());
+                frozen.events.add(model.shareEvents());
+                frozen.blocks.add(null);
+            } else {
+                frozen.models.add(null);
+                frozen.versions.add(null);
+                frozen.events.add(null);
+                frozen.blocks.add(blocks.get(name));
+            }
+        }
+        return frozen;
+    }
+
+    /**
+     * The calendars of a store at one point in time
+     */
+    static final class Frozen {
+        final List<String> names = new ArrayList<>();
+        // for each calendar, either its model, version and shared events, or its saved block
+        private final List<CalendarModel> models = new ArrayList<>();
+        private final List<Long> versions = new ArrayList<>();
+        private final List<List<CalendarEvent>> events = new ArrayList<>();
+        private final List<Block> blocks = new ArrayList<>();
+
+        private Frozen() {
+        }
+
+        /**
+         * @param i the index of a calendar in {@link #names}
+         * @return the saved block of the calendar, or null if it changed since it was saved
+         */
+        Block savedBlock(int i) {
+            return blocks.get(i);
+        }
+
+        /**
+         * Get the encoded block of one calendar. A calendar which had not changed is
+         * copied straight out of its snapshot instead of being decoded and re-encoded.
+         *
+         * @param i the index of a calendar in {@link #names}
+         * @return the block of the calendar
+         * @throws IOException if the saved block of the calendar is corrupt
+         */
+        byte[] encodeBlock(int i) throws IOException {
+            Block block = blocks.get(i);
+            return block == null ? SnapshotFormat.encodeBlock(events.get(i)) : block.copy();
+        }
+
+        /**
+         * Get the encoded block of each calendar, encoding them in parallel
+         *
+         * @return the block of each calendar, in the same order as {@link #names}
+         * @throws IOException if the saved block of a calendar is corrupt
+         */
+        List<byte[]> encodeBlocks() throws IOException {
+            byte[][] encoded = new byte[names.size()][];
+            try {
+                IntStream.range(0, names.size()).parallel().forEach(i -> {
+                    try {
+                        encoded[i] = encodeBlock(i);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return Arrays.asList(encoded);
+        }
+    }
+
+    /**
+     * Record that a copy taken by {@link #freeze()} was saved as a new snapshot. Calendars
+     * which have not changed since the copy was taken now refer to their blocks in the new
+     * snapshot, so that the older snapshots are no longer referred to.
+     *
+     * @param frozen the copy which was saved
+     * @param saved  the block of each calendar in the new snapshot, in the same order as
+     *               the names of the copy
+     */
+    void saved(Frozen frozen, List<Block> saved) {
+        for (int i = 0; i < frozen.names.size(); i++) {
+            String name = frozen.names.get(i);
+            CalendarModel model = frozen.models.get(i);
+            // a calendar may have been replaced, renamed or deleted since it was copied
+            if (model == null ? blocks.get(name) == frozen.blocks.get(i) : loaded.get(name) == model) {
+                blocks.put(name, saved.get(i));
+                if (model != null) savedVersions.put(name, frozen.versions.get(i));
+            }
+        }
+        savedNames = new HashSet<>(frozen.names);
+    }
+
+    private Set<String> keys() {
+        Set<String> names = new HashSet<>(loaded.keySet());
+        names.addAll(blocks.keySet());
+        return names;
+    }
+
+    /**
+     * A calendar's encoded block in a snapshot on disk. The block is either part of a
+     * snapshot which is already in memory, or a whole file which is read when first needed.
+     */
+    static final class Block {
+        final SnapshotFormat.DirectoryEntry entry;
+        // the file holding only this block, if it is not read yet
+        private final File file;
+        private ByteBuffer buffer;
+
+        /**
+         * @param buffer the whole snapshot holding the block
+         * @param entry  the block's entry in the snapshot's directory
+         */
+        Block(ByteBuffer buffer, SnapshotFormat.DirectoryEntry entry) {
+            this.buffer = buffer;
+            this.entry = entry;
+            this.file = null;
+        }
+
+        /**
+         * @param file  the file holding only the block
+         * @param entry the block's entry in the manifest, with an offset of 0
+         */
+        Block(File file, SnapshotFormat.DirectoryEntry entry) {
+            this.file = file;
+            this.entry = entry;
+        }
+
+        /**
+         * @return the file holding only this block, or null if it is part of a larger snapshot
+         */
+        File file() {
+            return file;
+        }
+
+        CalendarModel decode() throws IOException {
+            return SnapshotFormat.readBlock(buffer(), entry);
+        }
+
+        byte[] copy() throws IOException {
+            return SnapshotFormat.copyBlock(buffer(), entry);
+        }
+
+        // may be called from the saver thread as well as the thread using the calendars
+        private synchronized ByteBuffer buffer() throws IOException {
+            if (buffer == null) buffer = SnapshotFormat.readFully(file);
+            return buffer;
+        }
+    }
+
+    /**
+     * an entry which only decodes its calendar when the value is asked for
+     */
+    private final class LazyEntry implements Entry<String, CalendarModel> {
+        private final String name;
+
+        private LazyEntry(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getKey() {
+            return name;
+        }
+
+        @Override
+        public CalendarModel getValue() {
+            return get(name);
+        }
+
+        @Override
+        public CalendarModel setValue(CalendarModel value) {
+            return put(name, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return name.equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() ^ Objects.hashCode(getValue());
+        }
+    }
+}
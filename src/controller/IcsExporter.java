@@ -0,0 +1,199 @@
+package controller;
+
+import model.CalendarEvent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Writes events as an iCalendar (RFC 5545) file in a single pass, one event at a time,
+ * so the document is never held in memory. The file can be read back by {@link IcsImporter}.
+ * <p>
+ * Times are written as floating local times, since events do not have a time zone. An
+ * event which lasts from midnight to the end of its day is written as an all-day event.
+ * Colors are not written, because iCalendar only has named colors.
+ *
+ * @author Kitty Elliott
+ */
+public final class IcsExporter {
+    private static final int MAX_LINE_OCTETS = 75;
+    private static final String CRLF = "\r\n";
+
+    private final Writer out;
+    // the UID of every event is this followed by the event's number in the file
+    private final String uidPrefix = UUID.randomUUID().toString();
+    private final String stamp;
+    private final char[] dateTime = new char[15];
+    private int count;
+
+    /**
+     * @param out where to write the file. Writes are small, so it should be buffered.
+     */
+    public IcsExporter(Writer out) {
+        this.out = out;
+        this.stamp = new String(dateTimeChars(LocalDateTime.now(ZoneOffset.UTC))) + "Z";
+    }
+
+    /**
+     * Write a whole calendar file holding the given events
+     *
+     * @param calName the name of the calendar, or null
+     * @param events  the events to write
+     * @return the number of events written
+     * @throws IOException if the file could not be written
+     */
+    public int write(String calName, Iterator<CalendarEvent> events) throws IOException {
+        begin(calName);
+        while (events.hasNext()) {
+            write(events.next());
+        }
+        end();
+        return count;
+    }
+
+    /**
+     * Write the beginning of the file
+     *
+     * @param calName the name of the calendar, or null
+     * @throws IOException if the file could not be written
+     */
+    public void begin(String calName) throws IOException {
+        out.write("BEGIN:VCALENDAR" + CRLF);
+        out.write("VERSION:2.0" + CRLF);
+        out.write("PRODID:-//Calendar//EN" + CRLF);
+        if (calName != null) writeText("X-WR-CALNAME", calName);
+    }
+
+    /**
+     * Write one event
+     *
+     * @param e the event
+     * @throws IOException if the file could not be written
+     */
+    public void write(CalendarEvent e) throws IOException {
+        out.write("BEGIN:VEVENT" + CRLF);
+        out.write("UID:" + uidPrefix + "-" + count + CRLF);
+        out.write("DTSTAMP:" + stamp + CRLF);
+        LocalDate date = e.getDate();
+        LocalTime start = e.getStartTime();
+        LocalTime end = e.getEndTime();
+        if (start.equals(LocalTime.MIDNIGHT) && LocalTime.MAX.equals(end)) {
+            writeDate("DTSTART", date);
+            writeDate("DTEND", date.plusDays(1));
+        } else {
+            writeDateTime("DTSTART", date.atTime(start));
+            if (end != null) {
+                writeDateTime("DTEND", end.equals(LocalTime.MAX)
+                        ? date.plusDays(1).atStartOfDay()
+                        : date.atTime(end));
+            }
+        }
+        writeText("SUMMARY", e.getTitle());
+        if (e.getLocation() != null) writeText("LOCATION", e.getLocation());
+        if (e.getNotes() != null) writeText("DESCRIPTION", e.getNotes());
+        out.write("END:VEVENT" + CRLF);
+        count++;
+    }
+
+    /**
+     * Write the end of the file, and flush it
+     *
+     * @throws IOException if the file could not be written
+     */
+    public void end() throws IOException {
+        out.write("END:VCALENDAR" + CRLF);
+        out.flush();
+    }
+
+    private void writeDate(String name, LocalDate date) throws IOException {
+        out.write(name);
+        out.write(";VALUE=DATE:");
+        out.write(dateTimeChars(date.atStartOfDay()), 0, 8);
+        out.write(CRLF);
+    }
+
+    private void writeDateTime(String name, LocalDateTime time) throws IOException {
+        out.write(name);
+        out.write(':');
+        out.write(dateTimeChars(time), 0, 15);
+        out.write(CRLF);
+    }
+
+    private char[] dateTimeChars(LocalDateTime t) {
+        putDigits(t.getYear(), 0, 4);
+        putDigits(t.getMonthValue(), 4, 2);
+        putDigits(t.getDayOfMonth(), 6, 2);
+        dateTime[8] = 'T';
+        putDigits(t.getHour(), 9, 2);
+        putDigits(t.getMinute(), 11, 2);
+        putDigits(t.getSecond(), 13, 2);
+        return dateTime;
+    }
+
+    private void putDigits(int n, int at, int width) {
+        for (int i = at + width - 1; i >= at; i--) {
+            dateTime[i] = (char) ('0' + n % 10);
+            n /= 10;
+        }
+    }
+
+    /**
+     * write a TEXT property, escaping its value and folding it into lines of at most 75 octets
+     */
+    private void writeText(String name, String value) throws IOException {
+        out.write(name);
+        out.write(':');
+        int octets = name.length() + 1;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escaped = null;
+            switch (c) {
+                case '\\':
+                    escaped = "\\\\";
+                    break;
+                case ';':
+                    escaped = "\\;";
+                    break;
+                case ',':
+                    escaped = "\\,";
+                    break;
+                case '\n':
+                    escaped = "\\n";
+                    break;
+                case '\r':
+                    continue;
+            }
+            int size;
+            if (escaped != null) {
+                size = 2;
+            } else if (c < 0x80) {
+                size = 1;
+            } else if (c < 0x800) {
+                size = 2;
+            } else if (Character.isHighSurrogate(c)) {
+                size = 4; // written together with the low surrogate which follows
+            } else if (Character.isLowSurrogate(c)) {
+                size = 0;
+            } else {
+                size = 3;
+            }
+            if (octets + size > MAX_LINE_OCTETS) {
+                out.write(CRLF + " ");
+                octets = 1;
+            }
+            if (escaped != null) {
+                out.write(escaped);
+            } else {
+                out.write(c);
+            }
+            octets += size;
+        }
+        out.write(CRLF);
+    }
+}
@@ -0,0 +1,362 @@
+package controller;
+
+import javafx.scene.paint.Color;
+import model.CalendarEvent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads the events of an iCalendar (RFC 5545) file. The file is read one line at a time
+ * and only the event being read and the current batch of events are held in memory, so
+ * files of any size can be imported. Events are handed over in batches, so that they can
+ * be added to a calendar with {@link model.CalendarModel#addEvents(java.util.Collection)}.
+ * <p>
+ * Each VEVENT becomes one {@link CalendarEvent}: SUMMARY is its title, LOCATION its
+ * location, DESCRIPTION its notes and COLOR its color. Times in UTC or with a TZID are
+ * converted to the local time zone; floating times are taken as they are. An event on
+ * a DATE rather than a DATE-TIME lasts the whole day. Since an event cannot span days,
+ * one which ends on a later day than it starts is cut short at the end of its first day.
+ * Recurrence rules are not expanded, so only the first occurrence of a repeating event
+ * is imported. Events without a DTSTART, or with times that can't be read, are skipped.
+ *
+ * @author Kitty Elliott
+ */
+public final class IcsImporter {
+    /**
+     * The number of events handed over at a time, unless another size is given
+     */
+    public static final int DEFAULT_BATCH_SIZE = 10_000;
+
+    private final int batchSize;
+    private final ZoneId zone;
+    private final Map<String, ZoneId> zones = new HashMap<>();
+
+    /**
+     * Create an importer which converts times to the system's time zone
+     */
+    public IcsImporter() {
+        this(DEFAULT_BATCH_SIZE, ZoneId.systemDefault());
+    }
+
+    /**
+     * @param batchSize the greatest number of events to hand over at a time
+     * @param zone      the time zone to convert times in UTC or with a TZID to
+     */
+    public IcsImporter(int batchSize, ZoneId zone) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
+        this.zone = zone;
+    }
+
+    /**
+     * How many events were imported, and how quickly
+     */
+    public static final class Result {
+        public final int imported;
+        public final int skipped;
+        public final long elapsedNanos;
+
+        private Result(int imported, int skipped, long elapsedNanos) {
+            this.imported = imported;
+            this.skipped = skipped;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the number of events imported per second
+         */
+        public double eventsPerSecond() {
+            return elapsedNanos == 0 ? 0 : imported * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Imported %d events (%d skipped) in %.2f s, %.0f events/s",
+                    imported, skipped, elapsedNanos / 1e9, eventsPerSecond());
+        }
+    }
+
+    /**
+     * Read every event in an iCalendar file
+     *
+     * @param in   the file to read. It is not closed.
+     * @param sink given each batch of events, in the order they appear in the file.
+     *             No batch is empty, and none is larger than the batch size.
+     * @return how many events were imported, and how quickly
+     * @throws IOException if the file could not be read
+     */
+    public Result read(Reader in, Consumer<List<CalendarEvent>> sink) throws IOException {
+        long startNanos = System.nanoTime();
+        BufferedReader lines = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        EventBuilder builder = new EventBuilder();
+        List<CalendarEvent> batch = new ArrayList<>();
+        int imported = 0, skipped = 0;
+        // how deeply the current line is nested inside the VEVENT, if inside one at all
+        int depth = -1;
+
+        StringBuilder line = new StringBuilder();
+        String next = lines.readLine();
+        while (next != null) {
+            // unfold the lines which continue this one
+            line.setLength(0);
+            line.append(next);
+            while ((next = lines.readLine()) != null && !next.isEmpty()
+                    && (next.charAt(0) == ' ' || next.charAt(0) == '\t')) {
+                line.append(next, 1, next.length());
+            }
+
+            Property p = Property.parse(line);
+            if (p == null) continue;
+            if (p.name.equals("BEGIN")) {
+                if (depth >= 0) {
+                    depth++; // an alarm, or something else inside the event
+                } else if (p.value.equalsIgnoreCase("VEVENT")) {
+                    depth = 0;
+                    builder.reset();
+                }
+            } else if (p.name.equals("END")) {
+                if (depth > 0) {
+                    depth--;
+                } else if (depth == 0) {
+                    depth = -1;
+                    CalendarEvent event = builder.build();
+                    if (event == null) {
+                        skipped++;
+                    } else {
+                        batch.add(event);
+                        imported++;
+                        if (batch.size() >= batchSize) {
+                            sink.accept(batch);
+                            batch = new ArrayList<>();
+                        }
+                    }
+                }
+            } else if (depth == 0) {
+                builder.set(p);
+            }
+        }
+        if (!batch.isEmpty()) sink.accept(batch);
+        return new Result(imported, skipped, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * One unfolded content line: name *(";" param) ":" value
+     */
+    private static final class Property {
+        final String name;
+        final String value;
+        // only the parameters which are used are kept
+        String tzid;
+        boolean isDate;
+
+        private Property(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        /**
+         * @return the property, or null if the line is not one
+         */
+        static Property parse(CharSequence line) {
+            int len = line.length();
+            int i = 0;
+            while (i < len && line.charAt(i) != ';' && line.charAt(i) != ':') i++;
+            if (i == len) return null;
+            String name = line.subSequence(0, i).toString().toUpperCase();
+            String tzid = null;
+            boolean isDate = false;
+            while (line.charAt(i) == ';') {
+                int paramStart = ++i;
+                boolean quoted = false;
+                while (i < len && (quoted || (line.charAt(i) != ';' && line.charAt(i) != ':'))) {
+                    if (line.charAt(i) == '"') quoted = !quoted;
+                    i++;
+                }
+                if (i == len) return null;
+                String param = line.subSequence(paramStart, i).toString();
+                int eq = param.indexOf('=');
+                if (eq < 0) continue;
+                String key = param.substring(0, eq).toUpperCase();
+                String val = param.substring(eq + 1);
+                if (val.length() >= 2 && val.charAt(0) == '"') val = val.substring(1, val.length() - 1);
+                if (key.equals("TZID")) {
+                    tzid = val;
+                } else if (key.equals("VALUE")) {
+                    isDate = val.equalsIgnoreCase("DATE");
+                }
+            }
+            Property p = new Property(name, line.subSequence(i + 1, len).toString());
+            p.tzid = tzid;
+            p.isDate = isDate;
+            return p;
+        }
+    }
+
+    /**
+     * Collects the properties of one VEVENT
+     */
+    private final class EventBuilder {
+        private String title, location, notes;
+        private Color color;
+        private LocalDateTime start, end;
+        private boolean allDay;
+        private Duration duration;
+        private boolean malformed;
+
+        void reset() {
+            title = location = notes = null;
+            color = null;
+            start = end = null;
+            allDay = false;
+            duration = null;
+            malformed = false;
+        }
+
+        void set(Property p) {
+            try {
+                switch (p.name) {
+                    case "SUMMARY":
+                        title = unescape(p.value);
+                        break;
+                    case "LOCATION":
+                        location = unescape(p.value);
+                        break;
+                    case "DESCRIPTION":
+                        notes = unescape(p.value);
+                        break;
+                    case "COLOR":
+                        color = Color.web(p.value.trim());
+                        break;
+                    case "DTSTART":
+                        allDay = p.isDate || p.value.length() == 8;
+                        start = dateTime(p);
+                        break;
+                    case "DTEND":
+                        end = dateTime(p);
+                        break;
+                    case "DURATION":
+                        duration = duration(p.value.trim());
+                        break;
+                }
+            } catch (IllegalArgumentException | DateTimeException e) {
+                if (p.name.equals("COLOR")) return; // not worth losing the event over
+                malformed = true;
+            }
+        }
+
+        /**
+         * @return the event, or null if it can't be imported
+         */
+        CalendarEvent build() {
+            if (malformed || start == null) return null;
+            LocalDateTime until = end;
+            if (until == null) {
+                if (duration != null) {
+                    until = start.plus(duration);
+                } else {
+                    until = allDay ? start.plusDays(1) : start;
+                }
+            }
+            LocalTime endTime;
+            if (until.isBefore(start)) {
+                endTime = start.toLocalTime();
+            } else if (!until.toLocalDate().equals(start.toLocalDate())) {
+                endTime = LocalTime.MAX;
+            } else {
+                endTime = until.toLocalTime();
+            }
+            return new CalendarEvent(title == null ? "" : title, start.toLocalDate(), start.toLocalTime(),
+                    endTime, location, notes, color);
+        }
+    }
+
+    /**
+     * read a DATE or DATE-TIME value, converting it to the local time zone
+     */
+    private LocalDateTime dateTime(Property p) {
+        String v = p.value.trim();
+        LocalDate date = LocalDate.of(digits(v, 0, 4), digits(v, 4, 6), digits(v, 6, 8));
+        if (v.length() == 8) return date.atStartOfDay();
+        if (v.length() < 15 || v.charAt(8) != 'T') throw new DateTimeException("Bad date-time: " + v);
+        LocalDateTime local = date.atTime(digits(v, 9, 11), digits(v, 11, 13),
+                // a leap second is kept as the last second of the minute
+                Math.min(digits(v, 13, 15), 59));
+        ZoneId from;
+        if (v.length() == 16 && v.charAt(15) == 'Z') {
+            from = ZoneOffset.UTC;
+        } else if (v.length() == 15 && p.tzid != null) {
+            from = zoneOf(p.tzid);
+        } else if (v.length() == 15) {
+            return local; // floating time
+        } else {
+            throw new DateTimeException("Bad date-time: " + v);
+        }
+        return from == null ? local : local.atZone(from).withZoneSameInstant(zone).toLocalDateTime();
+    }
+
+    /**
+     * @return the zone with the given id, or null if Java does not know it
+     */
+    private ZoneId zoneOf(String tzid) {
+        return zones.computeIfAbsent(tzid, id -> {
+            try {
+                // some producers prefix the id with a slash to mark it as globally unique
+                return ZoneId.of(id.startsWith("/") ? id.substring(1) : id);
+            } catch (DateTimeException e) {
+                return null;
+            }
+        });
+    }
+
+    private static int digits(String s, int from, int to) {
+        if (s.length() < to) throw new DateTimeException("Bad date-time: " + s);
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') throw new DateTimeException("Bad date-time: " + s);
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    /**
+     * read a DURATION value, such as P1D, PT1H30M or P2W
+     */
+    private static Duration duration(String v) {
+        boolean negative = v.startsWith("-");
+        if (negative || v.startsWith("+")) v = v.substring(1);
+        Duration d;
+        if (v.endsWith("W")) {
+            d = Duration.ofDays(7L * Integer.parseInt(v.substring(1, v.length() - 1)));
+        } else {
+            d = Duration.parse(v);
+        }
+        return negative ? d.negated() : d;
+    }
+
+    /**
+     * undo the escaping of a TEXT value
+     */
+    private static String unescape(String v) {
+        if (v.indexOf('\\') < 0) return v;
+        StringBuilder sb = new StringBuilder(v.length());
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '\\' && i + 1 < v.length()) {
+                char e = v.charAt(++i);
+                sb.append(e == 'n' || e == 'N' ? '\n' : e);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
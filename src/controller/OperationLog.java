@@ -0,0 +1,599 @@
+package controller;
+
+import model.CalendarEvent;
+import model.CalendarModel;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to the calendars since the last snapshot
+ * was saved. Each change is appended as it happens, so keeping the calendars on disk
+ * up to date costs time proportional to the rate of change rather than to the amount
+ * of data. The log is folded into a new snapshot by {@link CalendarController#saveCalendars()}.
+ * <p>
+ * The file begins with a header naming the snapshot generation which the log extends, so
+ * a log left over from an older snapshot is never replayed on top of a newer one. Every
+ * record carries a length and a CRC32, so a record torn by a crash is detected and dropped.
+ * <p>
+ * Events are identified by their position in {@link CalendarModel#getAllEvents()}, which
+ * replaying the log from the same snapshot reproduces exactly.
+ * <p>
+ * Write errors are remembered rather than thrown by the record methods,
+ * and are thrown by the next call to {@link #sync()}.
+ * <p>
+ * While a snapshot is being written on another thread, the records it holds are kept
+ * in a second file next to the log, by {@link #rotate(long)}, and new records start a
+ * log which extends the snapshot being written. Until {@link #rotated()} is called
+ * once the snapshot is saved, a crash replays both files on top of the older snapshot.
+ * The methods are synchronized so that the log can be forced to disk from that thread.
+ *
+ * @author Kitty Elliott
+ */
+final class OperationLog implements Closeable {
+    private static final int MAGIC = 0x434C4F47; // "CLOG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final byte
+            CREATE_CALENDAR = 1, DELETE_CALENDAR = 2, RENAME_CALENDAR = 3,
+            ADD_EVENT = 4, REMOVE_EVENT = 5, MODIFY_EVENT = 6, ADD_EVENTS = 7, REPLACE_EVENTS = 8;
+
+    private final File file;
+    // holds the records of the snapshot being written, while it is written
+    private final File previousFile;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    // the snapshot generation which the records extend
+    private long generation;
+    // true if the file holds a valid log of generation, exactly size bytes long
+    private boolean valid;
+    private long size;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private IOException failure;
+    // logs of a newer snapshot than the one replayed onto, which were moved aside by replay
+    private final List<File> orphans = new ArrayList<>();
+
+    /**
+     * @param file the file where the log is kept. It is not touched until it is first used.
+     */
+    OperationLog(File file) {
+        this.file = file;
+        this.previousFile = new File(file.getPath() + ".prev");
+    }
+
+    /**
+     * @return the number of bytes in the log
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Apply the records of the log to calendars which were loaded from a snapshot.
+     * If the log extends an older generation, its records are already in the snapshot,
+     * so it is ignored and will be replaced when the next record is appended. If it
+     * extends a newer generation, the snapshot is a backup loaded because the newer one
+     * was damaged; the log's records can't be applied to it, so the log is moved aside
+     * rather than replaced, and listed by {@link #orphans()}. A torn record at the end of
+     * the log is dropped. Records set aside for a newer snapshot which was never saved
+     * are applied first.
+     *
+     * @param generation the generation of the snapshot the calendars were loaded from
+     * @param calendars  the mapping of calendar names to calendars to apply the log to
+     * @return the number of records that were applied
+     * @throws IOException if the log could not be read, or its records do not fit the calendars
+     */
+    synchronized int replay(long generation, CalendarStore calendars) throws IOException {
+        close();
+        this.generation = generation;
+        valid = false;
+        size = 0;
+        int applied = 0;
+        if (previousFile.exists()) {
+            int records = replayFile(previousFile, generation, calendars);
+            if (records < 0 && previousFile.length() > HEADER_SIZE && generationOf(previousFile) > generation) {
+                setAside(previousFile);
+            } else if (records < 0) {
+                // the snapshot it belonged to was saved
+                if (!previousFile.delete()) {
+                    throw new IOException(String.format("Could not delete stale log at \"%s\"",
+                            previousFile.getAbsolutePath()));
+                }
+            } else {
+                // the snapshot it belonged to was not saved, so the log extends the next one
+                applied += records;
+                this.generation = generation + 1;
+            }
+        }
+        int records = replayFile(file, this.generation, calendars);
+        if (records >= 0) {
+            applied += records;
+            valid = true;
+            size = file.length();
+        } else if (generationOf(file) > this.generation && file.length() > HEADER_SIZE) {
+            setAside(file);
+        }
+        return applied;
+    }
+
+    /**
+     * @return the logs which {@link #replay} moved aside because they extend a newer
+     * snapshot than the one loaded, in the order they were moved
+     */
+    synchronized List<File> orphans() {
+        return new ArrayList<>(orphans);
+    }
+
+    /**
+     * @return the generation a log file extends, or -1 if it is not a log
+     */
+    private static long generationOf(File file) {
+        if (file.length() < HEADER_SIZE) return -1;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return -1;
+            return in.readLong();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * move a log which can't be replayed out of the way, so that it is not replaced
+     */
+    private void setAside(File log) throws IOException {
+        File orphan = new File(file.getPath() + ".orphan");
+        for (int n = 2; orphan.exists(); n++) {
+            orphan = new File(file.getPath() + ".orphan" + n);
+        }
+        if (!log.renameTo(orphan)) {
+            throw new IOException(String.format("Could not move aside log at \"%s\"", log.getAbsolutePath()));
+        }
+        orphans.add(orphan);
+    }
+
+    /**
+     * apply the records of one log file, and drop a torn record at its end
+     *
+     * @return the number of records applied, or -1 if the file is not a log of the generation
+     */
+    private int replayFile(File file, long generation, CalendarStore calendars)
+            throws IOException {
+        if (!file.exists()) return -1;
+        int applied = 0;
+        long goodLength = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (file.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != generation) {
+                return -1;
+            }
+            byte[] buf = new byte[256];
+            while (true) {
+                int length, checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > file.length()) break;
+                    if (buf.length < length) buf = new byte[length];
+                    in.readFully(buf, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buf, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+                apply(new DataInputStream(new ByteArrayInputStream(buf, 0, length)), calendars);
+                applied++;
+                goodLength += 8 + length;
+            }
+        }
+        if (file.length() > goodLength) {
+            // drop the torn record so that new records are appended after the last good one
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(goodLength);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Start a new, empty log which extends the given snapshot generation,
+     * replacing the contents of the file.
+     *
+     * @param generation the generation of the snapshot which was just saved
+     * @throws IOException if the file could not be written
+     */
+    synchronized void reset(long generation) throws IOException {
+        close();
+        this.generation = generation;
+        failure = null;
+        fileOut = new FileOutputStream(file);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+        out.flush();
+        valid = true;
+        size = HEADER_SIZE;
+    }
+
+    /**
+     * Set the records so far aside for a snapshot which is about to be written, and start
+     * a new, empty log which extends that snapshot. If an earlier snapshot failed to be
+     * written, the records are added to the ones set aside for it.
+     *
+     * @param generation the generation of the snapshot which is about to be written
+     * @throws IOException if the log could not be set aside
+     */
+    synchronized void rotate(long generation) throws IOException {
+        if (!valid) reset(this.generation);
+        close();
+        if (previousFile.exists()) {
+            try (FileInputStream in = new FileInputStream(file);
+                 FileOutputStream prev = new FileOutputStream(previousFile, true)) {
+                in.getChannel().transferTo(HEADER_SIZE, size - HEADER_SIZE, prev.getChannel());
+            }
+        } else if (!file.renameTo(previousFile)) {
+            throw new IOException(String.format("Could not set aside log at \"%s\"",
+                    file.getAbsolutePath()));
+        }
+        reset(generation);
+    }
+
+    /**
+     * Drop the records set aside by {@link #rotate(long)}, once the snapshot they were set
+     * aside for has been saved
+     */
+    synchronized void rotated() {
+        if (previousFile.exists() && !previousFile.delete()) {
+            failure = new IOException(String.format("Could not delete stale log at \"%s\"",
+                    previousFile.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Delete the file, for when there is no snapshot for it to extend
+     */
+    synchronized void discard() {
+        close();
+        valid = false;
+        size = 0;
+        for (File f : new File[]{file, previousFile}) {
+            if (f.exists() && !f.delete()) {
+                failure = new IOException(String.format("Could not delete stale log at \"%s\"",
+                        f.getAbsolutePath()));
+            }
+        }
+    }
+
+    /**
+     * @param name the name of the calendar which was created
+     */
+    synchronized void calendarCreated(String name) {
+        try {
+            record.writeByte(CREATE_CALENDAR);
+            writeString(record, name);
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param name the name of the calendar which was deleted
+     */
+    synchronized void calendarDeleted(String name) {
+        try {
+            record.writeByte(DELETE_CALENDAR);
+            writeString(record, name);
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param oldName the name of the calendar before it was renamed
+     * @param newName the name of the calendar after it was renamed
+     */
+    synchronized void calendarRenamed(String oldName, String newName) {
+        try {
+            record.writeByte(RENAME_CALENDAR);
+            writeString(record, oldName);
+            writeString(record, newName);
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param calName the name of the calendar to which the event was added
+     * @param event   the event which was added
+     */
+    synchronized void eventAdded(String calName, CalendarEvent event) {
+        try {
+            record.writeByte(ADD_EVENT);
+            writeString(record, calName);
+            writeEvent(record, event);
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Append one record for many events added at once, rather than one record each
+     *
+     * @param calName the name of the calendar to which the events were added
+     * @param events  the events which were added, in order
+     */
+    synchronized void eventsAdded(String calName, List<CalendarEvent> events) {
+        try {
+            record.writeByte(ADD_EVENTS);
+            writeString(record, calName);
+            record.writeInt(events.size());
+            for (CalendarEvent event : events) {
+                writeEvent(record, event);
+            }
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Append one record for many events removed and added at once
+     *
+     * @param calName the name of the calendar which changed
+     * @param indexes the positions the removed events held in the calendar's list of events,
+     *                in increasing order
+     * @param added   the events which were added after the others were removed, in order
+     */
+    synchronized void eventsReplaced(String calName, int[] indexes, List<CalendarEvent> added) {
+        try {
+            record.writeByte(REPLACE_EVENTS);
+            writeString(record, calName);
+            record.writeInt(indexes.length);
+            for (int index : indexes) {
+                record.writeInt(index);
+            }
+            record.writeInt(added.size());
+            for (CalendarEvent event : added) {
+                writeEvent(record, event);
+            }
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param calName the name of the calendar from which the event was removed
+     * @param index   the position the event held in the calendar's list of events
+     */
+    synchronized void eventRemoved(String calName, int index) {
+        try {
+            record.writeByte(REMOVE_EVENT);
+            writeString(record, calName);
+            record.writeInt(index);
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @param calName the name of the calendar holding the event
+     * @param index   the position of the event in the calendar's list of events
+     * @param event   the event, with its new values
+     */
+    synchronized void eventModified(String calName, int index, CalendarEvent event) {
+        try {
+            record.writeByte(MODIFY_EVENT);
+            writeString(record, calName);
+            record.writeInt(index);
+            writeEvent(record, event);
+            append();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Force every record appended so far to the disk
+     *
+     * @throws IOException if this or any earlier write to the log failed
+     */
+    synchronized void sync() throws IOException {
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+        if (out != null) {
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    /**
+     * Close the file, if it is open. Records which were already appended are kept.
+     */
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    /**
+     * write the pending record to the end of the file, opening it first if necessary
+     */
+    private void append() throws IOException {
+        try {
+            if (out == null) {
+                if (valid) {
+                    fileOut = new FileOutputStream(file, true);
+                    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                } else {
+                    reset(generation);
+                }
+            }
+            byte[] bytes = recordBytes.toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+            // hand the record to the OS, so that it survives the application crashing
+            out.flush();
+            size += 8 + bytes.length;
+        } finally {
+            recordBytes.reset();
+        }
+    }
+
+    private void fail(IOException e) {
+        recordBytes.reset();
+        if (failure == null) failure = e;
+    }
+
+    /**
+     * apply one record to the calendars
+     */
+    private static void apply(DataInputStream in, CalendarStore calendars) throws IOException {
+        byte op = in.readByte();
+        String name = readString(in);
+        if (op == CREATE_CALENDAR) {
+            calendars.put(name, new CalendarModel());
+            return;
+        }
+        if (!calendars.containsKey(name)) {
+            throw new IOException(String.format("Log refers to a missing calendar \"%s\"", name));
+        }
+        // deleting or renaming a calendar does not need it decoded
+        if (op == DELETE_CALENDAR) {
+            calendars.remove(name);
+            return;
+        }
+        if (op == RENAME_CALENDAR) {
+            calendars.rename(name, readString(in));
+            return;
+        }
+        CalendarModel model = calendars.get(name);
+        switch (op) {
+            case ADD_EVENT:
+                model.addEvent(readEvent(in, null));
+                break;
+            case ADD_EVENTS:
+                int count = in.readInt();
+                List<CalendarEvent> events = new ArrayList<>(Math.max(0, count));
+                for (int i = 0; i < count; i++) {
+                    events.add(readEvent(in, null));
+                }
+                model.addEvents(events);
+                break;
+            case REPLACE_EVENTS:
+                int removeCount = in.readInt();
+                List<CalendarEvent> removed = new ArrayList<>(Math.max(0, removeCount));
+                for (int i = 0; i < removeCount; i++) {
+                    removed.add(eventAt(model, in.readInt()));
+                }
+                int addCount = in.readInt();
+                List<CalendarEvent> added = new ArrayList<>(Math.max(0, addCount));
+                for (int i = 0; i < addCount; i++) {
+                    added.add(readEvent(in, null));
+                }
+                model.replaceEvents(removed, added);
+                break;
+            case REMOVE_EVENT:
+                model.removeEvent(eventAt(model, in.readInt()));
+                break;
+            case MODIFY_EVENT:
+                model.markModified(readEvent(in, eventAt(model, in.readInt())));
+                break;
+            default:
+                throw new IOException("Unknown record in log: " + op);
+        }
+    }
+
+    private static CalendarEvent eventAt(CalendarModel model, int index) throws IOException {
+        List<CalendarEvent> events = model.getAllEvents();
+        if (index < 0 || index >= events.size()) {
+            throw new IOException("Log refers to a missing event: " + index);
+        }
+        return events.get(index);
+    }
+
+    private static void writeEvent(DataOutputStream out, CalendarEvent e) throws IOException {
+        writeString(out, e.getTitle());
+        out.writeLong(e.getDate().toEpochDay());
+        out.writeLong(e.getStartTime().toNanoOfDay());
+        out.writeLong(e.getEndTime() == null ? -1 : e.getEndTime().toNanoOfDay());
+        writeString(out, e.getLocation());
+        writeString(out, e.getNotes());
+        out.writeInt(e.getColorRGB());
+    }
+
+    /**
+     * @param in     the record to read the event from
+     * @param target an event to overwrite with the values that are read, or null for a new event
+     * @return the event that was read
+     */
+    private static CalendarEvent readEvent(DataInputStream in, CalendarEvent target) throws IOException {
+        String title = readString(in);
+        LocalDate date = LocalDate.ofEpochDay(in.readLong());
+        LocalTime start = LocalTime.ofNanoOfDay(in.readLong());
+        long endNanos = in.readLong();
+        LocalTime end = endNanos < 0 ? null : LocalTime.ofNanoOfDay(endNanos);
+        String location = readString(in);
+        String notes = readString(in);
+        int color = in.readInt();
+        if (target == null) {
+            target = new CalendarEvent(title, date, start, end, location, notes);
+        } else {
+            target.setTitle(title);
+            target.setDate(date);
+            target.setStartTime(start);
+            target.setEndTime(end);
+            target.setLocation(location);
+            target.setNotes(notes);
+        }
+        target.setColorRGB(color);
+        return target;
+    }
+
+    /**
+     * write a possibly null string of any length
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
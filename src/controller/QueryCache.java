@@ -0,0 +1,190 @@
+package controller;
+
+import model.CalendarEvent;
+import model.CalendarModel;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Keeps the events of each calendar over the runs of days the views ask for, so that a run
+ * shown again, such as a month flipped back to or a view switched back to, is not looked up
+ * in the calendar again.
+ * <p>
+ * Each entry remembers the calendar it was read from and that calendar's
+ * {@link CalendarModel#getVersion() version} at the time, and is only used while the calendar
+ * is still at that version. A change to one calendar therefore only makes that calendar's
+ * entries stale, and they are read again when next asked for. Once there are more entries
+ * than the capacity, the least recently used are evicted.
+ * <p>
+ * The cache may be used from any thread.
+ *
+ * @author Kitty Elliott
+ */
+public final class QueryCache {
+    /**
+     * The number of entries kept unless {@link #setCapacity} is called: a calendar's months,
+     * weeks and days for a couple of years either side of today
+     */
+    public static final int DEFAULT_CAPACITY = 512;
+
+    // in order of use, least recent first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int capacity = DEFAULT_CAPACITY;
+    private long hits, misses, evictions;
+
+    QueryCache() {
+    }
+
+    /**
+     * Get the events of a calendar over a run of days, reading them from the calendar only
+     * if they are not cached at its current version. The calendar is read through
+     * {@link CalendarModel#read}, so this may be called from a thread other than the one
+     * which changes it.
+     *
+     * @param calName the name of the calendar
+     * @param model   the calendar
+     * @param first   the first day of the run
+     * @param numDays the number of days in the run
+     * @return the events of the calendar in the run, in order of start. The array is shared,
+     * so it must not be changed.
+     */
+    CalendarEvent[] getEventsByDay(String calName, CalendarModel model, LocalDate first, int numDays) {
+        Key key = new Key(calName, first, numDays);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.model == model && entry.version == model.getVersion()) {
+                hits++;
+                return entry.events;
+            }
+            misses++;
+        }
+        // read without holding the cache, so reads of other runs are not held up
+        LocalDateTime before = first.atStartOfDay().minusNanos(1);
+        LocalDateTime after = first.plusDays(numDays).atStartOfDay();
+        Entry read = model.read(() -> {
+            // the version is read first, so a change made in between makes the entry stale
+            // rather than the events
+            long version = model.getVersion();
+            return new Entry(model, version, model.getEventsInRange(before, after));
+        });
+        synchronized (this) {
+            entries.put(key, read);
+            evict();
+        }
+        return read.events;
+    }
+
+    /**
+     * Set the number of entries kept, evicting the least recently used if there are more
+     *
+     * @param capacity the number of entries to keep, or 0 to keep none
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * @return the number of entries kept
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the hits, misses and evictions so far, and the number of entries held
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, entries.size(), capacity);
+    }
+
+    private void evict() {
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (entries.size() > capacity) {
+            oldest.next();
+            oldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * How well the cache has done so far, for choosing its capacity
+     */
+    public static final class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int size;
+        public final int capacity;
+
+        private Stats(long hits, long misses, long evictions, int size, int capacity) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return the fraction of lookups which were hits, or 0 if there were none
+         */
+        public double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.0f%% hit), %d evictions, %d of %d entries",
+                    hits, misses, 100 * hitRate(), evictions, size, capacity);
+        }
+    }
+
+    /**
+     * a calendar and a run of days
+     */
+    private static final class Key {
+        final String calName;
+        final LocalDate first;
+        final int numDays;
+
+        Key(String calName, LocalDate first, int numDays) {
+            this.calName = calName;
+            this.first = first;
+            this.numDays = numDays;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return numDays == k.numDays && calName.equals(k.calName) && first.equals(k.first);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(calName, first, numDays);
+        }
+    }
+
+    /**
+     * the events of a run of days, and the calendar and version they were read from
+     */
+    private static final class Entry {
+        final CalendarModel model;
+        final long version;
+        final CalendarEvent[] events;
+
+        Entry(CalendarModel model, long version, CalendarEvent[] events) {
+            this.model = model;
+            this.version = version;
+            this.events = events;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package controller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps the snapshot of the calendars in a directory, with one file per calendar and a
+ * small manifest naming the file of each calendar. Each calendar's file is written once
+ * and never changed; a changed calendar is written to a new file. Saving therefore only
+ * writes the calendars which changed, and the manifest, so renaming, creating or deleting
+ * a calendar leaves every other calendar's file alone. Calendar files are written, and
+ * read, in parallel.
+ * <p>
+ * Files which are no longer named by the manifest or any of its backups are deleted
+ * after each save.
+ *
+ * @author Kitty Elliott
+ */
+final class ShardedStorage extends SnapshotStorage {
+    private static final String MANIFEST = "manifest";
+    private static final String SHARD_SUFFIX = ".cal";
+
+    private final File dir;
+    private final File manifest;
+    private volatile long size;
+
+    /**
+     * @param dir the directory where the snapshot is kept
+     */
+    ShardedStorage(File dir) {
+        this.dir = dir;
+        this.manifest = new File(dir, MANIFEST);
+    }
+
+    @Override
+    boolean exists() {
+        return manifest.exists();
+    }
+
+    @Override
+    SnapshotFormat.Snapshot load() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i <= BACKUP_COUNT; i++) {
+            File f = i == 0 ? manifest : backupFile(manifest, i);
+            if (!f.exists()) continue;
+            try {
+                SnapshotFormat.Manifest loaded = SnapshotFormat.readManifest(SnapshotFormat.readFully(f));
+                List<CalendarStore.Block> blocks = blocksOf(loaded);
+                if (i > 0) restore(f, manifest);
+                SnapshotFormat.Snapshot snapshot = new SnapshotFormat.Snapshot(new CalendarStore(blocks),
+                        loaded.generation);
+                snapshot.fellBackFrom = failure;
+                return snapshot;
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new IOException(String.format("Error loading the calendar manifest at \"%s\"\n",
+                            f.getAbsolutePath()), e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * find the file of each calendar in a manifest, and check that it is all there
+     */
+    private List<CalendarStore.Block> blocksOf(SnapshotFormat.Manifest loaded) throws IOException {
+        List<CalendarStore.Block> blocks = new ArrayList<>(loaded.entries.size());
+        long total = 0;
+        for (int i = 0; i < loaded.entries.size(); i++) {
+            SnapshotFormat.DirectoryEntry entry = loaded.entries.get(i);
+            File shard = new File(dir, loaded.files.get(i));
+            if (shard.length() != entry.length) {
+                throw new IOException(String.format("Calendar file \"%s\" is missing or torn",
+                        shard.getAbsolutePath()));
+            }
+            blocks.add(new CalendarStore.Block(shard, entry));
+            total += entry.length;
+        }
+        size = total;
+        return blocks;
+    }
+
+    @Override
+    void clear() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.getName().startsWith(MANIFEST) || f.getName().endsWith(SHARD_SUFFIX)) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+    }
+
+    @Override
+    List<CalendarStore.Block> save(CalendarStore.Frozen calendars, long generation) throws IOException {
+        int n = calendars.names.size();
+        SnapshotFormat.DirectoryEntry[] entries = new SnapshotFormat.DirectoryEntry[n];
+        File[] shards = new File[n];
+        try {
+            IntStream.range(0, n).parallel().forEach(i -> {
+                try {
+                    writeShard(calendars, i, entries, shards);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // the new calendar files must be on disk before the manifest names them
+        forceDirectory(dir);
+
+        List<String> names = new ArrayList<>(n);
+        for (File shard : shards) {
+            names.add(shard.getName());
+        }
+        SnapshotFormat.Manifest saved = new SnapshotFormat.Manifest(generation, Arrays.asList(entries), names);
+        replace(manifest, out -> SnapshotFormat.writeManifest(saved, out));
+
+        deleteUnusedShards(names);
+        List<CalendarStore.Block> blocks = new ArrayList<>(n);
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            blocks.add(new CalendarStore.Block(shards[i], entries[i]));
+            total += entries[i].length;
+        }
+        size = total;
+        return blocks;
+    }
+
+    /**
+     * write the file of one calendar, unless it has not changed since it was written
+     */
+    private void writeShard(CalendarStore.Frozen calendars, int i, SnapshotFormat.DirectoryEntry[] entries,
+                            File[] shards) throws IOException {
+        CalendarStore.Block saved = calendars.savedBlock(i);
+        String name = calendars.names.get(i);
+        if (saved != null && saved.file() != null && dir.equals(saved.file().getParentFile())) {
+            // the entry's name may be out of date if the calendar was renamed
+            SnapshotFormat.DirectoryEntry e = saved.entry;
+            entries[i] = new SnapshotFormat.DirectoryEntry(name, 0, e.length, e.eventCount, e.checksum);
+            shards[i] = saved.file();
+            return;
+        }
+        byte[] block = calendars.encodeBlock(i);
+        File shard = File.createTempFile("cal", SHARD_SUFFIX, dir);
+        try (FileOutputStream out = new FileOutputStream(shard)) {
+            out.write(block);
+            out.getFD().sync();
+        }
+        entries[i] = SnapshotFormat.describeBlock(name, block);
+        shards[i] = shard;
+    }
+
+    /**
+     * delete the calendar files which neither the manifest nor any of its backups name
+     */
+    private void deleteUnusedShards(List<String> used) {
+        Set<String> keep = new HashSet<>(used);
+        for (int i = 1; i <= BACKUP_COUNT; i++) {
+            File backup = backupFile(manifest, i);
+            if (!backup.exists()) continue;
+            try {
+                // manifests are small, so reading them is cheap, and leaves no mapping
+                // holding the backups open while they are rotated
+                keep.addAll(SnapshotFormat.readManifest(SnapshotFormat.readFully(backup)).files);
+            } catch (IOException e) {
+                // a corrupt backup can't be fallen back to, so its files aren't needed
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.getName().endsWith(SHARD_SUFFIX) && !keep.contains(f.getName()) && !f.delete()) {
+                new IOException(String.format("Could not delete unused calendar file \"%s\"",
+                        f.getAbsolutePath())).printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+}
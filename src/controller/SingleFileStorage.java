@@ -0,0 +1,85 @@
+package controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Keeps the snapshot of all the calendars in one file
+ *
+ * @author Kitty Elliott
+ */
+final class SingleFileStorage extends SnapshotStorage {
+    private final File file;
+    private volatile long size;
+
+    /**
+     * @param file the file where the snapshot is kept
+     */
+    SingleFileStorage(File file) {
+        this.file = file;
+    }
+
+    @Override
+    boolean exists() {
+        return file.exists();
+    }
+
+    @Override
+    SnapshotFormat.Snapshot load() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i <= BACKUP_COUNT; i++) {
+            File f = i == 0 ? file : backupFile(file, i);
+            if (!f.exists()) continue;
+            try {
+                SnapshotFormat.Snapshot loaded = SnapshotFormat.read(f);
+                size = f.length();
+                if (i > 0) restore(f, file);
+                loaded.fellBackFrom = failure;
+                return loaded;
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new IOException(String.format("Error loading the calendar file at \"%s\"\n",
+                            f.getAbsolutePath()), e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    @Override
+    void clear() throws IOException {
+        for (int i = 1; i <= BACKUP_COUNT; i++) {
+            Files.deleteIfExists(backupFile(file, i).toPath());
+        }
+    }
+
+    @Override
+    List<CalendarStore.Block> save(CalendarStore.Frozen calendars, long generation) throws IOException {
+        // the new snapshot is kept in memory, so the calendars not yet decoded are read from
+        // it rather than from a file which the next save will replace
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SnapshotFormat.write(calendars, generation, bytes);
+        replace(file, bytes::writeTo);
+        size = bytes.size();
+        try {
+            ByteBuffer snapshot = ByteBuffer.wrap(bytes.toByteArray());
+            SnapshotFormat.readGeneration(snapshot);
+            return SnapshotFormat.blocksOf(snapshot, SnapshotFormat.readDirectory(snapshot));
+        } catch (IOException e) {
+            // the old snapshot is still readable, so keep using it
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+}
@@ -0,0 +1,618 @@
+package controller;
+
+import model.CalendarEvent;
+import model.CalendarModel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the snapshot of the calendars kept in the calendar file.
+ * <p>
+ * The file starts with a header holding a version, the snapshot generation, and a directory
+ * of the calendars with the offset and length of each one's block. A block stores its events
+ * column by column: epoch-days, minutes of the day, packed RGB colors, and references into a
+ * table of the distinct strings in the block. This is several times smaller than Java
+ * serialization of the same events, and is decoded without any reflection.
+ * <pre>
+ * file:  int magic, int version, long generation, int count,
+ *        count * (string name, long offset, int length, int eventCount, int blockCrc),
+ *        int headerCrc, count * block
+ * block: int eventCount, int stringCount, stringCount * string,
+ *        int[] epochDay, int[] startMinute, int[] endMinute (-1: no end time), int[] colorRGB,
+ *        int[] title, int[] location, int[] notes (indexes into the strings, -1: null),
+ *        byte flags, [long[] startNanos if flags &amp; 1], [long[] endNanos if flags &amp; 2]
+ * string: int byteLength, UTF-8 bytes
+ * </pre>
+ * The nanosecond columns, holding the part of a time finer than a minute, are only
+ * present if any event in the block needs them.
+ * <p>
+ * The header and directory are covered by a CRC32, and so is each block. A file which was
+ * torn or truncated is detected when it is opened, by the header's checksum and by the
+ * file's length, which must end exactly at the last block. A block's checksum is checked
+ * whenever the block is decoded or copied, so opening a snapshot still reads only its header.
+ * <p>
+ * A snapshot may also be split into one file per calendar, holding just its block,
+ * and a manifest which lists the files:
+ * <pre>
+ * manifest: int magic, int version, long generation, int count,
+ *           count * (string name, string file, int length, int eventCount, int blockCrc),
+ *           int headerCrc
+ * </pre>
+ * <p>
+ * Files written by earlier versions, which hold a Java-serialized {@code HashMap},
+ * are still read so that they can be migrated.
+ *
+ * @author Kitty Elliott
+ */
+final class SnapshotFormat {
+    static final int MAGIC = 0x43414C53; // "CALS"
+    static final int VERSION = 2;
+    static final int MANIFEST_MAGIC = 0x43414C4D; // "CALM"
+    // first two bytes of a Java serialization stream
+    private static final int LEGACY_MAGIC = 0xACED;
+    private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final byte HAS_START_NANOS = 1, HAS_END_NANOS = 2;
+
+    private SnapshotFormat() {
+    }
+
+    /**
+     * The contents of a snapshot
+     */
+    static final class Snapshot {
+        final CalendarStore calendars;
+        final long generation;
+        // why the newest snapshot could not be loaded, if this is a backup loaded instead
+        IOException fellBackFrom;
+        // whether the snapshot was written by Java serialization, and so should be migrated
+        boolean legacy;
+
+        Snapshot(CalendarStore calendars, long generation) {
+            this.calendars = calendars;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * One calendar's entry in the directory at the start of a snapshot
+     */
+    static final class DirectoryEntry {
+        final String name;
+        final long offset;
+        final int length;
+        final int eventCount;
+        final int checksum;
+
+        DirectoryEntry(String name, long offset, int length, int eventCount, int checksum) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.eventCount = eventCount;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Open a snapshot in either the current or the legacy format. A snapshot in the current
+     * format is read into memory and only its directory is parsed; each calendar is decoded
+     * the first time it is looked up. The file is not held open or mapped, so it may be
+     * replaced, renamed or deleted while the calendars are in use, on any platform.
+     *
+     * @param file the file to read
+     * @return the calendars and generation of the snapshot
+     * @throws IOException if the file could not be read, or is torn or corrupt
+     */
+    static Snapshot read(File file) throws IOException {
+        ByteBuffer buf = readFully(file);
+        if (buf.remaining() >= 2 && (buf.getShort(0) & 0xFFFF) == LEGACY_MAGIC) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                return readLegacy(in);
+            }
+        }
+        long generation = readGeneration(buf);
+        return new Snapshot(new CalendarStore(blocksOf(buf, readDirectory(buf))), generation);
+    }
+
+    /**
+     * @param buf       a whole snapshot
+     * @param directory the snapshot's directory
+     * @return the block of each calendar in the snapshot, in the order of the directory
+     */
+    static List<CalendarStore.Block> blocksOf(ByteBuffer buf, List<DirectoryEntry> directory) {
+        List<CalendarStore.Block> blocks = new ArrayList<>(directory.size());
+        for (DirectoryEntry entry : directory) {
+            blocks.add(new CalendarStore.Block(buf, entry));
+        }
+        return blocks;
+    }
+
+    /**
+     * Read a whole file into memory. The file is not mapped, since a mapped file can't be
+     * released until the mapping is garbage collected, and on some platforms can't be
+     * renamed over or deleted until then.
+     *
+     * @param file the file to read
+     * @return the file's contents
+     * @throws IOException if the file could not be read
+     */
+    static ByteBuffer readFully(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Calendar snapshot is too large: " + channel.size() + " bytes");
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    throw new EOFException("Calendar file \"" + file.getAbsolutePath() + "\" was truncated while reading");
+                }
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /**
+     * Write a snapshot in the current format
+     *
+     * @param calendars  the calendars to write. Those which had not been decoded are
+     *                   copied without decoding them.
+     * @param generation the generation of the snapshot
+     * @param out        where to write the snapshot. Is not closed.
+     * @throws IOException if the snapshot could not be written
+     */
+    static void write(CalendarStore.Frozen calendars, long generation, OutputStream out)
+            throws IOException {
+        writeFile(calendars.names, calendars.encodeBlocks(), generation, out);
+    }
+
+    /**
+     * Write a snapshot out of already encoded blocks
+     *
+     * @param names      the names of the calendars
+     * @param blocks     the encoded block of each calendar, in the same order as the names
+     * @param generation the generation of the snapshot
+     * @param out        where to write the snapshot. Is not closed.
+     * @throws IOException if the snapshot could not be written
+     */
+    static void writeFile(List<String> names, List<byte[]> blocks, long generation, OutputStream out)
+            throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        byte[][] encodedNames = new byte[names.size()][];
+        long offset = 4 + 4 + 8 + 4 + 4;
+        for (int i = 0; i < names.size(); i++) {
+            encodedNames[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            offset += 4 + encodedNames[i].length + 8 + 4 + 4 + 4;
+        }
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(generation);
+        header.writeInt(names.size());
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < names.size(); i++) {
+            byte[] block = blocks.get(i);
+            header.writeInt(encodedNames[i].length);
+            header.write(encodedNames[i]);
+            header.writeLong(offset);
+            header.writeInt(block.length);
+            header.writeInt(ByteBuffer.wrap(block).getInt(0));
+            crc.reset();
+            crc.update(block, 0, block.length);
+            header.writeInt((int) crc.getValue());
+            offset += block.length;
+        }
+        crc.reset();
+        crc.update(headerBytes.toByteArray(), 0, headerBytes.size());
+        header.writeInt((int) crc.getValue());
+
+        BufferedOutputStream data = new BufferedOutputStream(out, 1 << 16);
+        headerBytes.writeTo(data);
+        for (byte[] block : blocks) {
+            data.write(block);
+        }
+        data.flush();
+    }
+
+    /**
+     * Read the header of a snapshot in the current format
+     *
+     * @param buf the snapshot, positioned at its start. Is left positioned at the directory.
+     * @return the generation of the snapshot
+     * @throws IOException if the header is not valid
+     */
+    static long readGeneration(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 16 || buf.getInt() != MAGIC) {
+            throw new IOException("Not a calendar snapshot");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported calendar snapshot version: " + version);
+        }
+        return buf.getLong();
+    }
+
+    /**
+     * Read the directory of a snapshot in the current format, and check that neither it nor
+     * the header are corrupt, and that the file is as long as the directory says
+     *
+     * @param buf the snapshot, positioned just after the header
+     * @return the directory entry of each calendar
+     * @throws IOException if the directory is corrupt, or the file is truncated
+     */
+    static List<DirectoryEntry> readDirectory(ByteBuffer buf) throws IOException {
+        List<DirectoryEntry> directory;
+        long end;
+        try {
+            int count = buf.getInt();
+            directory = new ArrayList<>(Math.min(count, 1024));
+            end = 0;
+            for (int i = 0; i < count; i++) {
+                String name = readString(buf);
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                int eventCount = buf.getInt();
+                int checksum = buf.getInt();
+                directory.add(new DirectoryEntry(name, offset, length, eventCount, checksum));
+                end = offset + length;
+            }
+            if (count == 0) end = buf.position() + 4;
+        } catch (RuntimeException e) {
+            throw new IOException("Calendar snapshot directory is corrupt", e);
+        }
+        if (buf.remaining() < 4) {
+            throw new IOException("Calendar snapshot is truncated");
+        }
+        int headerLength = buf.position();
+        CRC32 crc = new CRC32();
+        ByteBuffer header = buf.duplicate();
+        header.position(0).limit(headerLength);
+        crc.update(header);
+        if ((int) crc.getValue() != buf.getInt()) {
+            throw new IOException("Calendar snapshot directory is corrupt");
+        }
+        if (end != buf.limit()) {
+            throw new IOException(String.format("Calendar snapshot is %d bytes long instead of %d",
+                    buf.limit(), end));
+        }
+        return directory;
+    }
+
+    /**
+     * The contents of the manifest of a snapshot which is split into one file per calendar
+     */
+    static final class Manifest {
+        final long generation;
+        final List<DirectoryEntry> entries;
+        // the name of the file holding each calendar's block, in the same order as the entries
+        final List<String> files;
+
+        Manifest(long generation, List<DirectoryEntry> entries, List<String> files) {
+            this.generation = generation;
+            this.entries = entries;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Describe a block which is kept in a file of its own
+     *
+     * @param name  the name of the calendar
+     * @param block the encoded block
+     * @return the block's entry for a manifest
+     */
+    static DirectoryEntry describeBlock(String name, byte[] block) {
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, block.length);
+        return new DirectoryEntry(name, 0, block.length, ByteBuffer.wrap(block).getInt(0), (int) crc.getValue());
+    }
+
+    /**
+     * Write the manifest of a snapshot which is split into one file per calendar
+     *
+     * @param manifest the contents of the manifest
+     * @param out      where to write the manifest. Is not closed.
+     * @throws IOException if the manifest could not be written
+     */
+    static void writeManifest(Manifest manifest, OutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MANIFEST_MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(manifest.generation);
+        data.writeInt(manifest.entries.size());
+        for (int i = 0; i < manifest.entries.size(); i++) {
+            DirectoryEntry entry = manifest.entries.get(i);
+            writeString(data, entry.name);
+            writeString(data, manifest.files.get(i));
+            data.writeInt(entry.length);
+            data.writeInt(entry.eventCount);
+            data.writeInt(entry.checksum);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        data.writeInt((int) crc.getValue());
+        bytes.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read the manifest of a snapshot which is split into one file per calendar
+     *
+     * @param buf the whole manifest
+     * @return the contents of the manifest
+     * @throws IOException if the manifest is torn or corrupt
+     */
+    static Manifest readManifest(ByteBuffer buf) throws IOException {
+        try {
+            if (buf.remaining() < 24 || buf.getInt() != MANIFEST_MAGIC) {
+                throw new IOException("Not a calendar manifest");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported calendar manifest version: " + version);
+            }
+            long generation = buf.getLong();
+            int count = buf.getInt();
+            List<DirectoryEntry> entries = new ArrayList<>(Math.min(count, 1024));
+            List<String> files = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                String name = readString(buf);
+                files.add(readString(buf));
+                entries.add(new DirectoryEntry(name, 0, buf.getInt(), buf.getInt(), buf.getInt()));
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer header = buf.duplicate();
+            header.position(0).limit(buf.position());
+            crc.update(header);
+            if ((int) crc.getValue() != buf.getInt() || buf.hasRemaining()) {
+                throw new IOException("Calendar manifest is corrupt");
+            }
+            return new Manifest(generation, entries, files);
+        } catch (RuntimeException e) {
+            throw new IOException("Calendar manifest is corrupt", e);
+        }
+    }
+
+    /**
+     * Decode the block of one calendar
+     *
+     * @param buf   the whole snapshot
+     * @param entry the calendar's entry in the directory
+     * @return the calendar
+     * @throws IOException if the block is corrupt
+     */
+    static CalendarModel readBlock(ByteBuffer buf, DirectoryEntry entry) throws IOException {
+        ByteBuffer block = checkedBlock(buf, entry);
+        try {
+            return new CalendarModel(decodeBlock(block));
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("Calendar \"%s\" in snapshot is corrupt", entry.name), e);
+        }
+    }
+
+    /**
+     * Copy the block of one calendar, without decoding it
+     *
+     * @param buf   the whole snapshot
+     * @param entry the calendar's entry in the directory
+     * @return the encoded block
+     * @throws IOException if the block is corrupt
+     */
+    static byte[] copyBlock(ByteBuffer buf, DirectoryEntry entry) throws IOException {
+        byte[] bytes = new byte[entry.length];
+        checkedBlock(buf, entry).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * find the block of one calendar, and check that it is not corrupt
+     */
+    private static ByteBuffer checkedBlock(ByteBuffer buf, DirectoryEntry entry) throws IOException {
+        if (entry.offset + entry.length > buf.capacity()) {
+            throw new IOException(String.format("Calendar \"%s\" in snapshot is truncated", entry.name));
+        }
+        ByteBuffer block = buf.duplicate();
+        block.limit((int) (entry.offset + entry.length)).position((int) entry.offset);
+        block = block.slice();
+        CRC32 crc = new CRC32();
+        crc.update(block.duplicate());
+        if ((int) crc.getValue() != entry.checksum) {
+            throw new IOException(String.format("Calendar \"%s\" in snapshot is corrupt", entry.name));
+        }
+        return block;
+    }
+
+    /**
+     * Encode the events of one calendar as a block
+     *
+     * @param events the events of the calendar, in order
+     * @return the encoded block
+     */
+    static byte[] encodeBlock(List<CalendarEvent> events) {
+        final int n = events.size();
+        Map<String, Integer> stringRefs = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] epochDay = new int[n], startMinute = new int[n], endMinute = new int[n], color = new int[n],
+                title = new int[n], location = new int[n], notes = new int[n];
+        long[] startNanos = new long[n], endNanos = new long[n];
+        byte flags = 0;
+        int stringBytes = 0;
+        for (int i = 0; i < n; i++) {
+            CalendarEvent e = events.get(i);
+            epochDay[i] = (int) e.getDate().toEpochDay();
+            long start = e.getStartTime().toNanoOfDay();
+            startMinute[i] = (int) (start / NANOS_PER_MINUTE);
+            startNanos[i] = start % NANOS_PER_MINUTE;
+            if (startNanos[i] != 0) flags |= HAS_START_NANOS;
+            if (e.getEndTime() == null) {
+                endMinute[i] = -1;
+            } else {
+                long end = e.getEndTime().toNanoOfDay();
+                endMinute[i] = (int) (end / NANOS_PER_MINUTE);
+                endNanos[i] = end % NANOS_PER_MINUTE;
+                if (endNanos[i] != 0) flags |= HAS_END_NANOS;
+            }
+            color[i] = e.getColorRGB();
+            String[] fields = {e.getTitle(), e.getLocation(), e.getNotes()};
+            int[] refs = new int[3];
+            for (int f = 0; f < 3; f++) {
+                if (fields[f] == null) {
+                    refs[f] = -1;
+                    continue;
+                }
+                Integer ref = stringRefs.get(fields[f]);
+                if (ref == null) {
+                    ref = strings.size();
+                    stringRefs.put(fields[f], ref);
+                    byte[] bytes = fields[f].getBytes(StandardCharsets.UTF_8);
+                    strings.add(bytes);
+                    stringBytes += 4 + bytes.length;
+                }
+                refs[f] = ref;
+            }
+            title[i] = refs[0];
+            location[i] = refs[1];
+            notes[i] = refs[2];
+        }
+
+        int size = 4 + 4 + stringBytes + 7 * 4 * n + 1
+                + ((flags & HAS_START_NANOS) != 0 ? 8 * n : 0)
+                + ((flags & HAS_END_NANOS) != 0 ? 8 * n : 0);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(n);
+        buf.putInt(strings.size());
+        for (byte[] s : strings) {
+            buf.putInt(s.length).put(s);
+        }
+        for (int[] column : new int[][]{epochDay, startMinute, endMinute, color, title, location, notes}) {
+            buf.asIntBuffer().put(column);
+            buf.position(buf.position() + 4 * n);
+        }
+        buf.put(flags);
+        if ((flags & HAS_START_NANOS) != 0) {
+            buf.asLongBuffer().put(startNanos);
+            buf.position(buf.position() + 8 * n);
+        }
+        if ((flags & HAS_END_NANOS) != 0) {
+            buf.asLongBuffer().put(endNanos);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decode the events of a block
+     *
+     * @param block the block, positioned at its start
+     * @return the events, in order
+     */
+    private static List<CalendarEvent> decodeBlock(ByteBuffer block) {
+        final int n = block.getInt();
+        String[] strings = new String[block.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(block);
+        }
+        final int epochDay = block.position(), startMinute = epochDay + 4 * n, endMinute = startMinute + 4 * n,
+                color = endMinute + 4 * n, title = color + 4 * n, location = title + 4 * n,
+                notes = location + 4 * n, flagsAt = notes + 4 * n;
+        final byte flags = block.get(flagsAt);
+        final int startNanos = flagsAt + 1;
+        final int endNanos = startNanos + ((flags & HAS_START_NANOS) != 0 ? 8 * n : 0);
+
+        // times and dates repeat a lot, and are immutable, so share them between events
+        LocalTime[] minutes = new LocalTime[MINUTES_PER_DAY];
+        LocalDate[] dates = new LocalDate[1 << 12];
+        List<CalendarEvent> events = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int day = block.getInt(epochDay + 4 * i);
+            LocalDate date = dates[day & (dates.length - 1)];
+            if (date == null || date.toEpochDay() != day) {
+                date = dates[day & (dates.length - 1)] = LocalDate.ofEpochDay(day);
+            }
+            LocalTime start = timeOf(minutes, block.getInt(startMinute + 4 * i),
+                    (flags & HAS_START_NANOS) != 0 ? block.getLong(startNanos + 8 * i) : 0);
+            int endMin = block.getInt(endMinute + 4 * i);
+            LocalTime end = endMin < 0 ? null : timeOf(minutes, endMin,
+                    (flags & HAS_END_NANOS) != 0 ? block.getLong(endNanos + 8 * i) : 0);
+            CalendarEvent e = new CalendarEvent(
+                    stringAt(strings, block.getInt(title + 4 * i)),
+                    date, start, end,
+                    stringAt(strings, block.getInt(location + 4 * i)),
+                    stringAt(strings, block.getInt(notes + 4 * i)));
+            int rgb = block.getInt(color + 4 * i);
+            if (rgb >= 0) e.setColorRGB(rgb);
+            events.add(e);
+        }
+        return events;
+    }
+
+    private static LocalTime timeOf(LocalTime[] minutes, int minute, long nanos) {
+        if (nanos != 0) {
+            return LocalTime.ofNanoOfDay(minute * NANOS_PER_MINUTE + nanos);
+        }
+        LocalTime t = minutes[minute];
+        if (t == null) {
+            t = minutes[minute] = LocalTime.of(minute / 60, minute % 60);
+        }
+        return t;
+    }
+
+    private static String stringAt(String[] strings, int ref) {
+        return ref < 0 ? null : strings[ref];
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a snapshot written by Java serialization, optionally followed by a generation
+     *
+     * @param in the snapshot
+     * @return the calendars and generation of the snapshot
+     * @throws IOException if the snapshot could not be read or is corrupt
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Snapshot readLegacy(InputStream in) throws IOException {
+        HashMap loaded;
+        long generation;
+        try (ObjectInputStream objIn = new ObjectInputStream(in)) {
+            loaded = (HashMap) objIn.readObject();
+            try {
+                generation = objIn.readLong();
+            } catch (EOFException e) {
+                // saved before snapshots had generations
+                generation = 0;
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Calendar snapshot is corrupted", e);
+        }
+        Set<Map.Entry> loadedEntries = loaded.entrySet();
+        for (Map.Entry e : loadedEntries) {
+            if (!(e.getKey() instanceof String && e.getValue() instanceof CalendarModel)) {
+                throw new IOException("Calendar snapshot is corrupted");
+            }
+        }
+        CalendarStore calendars = new CalendarStore();
+        calendars.putAll((HashMap<String, CalendarModel>) loaded);
+        Snapshot snapshot = new Snapshot(calendars, generation);
+        snapshot.legacy = true;
+        return snapshot;
+    }
+}
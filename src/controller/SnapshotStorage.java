@@ -0,0 +1,155 @@
+package controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Where the snapshots of the calendars are kept on disk. Every file is replaced by writing
+ * its new contents to a temporary file, forcing it to disk, and renaming it into place,
+ * so a crash never leaves a file half written. The replaced versions of the file which
+ * names the calendars are kept as backups, to fall back to if it is ever corrupt.
+ *
+ * @author Kitty Elliott
+ */
+abstract class SnapshotStorage {
+    /**
+     * The number of older versions kept next to the file which names the calendars,
+     * as file.1 (the newest) to file.BACKUP_COUNT
+     */
+    static final int BACKUP_COUNT = 3;
+
+    /**
+     * @return true if there is a snapshot to load
+     */
+    abstract boolean exists();
+
+    /**
+     * Load the newest snapshot. If it is torn or corrupt, the newest backup which is
+     * valid is loaded instead, and put back in its place. Calendars are not decoded.
+     *
+     * @return the calendars and generation of the snapshot, and why the newest snapshot
+     * could not be loaded if a backup was
+     * @throws IOException if neither the snapshot nor any backup could be read
+     */
+    abstract SnapshotFormat.Snapshot load() throws IOException;
+
+    /**
+     * Delete anything left over from an earlier snapshot which no longer exists
+     *
+     * @throws IOException if a file could not be deleted
+     */
+    abstract void clear() throws IOException;
+
+    /**
+     * Save the calendars as the new snapshot. Returns only once the snapshot is on disk.
+     *
+     * @param calendars  a copy of the calendars
+     * @param generation the generation of the new snapshot
+     * @return the block of each calendar in the new snapshot, in the same order as the
+     * names of the copy, or null if the new snapshot could not be opened after it was saved
+     * @throws IOException if the snapshot could not be saved. The old snapshot is left as it was.
+     */
+    abstract List<CalendarStore.Block> save(CalendarStore.Frozen calendars, long generation) throws IOException;
+
+    /**
+     * @return the size in bytes of the newest snapshot which was loaded or saved
+     */
+    abstract long size();
+
+    /**
+     * Something to write as the contents of a file
+     */
+    interface Contents {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Replace a file with new contents, keeping the old contents as its newest backup
+     *
+     * @param file     the file to replace
+     * @param contents the new contents of the file
+     * @throws IOException if the file could not be written
+     */
+    static void replace(File file, Contents contents) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                contents.writeTo(Channels.newOutputStream(channel));
+                channel.force(true);
+            }
+            rotateBackups(file);
+            Files.move(tmpFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(file.getAbsoluteFile().getParentFile());
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Put a backup of a file back in place of the file
+     *
+     * @param backup the backup
+     * @param file   the file to replace with it
+     * @throws IOException if the file could not be replaced
+     */
+    static void restore(File backup, File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Files.copy(backup.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file a file with backups
+     * @param n    which backup, 1 being the newest
+     * @return the file holding the backup
+     */
+    static File backupFile(File file, int n) {
+        return new File(file.getPath() + "." + n);
+    }
+
+    /**
+     * shift the backups of a file along by one, dropping the oldest, and make the file
+     * the newest backup. The file is linked rather than moved, so that it always exists.
+     */
+    private static void rotateBackups(File file) throws IOException {
+        if (!file.exists()) return;
+        for (int i = BACKUP_COUNT - 1; i >= 1; i--) {
+            if (backupFile(file, i).exists()) {
+                Files.move(backupFile(file, i).toPath(), backupFile(file, i + 1).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.deleteIfExists(backupFile(file, 1).toPath());
+        try {
+            Files.createLink(backupFile(file, 1).toPath(), file.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            // not every file system has hard links
+            Files.copy(file.toPath(), backupFile(file, 1).toPath());
+        }
+    }
+
+    /**
+     * Force the files created in or renamed into a directory to disk
+     *
+     * @param dir the directory
+     */
+    static void forceDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on every platform. renames are
+            // still atomic, they may just not survive a power failure
+        }
+    }
+}
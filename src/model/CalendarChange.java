@@ -0,0 +1,120 @@
+package model;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Describes everything that changed in a calendar in one notification, as one
+ * {@link EventChange} per event. Changes made during a batch are coalesced: an event which
+ * was added and then removed does not appear at all, an event which was added and then
+ * modified only appears as added, and an event which was removed and added back again
+ * appears as modified.
+ *
+ * @author Kitty Elliott
+ */
+public final class CalendarChange {
+    // in the order each event first changed. events do not override equals
+    private final Map<CalendarEvent, EventChange> changes = new LinkedHashMap<>();
+
+    CalendarChange() {
+    }
+
+    /**
+     * @return the change of each event which changed, in the order they first changed
+     */
+    public Collection<EventChange> getChanges() {
+        return Collections.unmodifiableCollection(changes.values());
+    }
+
+    /**
+     * @return the events which were added, in the order they were added
+     */
+    public Set<CalendarEvent> getAdded() {
+        return eventsOf(EventChange.Added.class);
+    }
+
+    /**
+     * @return the events which were removed, in the order they were removed
+     */
+    public Set<CalendarEvent> getRemoved() {
+        return eventsOf(EventChange.Removed.class);
+    }
+
+    /**
+     * @return the events which were in the calendar before the change, are still in it,
+     * and were modified
+     */
+    public Set<CalendarEvent> getModified() {
+        return eventsOf(EventChange.Modified.class);
+    }
+
+    /**
+     * @return the earliest point in time any of the changes affects, or null if nothing changed
+     */
+    public LocalDateTime getFrom() {
+        LocalDateTime from = null;
+        for (EventChange c : changes.values()) {
+            if (from == null || c.getFrom().isBefore(from)) from = c.getFrom();
+        }
+        return from;
+    }
+
+    /**
+     * @return the latest point in time any of the changes affects, or null if nothing changed
+     */
+    public LocalDateTime getTo() {
+        LocalDateTime to = null;
+        for (EventChange c : changes.values()) {
+            if (to == null || c.getTo().isAfter(to)) to = c.getTo();
+        }
+        return to;
+    }
+
+    /**
+     * @return true if nothing changed
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Record a change to an event, coalescing it with any earlier change to the same event
+     *
+     * @param before the event's entry in the indexes before the change, or null if it was not
+     *               in the calendar
+     * @param after  the event's entry in the indexes after the change, or null if it is no
+     *               longer in the calendar
+     */
+    void record(CalendarEvent event, EventIntervalTree.Entry before, EventIntervalTree.Entry after) {
+        EventChange earlier = changes.get(event);
+        LocalDateTime startBefore, endBefore;
+        if (earlier != null) {
+            startBefore = earlier.startBefore();
+            endBefore = earlier.endBefore();
+        } else {
+            startBefore = before == null ? null : before.start();
+            endBefore = before == null ? null : before.end();
+        }
+        EventChange change = EventChange.of(event, startBefore, endBefore,
+                after == null ? null : after.start(), after == null ? null : after.end());
+        if (change == null) {
+            changes.remove(event);
+        } else {
+            changes.put(event, change);
+        }
+    }
+
+    private Set<CalendarEvent> eventsOf(Class<? extends EventChange> kind) {
+        Set<CalendarEvent> events = new LinkedHashSet<>();
+        for (EventChange c : changes.values()) {
+            if (kind.isInstance(c)) events.add(c.getEvent());
+        }
+        return Collections.unmodifiableSet(events);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CalendarChange[%d added, %d removed, %d modified]",
+                getAdded().size(), getRemoved().size(), getModified().size());
+    }
+}
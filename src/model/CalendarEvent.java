@@ -75,6 +75,17 @@ public class CalendarEvent implements Serializable {
         this.startTime = date.toLocalTime();
     }
 
+    /**
+     * construct a copy of an event, which is not affected by later changes to the original
+     *
+     * @param other the event to copy
+     */
+    public CalendarEvent(CalendarEvent other) {
+        this(other.title, other.date, other.startTime, other.endTime, other.location, other.notes);
+        // awt colors are immutable, so it can be shared
+        this.color = other.color;
+    }
+
     /**
      * @return the event's title
      */
@@ -181,4 +192,28 @@ public class CalendarEvent implements Serializable {
             this.color = new java.awt.Color(r, b, g);
         }
     }
+
+    /**
+     * Get the event's color without any loss of precision, for compact storage.
+     *
+     * @return the event's color packed as 0xRRGGBB, or -1 if it uses {@link #DEFAULT_COLOR}
+     */
+    public int getColorRGB() {
+        return color == null
+                ? -1
+                // the awt color holds its components in r, b, g order; see setColor
+                : (color.getRed() << 16) | (color.getBlue() << 8) | color.getGreen();
+    }
+
+    /**
+     * @param rgb the new color of the event packed as 0xRRGGBB, as returned by
+     *            {@link #getColorRGB()}. If negative, then {@link #DEFAULT_COLOR} is used.
+     */
+    public void setColorRGB(int rgb) {
+        if (rgb < 0) {
+            this.color = null;
+        } else {
+            this.color = new java.awt.Color((rgb >> 16) & 0xFF, rgb & 0xFF, (rgb >> 8) & 0xFF);
+        }
+    }
 }
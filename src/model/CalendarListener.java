@@ -0,0 +1,18 @@
+package model;
+
+/**
+ * Listens for changes to a {@link CalendarModel}
+ *
+ * @author Kitty Elliott
+ */
+@FunctionalInterface
+public interface CalendarListener {
+    /**
+     * Called once for each change, or batch of changes, made to a calendar
+     *
+     * @param calendar the calendar which changed
+     * @param change   everything that changed. It is not modified after it is delivered,
+     *                 although the events it refers to may be.
+     */
+    void calendarChanged(CalendarModel calendar, CalendarChange change);
+}
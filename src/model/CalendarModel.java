@@ -1,20 +1,66 @@
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Observable;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * A representation of a calendar of events
+ * A representation of a calendar of events.
+ * Listeners are notified of every change with a {@link CalendarChange} describing it.
  *
  * @author Jessica Coan
  */
-public class CalendarModel extends Observable implements Serializable {
+public class CalendarModel implements Serializable {
     private static final long serialVersionUID = 5184911405741555741L;
     private List<CalendarEvent> events = new ArrayList<>();
+    // the indexes are derived from the events list, so they are rebuilt rather than serialized
+    private transient EventIntervalTree index;
+    private transient DayIndex dayIndex;
+    private transient Map<CalendarEvent, EventIntervalTree.Entry> indexEntries;
+    // the number of events at the start of the list whose entries know their position.
+    // removing an event moves the ones after it, which are then only renumbered when asked for
+    private transient int validPositions;
+    // set once the events list is handed out by shareEvents(), after which it is copied
+    // rather than changed
+    private transient boolean eventsShared;
+    // counts the changes made to the calendar, so that savers and caches can tell if it is
+    // unchanged. volatile, since caches read it from other threads
+    private transient volatile long version;
+    // the changes which listeners have not been notified of yet, while a batch is open
+    private transient int batchDepth;
+    private transient CalendarChange pending;
+    private transient List<Registration> listeners = new CopyOnWriteArrayList<>();
+    // held to change the indexes, so that other threads can read them through read()
+    private transient ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * construct a new, empty calendar
+     */
+    public CalendarModel() {
+        rebuildIndex();
+    }
+
+    /**
+     * construct a calendar holding the given events. The indexes are built in one pass,
+     * which is much faster than adding the events one at a time.
+     *
+     * @param events the events of the calendar, in the order they were added
+     */
+    public CalendarModel(Collection<CalendarEvent> events) {
+        this.events.addAll(events);
+        rebuildIndex();
+    }
 
     /**
      * Gets all the events within a specific year
@@ -52,20 +98,19 @@ public class CalendarModel extends Observable implements Serializable {
      * @return an array of all the events on that day
      */
     public CalendarEvent[] getEventsInDay(int year, int month, int day) {
-        LocalDateTime before = getDateTime(year, month, day).minusSeconds(1);
-        LocalDateTime after = getDateTime(year, month, day).plusDays(1);
-
-        return getEventsInRange(before, after);
+        return getEventsInDay(LocalDate.of(year, month, day));
     }
 
     /**
      * Get all events that occur on a specified day
      *
      * @param day the day on which the events occur
-     * @return an array containing the events
+     * @return an array containing the events, ordered by their start
      */
     public CalendarEvent[] getEventsInDay(LocalDate day) {
-        return getEventsInDay(day.getYear(), day.getMonthValue(), day.getDayOfMonth());
+        List<CalendarEvent> found = new ArrayList<>();
+        dayIndex.collect(day.toEpochDay(), found);
+        return found.toArray(new CalendarEvent[0]);
     }
 
     /**
@@ -81,7 +126,12 @@ public class CalendarModel extends Observable implements Serializable {
         LocalDateTime before = getDateTime(year, month, day, hour, 0).minusSeconds(1);
         LocalDateTime after = getDateTime(year, month, day, hour, 0).plusHours(1);
 
-        return getEventsInRange(before, after);
+        List<CalendarEvent> found = new ArrayList<>();
+        for (EventIntervalTree.Entry e : dayIndex.get(LocalDate.of(year, month, day).toEpochDay())) {
+            if (e == null) break;
+            if (e.compareStartTo(before) > 0 && e.compareStartTo(after) < 0) found.add(e.event);
+        }
+        return found.toArray(new CalendarEvent[0]);
     }
 
     /**
@@ -99,9 +149,146 @@ public class CalendarModel extends Observable implements Serializable {
      *
      * @param before start date Calendar
      * @param after  end date Calendar
-     * @return all the events that occur within the given range
+     * @return all the events that occur within the given range, ordered by their start
      */
     public CalendarEvent[] getEventsInRange(LocalDateTime before, LocalDateTime after) {
+        List<CalendarEvent> found = new ArrayList<>();
+        index.startingBetween(before, after, found);
+        return found.toArray(new CalendarEvent[0]);
+    }
+
+    /**
+     * Lazily iterate over the events within a range, in order of their start,
+     * without first copying them into an array.
+     * The calendar must not be modified while the iterator is in use.
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @return an iterator over the events that occur within the given range
+     */
+    public Iterator<CalendarEvent> iterateEventsInRange(LocalDateTime before, LocalDateTime after) {
+        Iterator<EventIntervalTree.Entry> entries = index.startingBetween(before, after);
+        return new Iterator<CalendarEvent>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public CalendarEvent next() {
+                return entries.next().event;
+            }
+        };
+    }
+
+    /**
+     * Lazily produce the events within a range, in order of their start.
+     * The first {@code offset} events are skipped in O(log n) and at most {@code limit}
+     * events are produced, so taking a page out of a very large range costs only that page.
+     * The spliterator is {@link Spliterator#SIZED sized}, and the calendar must not be
+     * modified while it is in use.
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @param offset the number of events at the beginning of the range to skip
+     * @param limit  the maximum number of events to produce
+     * @return a spliterator over the events that occur within the given range
+     * @throws IllegalArgumentException if offset or limit is negative
+     */
+    public Spliterator<CalendarEvent> spliteratorEventsInRange(LocalDateTime before, LocalDateTime after,
+                                                               long offset, long limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        Iterator<EventIntervalTree.Entry> entries = index.startingBetween(before, after, offset);
+        long size = Math.min(limit, Math.max(0, index.countStartingBetween(before, after) - offset));
+        return new Spliterators.AbstractSpliterator<CalendarEvent>(size,
+                Spliterator.ORDERED | Spliterator.SIZED | Spliterator.NONNULL) {
+            private long remaining = size;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super CalendarEvent> action) {
+                if (remaining <= 0 || !entries.hasNext()) return false;
+                remaining--;
+                action.accept(entries.next().event);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Lazily stream the events within a range, in order of their start.
+     * Short-circuiting operations such as {@link Stream#findFirst()} stop walking the index early.
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @return a sequential stream of the events that occur within the given range
+     * @see #spliteratorEventsInRange(LocalDateTime, LocalDateTime, long, long)
+     */
+    public Stream<CalendarEvent> streamEventsInRange(LocalDateTime before, LocalDateTime after) {
+        return streamEventsInRange(before, after, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Lazily stream a page of the events within a range, in order of their start.
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @param offset the number of events at the beginning of the range to skip
+     * @param limit  the maximum number of events in the stream
+     * @return a sequential stream of the events that occur within the given range
+     * @see #spliteratorEventsInRange(LocalDateTime, LocalDateTime, long, long)
+     */
+    public Stream<CalendarEvent> streamEventsInRange(LocalDateTime before, LocalDateTime after,
+                                                     long offset, long limit) {
+        return StreamSupport.stream(spliteratorEventsInRange(before, after, offset, limit), false);
+    }
+
+    /**
+     * Count the events within a range without collecting them
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @return the number of events that occur within the given range
+     */
+    public int countEventsInRange(LocalDateTime before, LocalDateTime after) {
+        return index.countStartingBetween(before, after);
+    }
+
+    /**
+     * Find the first event which starts after a point in time
+     *
+     * @param time the point in time
+     * @return the earliest event which starts strictly after the given time,
+     * or null if there is none
+     */
+    public CalendarEvent getNextEvent(LocalDateTime time) {
+        Iterator<EventIntervalTree.Entry> entries = index.startingBetween(time, LocalDateTime.MAX);
+        return entries.hasNext() ? entries.next().event : null;
+    }
+
+    /**
+     * Find all events which overlap a range of time, rather than only those which start within it.
+     *
+     * @param from the start of the range, inclusive
+     * @param to   the end of the range, exclusive
+     * @return all the events which overlap the given range, ordered by their start
+     */
+    public CalendarEvent[] getEventsOverlapping(LocalDateTime from, LocalDateTime to) {
+        List<CalendarEvent> found = new ArrayList<>();
+        index.overlapping(from, to, found);
+        return found.toArray(new CalendarEvent[0]);
+    }
+
+    /**
+     * Same as {@link #getEventsInRange(LocalDateTime, LocalDateTime)}, but checks every event
+     * in the calendar instead of using the index. Kept as a reference for testing the index.
+     *
+     * @param before start date Calendar
+     * @param after  end date Calendar
+     * @return all the events that occur within the given range, in the order they were added
+     */
+    public CalendarEvent[] scanEventsInRange(LocalDateTime before, LocalDateTime after) {
         return events.parallelStream()
                 .filter(event -> isDateInRange(
                         // LocalDateTime at which the event starts
@@ -114,42 +301,407 @@ public class CalendarModel extends Observable implements Serializable {
      * Returns a list of all of the CalendarEvents in the
      * calendar.
      * 
-     * @return all of the events associated with this calendar
+     * @return an unmodifiable view of all of the events associated with this calendar
      */
     public List<CalendarEvent> getAllEvents() {
-    	return events;
+    	return Collections.unmodifiableList(events);
     }
 
     /**
-     * Add a CalendarEvent to this calendar
+     * Get the events of this calendar as they are now, without copying them. Events added
+     * or removed later do not show up in the list, since the calendar copies the list
+     * before it next changes it. The events themselves are shared, so an event edited in
+     * place later is seen edited, or partly edited if it is read from another thread.
+     *
+     * @return an unmodifiable list of all of the events, in the order of {@link #getAllEvents()}
+     */
+    public List<CalendarEvent> shareEvents() {
+        lock.writeLock().lock();
+        try {
+            eventsShared = true;
+            return Collections.unmodifiableList(events);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * copy the events list if it was shared, before changing it. Called with the write lock held.
+     */
+    private void unshareEvents() {
+        if (eventsShared) {
+            events = new ArrayList<>(events);
+            eventsShared = false;
+        }
+    }
+
+    /**
+     * Get the version of this calendar, which is increased by every change made to it.
+     * Two equal versions of the same calendar mean that it was not changed in between.
+     *
+     * @return the number of changes made to this calendar since it was created or loaded
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Read this calendar from a thread other than the one which changes it. Changes wait
+     * until the read is done, so the read sees the calendar as it was between two changes.
+     * Reads on the thread which changes the calendar do not need this. The reader must not
+     * wait for that thread, or the two will deadlock.
+     *
+     * @param reader reads the calendar
+     * @return what the reader returned
+     */
+    public <T> T read(Supplier<T> reader) {
+        lock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Start a batch of changes. Until the matching {@link #endBatch()}, listeners are not
+     * notified of any change; they are then notified once, with everything that changed.
+     * Batches may be nested, in which case listeners are notified when the outermost ends.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * End a batch of changes started by {@link #beginBatch()}
+     *
+     * @return everything that changed during the batch, or an empty change if
+     * an enclosing batch has not ended yet
+     * @throws IllegalStateException if no batch was started
+     */
+    public CalendarChange endBatch() {
+        if (batchDepth == 0) throw new IllegalStateException("No batch to end");
+        if (--batchDepth > 0) return new CalendarChange();
+        return publish();
+    }
+
+    /**
+     * Add a CalendarEvent to this calendar.
+     * Adding an event which is already in this calendar has no effect.
      *
      * @param event event to add
+     * @return true if the event was added, false if it was already in this calendar
+     */
+    public boolean addEvent(CalendarEvent event) {
+        EventIntervalTree.Entry entry;
+        lock.writeLock().lock();
+        try {
+            if (indexEntries.containsKey(event)) return false;
+            unshareEvents();
+            events.add(event);
+            entry = index.add(event);
+            indexEntries.put(event, entry);
+            dayIndex.add(entry);
+            appended(entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        pending().record(event, null, entry);
+        changed();
+        return true;
+    }
+
+    /**
+     * Add many CalendarEvents to this calendar at once, updating the indexes once and
+     * notifying listeners once.
+     * Events which are already in this calendar, or repeated in the collection, are skipped.
+     *
+     * @param newEvents the events to add, in order
+     * @return the number of events which were added
+     */
+    public int addEvents(Collection<CalendarEvent> newEvents) {
+        return replace(Collections.emptyList(), newEvents)[1];
+    }
+
+    /**
+     * Remove many CalendarEvents from this calendar at once, updating the indexes once
+     * and notifying listeners once. Events which are not in this calendar are skipped.
+     *
+     * @param toRemove the events to remove
+     * @return the number of events which were removed
+     */
+    public int removeEvents(Collection<CalendarEvent> toRemove) {
+        return replace(toRemove, Collections.emptyList())[0];
+    }
+
+    /**
+     * Remove some CalendarEvents from this calendar and add others, as one change,
+     * updating the indexes once and notifying listeners once.
+     * Events to remove which are not in this calendar, and events to add which are
+     * already in it once the others have been removed, are skipped.
+     *
+     * @param toRemove the events to remove
+     * @param toAdd    the events to add, in order
+     * @return true if this calendar changed
      */
-    public void addEvent(CalendarEvent event) {
-        events.add(event);
-        setChanged();
-        notifyObservers(event);
+    public boolean replaceEvents(Collection<CalendarEvent> toRemove, Collection<CalendarEvent> toAdd) {
+        int[] counts = replace(toRemove, toAdd);
+        return counts[0] + counts[1] > 0;
+    }
+
+    /**
+     * @return the number of events removed and the number added
+     */
+    private int[] replace(Collection<CalendarEvent> toRemove, Collection<CalendarEvent> toAdd) {
+        List<EventIntervalTree.Entry> removed = new ArrayList<>();
+        List<CalendarEvent> added = new ArrayList<>(toAdd.size());
+        lock.writeLock().lock();
+        try {
+            replaceLocked(toRemove, toAdd, removed, added);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (removed.isEmpty() && added.isEmpty()) return new int[]{0, 0};
+
+        CalendarChange change = pending();
+        for (EventIntervalTree.Entry entry : removed) {
+            change.record(entry.event, entry, null);
+        }
+        for (CalendarEvent event : added) {
+            change.record(event, null, indexEntries.get(event));
+        }
+        changed();
+        return new int[]{removed.size(), added.size()};
+    }
+
+    /**
+     * change the events and the indexes, while holding the write lock
+     *
+     * @param removed receives the entries of the events which were removed
+     * @param added   receives the events which were added
+     */
+    private void replaceLocked(Collection<CalendarEvent> toRemove, Collection<CalendarEvent> toAdd,
+                               List<EventIntervalTree.Entry> removed, List<CalendarEvent> added) {
+        Set<CalendarEvent> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (CalendarEvent event : toRemove) {
+            EventIntervalTree.Entry entry = indexEntries.remove(event);
+            if (entry != null) {
+                gone.add(event);
+                removed.add(entry);
+            }
+        }
+        Set<CalendarEvent> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (CalendarEvent event : toAdd) {
+            if (!indexEntries.containsKey(event) && seen.add(event)) added.add(event);
+        }
+        if (removed.isEmpty() && added.isEmpty()) return;
+
+        unshareEvents();
+        if (!gone.isEmpty()) {
+            events.removeIf(gone::contains);
+            validPositions = 0;
+        }
+        events.addAll(added);
+        // rebuilding costs about as much as changing a quarter of the calendar one by one
+        if ((removed.size() + added.size()) * 4 >= events.size()) {
+            rebuildIndex();
+        } else {
+            for (EventIntervalTree.Entry entry : removed) {
+                index.remove(entry);
+                dayIndex.remove(entry);
+            }
+            for (CalendarEvent event : added) {
+                EventIntervalTree.Entry entry = index.add(event);
+                indexEntries.put(event, entry);
+                dayIndex.add(entry);
+                appended(entry);
+            }
+        }
     }
 
     /**
      * Remove a CalendarEvent from this calendar
      *
      * @param event event to remove
+     * @return true if the event was removed, false if it was not in this calendar
      */
-    public void removeEvent(CalendarEvent event) {
-        events.remove(event);
-        setChanged();
-        notifyObservers();
+    public boolean removeEvent(CalendarEvent event) {
+        EventIntervalTree.Entry entry;
+        lock.writeLock().lock();
+        try {
+            int position = indexOf(event);
+            if (position < 0) return false;
+            entry = indexEntries.remove(event);
+            unshareEvents();
+            events.remove(position);
+            validPositions = Math.min(validPositions, position);
+            index.remove(entry);
+            dayIndex.remove(entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        pending().record(event, entry, null);
+        changed();
+        return true;
     }
 
     /**
-     * Mark that an event in this model has been modified, so Observers can be updated accordingly
+     * Get the position of an event in {@link #getAllEvents()}. Takes constant time unless
+     * events before it were removed since it was last asked for.
+     *
+     * @param event an event
+     * @return the position of the event, or -1 if it is not in this calendar
+     */
+    public int indexOf(CalendarEvent event) {
+        EventIntervalTree.Entry entry = indexEntries.get(event);
+        if (entry == null) return -1;
+        // positions only move down, so an entry which says it is in the valid part is
+        if (entry.position >= validPositions) {
+            for (int i = validPositions; i < events.size(); i++) {
+                indexEntries.get(events.get(i)).position = i;
+            }
+            validPositions = events.size();
+        }
+        return entry.position;
+    }
+
+    /**
+     * record the position of an entry of an event just added to the end of the list
+     */
+    private void appended(EventIntervalTree.Entry entry) {
+        entry.position = events.size() - 1;
+        if (validPositions == entry.position) validPositions++;
+    }
+
+    /**
+     * Mark that an event in this model has been modified, so listeners can be updated accordingly.
+     * Must be called whenever the date or times of an event in this calendar change,
+     * so that the event is moved to its new place in the indexes.
+     * Does nothing if the event is not in this calendar.
      *
      * @param event event that has been modified
      */
     public void markModified(CalendarEvent event) {
-        setChanged();
-        notifyObservers(event);
+        EventIntervalTree.Entry before, after;
+        lock.writeLock().lock();
+        try {
+            before = indexEntries.get(event);
+            if (before == null) return;
+            index.remove(before);
+            dayIndex.remove(before);
+            after = index.add(event);
+            after.position = before.position;
+            indexEntries.put(event, after);
+            dayIndex.add(after);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        pending().record(event, before, after);
+        changed();
+    }
+
+    /**
+     * Register a listener to be called, on the thread which made the change, whenever this
+     * calendar changes
+     *
+     * @param listener the listener
+     */
+    public void addListener(CalendarListener listener) {
+        listeners.add(new Registration(listener, null));
+    }
+
+    /**
+     * Register a listener to be called whenever this calendar changes, through an executor.
+     * Use this to have the changes delivered on another thread; the calendar must then not
+     * be read from that thread without synchronizing with the thread making the changes.
+     *
+     * @param listener the listener
+     * @param executor runs each call of the listener
+     */
+    public void addListener(CalendarListener listener, Executor executor) {
+        listeners.add(new Registration(listener, Objects.requireNonNull(executor)));
+    }
+
+    /**
+     * Stop calling a listener. Changes already handed to its executor may still be delivered.
+     *
+     * @param listener a listener which was registered with this calendar
+     */
+    public void removeListener(CalendarListener listener) {
+        listeners.removeIf(r -> r.listener == listener);
+    }
+
+    private static final class Registration {
+        final CalendarListener listener;
+        final Executor executor;
+
+        Registration(CalendarListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * the changes made since listeners were last notified
+     */
+    private CalendarChange pending() {
+        if (pending == null) pending = new CalendarChange();
+        return pending;
+    }
+
+    /**
+     * count a change, and notify listeners of it unless a batch is open
+     */
+    private void changed() {
+        version++;
+        if (batchDepth == 0) publish();
+    }
+
+    /**
+     * notify listeners of the pending changes, if there are any
+     */
+    private CalendarChange publish() {
+        CalendarChange change = pending();
+        pending = null;
+        if (!change.isEmpty()) {
+            for (Registration r : listeners) {
+                if (r.executor == null) {
+                    r.listener.calendarChanged(this, change);
+                } else {
+                    r.executor.execute(() -> r.listener.calendarChanged(this, change));
+                }
+            }
+        }
+        return change;
+    }
+    /**
+     * Build the indexes from scratch out of the events list
+     */
+    private void rebuildIndex() {
+        index = new EventIntervalTree();
+        dayIndex = new DayIndex();
+        // in order of start, so that each day's bucket is filled without any shifting
+        EventIntervalTree.Entry[] entries = index.rebuild(events);
+        indexEntries = new IdentityHashMap<>(entries.length);
+        validPositions = 0;
+        for (EventIntervalTree.Entry e : entries) {
+            indexEntries.put(e.event, e);
+            dayIndex.add(e);
+        }
+    }
+
+    /**
+     * Restore the calendar from a stream, then rebuild its indexes
+     *
+     * @param in the stream to read from
+     * @throws IOException            if the stream could not be read
+     * @throws ClassNotFoundException if the class of a serialized object could not be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<>();
+        lock = new ReentrantReadWriteLock();
+        rebuildIndex();
     }
 
     /**
@@ -0,0 +1,149 @@
+package model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A secondary index of the events of a single {@link CalendarModel}, bucketed by the day
+ * on which they start. Looking up the events of one day is a single hash probe.
+ * <p>
+ * The buckets are held in an open-addressing hash map keyed by epoch-day, so no
+ * {@code Long} boxes or map entries are created. Each bucket is a small array kept
+ * sorted in the same order as the {@link EventIntervalTree}.
+ *
+ * @author Jessica Coan
+ */
+final class DayIndex {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final EventIntervalTree.Entry[] EMPTY = new EventIntervalTree.Entry[0];
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private EventIntervalTree.Entry[][] buckets = new EventIntervalTree.Entry[INITIAL_CAPACITY][];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    // number of days which have a bucket, including emptied buckets
+    private int used;
+
+    /**
+     * @param entry an indexed event
+     * @return the epoch-day on which the event started when it was indexed
+     */
+    static long dayOf(EventIntervalTree.Entry entry) {
+        return entry.epochDay();
+    }
+
+    /**
+     * Add an indexed event to the bucket of the day it starts on
+     *
+     * @param entry the event's handle in the interval tree
+     */
+    void add(EventIntervalTree.Entry entry) {
+        if ((used + 1) * 4 > keys.length * 3) grow();
+        int slot = slotFor(dayOf(entry));
+        if (buckets[slot] == null) {
+            keys[slot] = dayOf(entry);
+            buckets[slot] = new EventIntervalTree.Entry[2];
+            used++;
+        }
+        EventIntervalTree.Entry[] bucket = buckets[slot];
+        int n = counts[slot];
+        if (n == bucket.length) {
+            bucket = buckets[slot] = Arrays.copyOf(bucket, n * 2);
+        }
+        // insertion sort: buckets are small, and events are usually added in order
+        int i = n;
+        while (i > 0 && EventIntervalTree.ORDER.compare(bucket[i - 1], entry) > 0) {
+            bucket[i] = bucket[i - 1];
+            i--;
+        }
+        bucket[i] = entry;
+        counts[slot] = n + 1;
+    }
+
+    /**
+     * Remove an indexed event from its bucket
+     *
+     * @param entry the event's handle in the interval tree
+     */
+    void remove(EventIntervalTree.Entry entry) {
+        int slot = slotFor(dayOf(entry));
+        EventIntervalTree.Entry[] bucket = buckets[slot];
+        if (bucket == null) return;
+        int n = counts[slot];
+        for (int i = 0; i < n; i++) {
+            if (bucket[i] == entry) {
+                System.arraycopy(bucket, i + 1, bucket, i, n - i - 1);
+                bucket[n - 1] = null;
+                counts[slot] = n - 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the events which start on the given day
+     *
+     * @param epochDay the day, as returned by {@link java.time.LocalDate#toEpochDay()}
+     * @return the day's events ordered by start. Must not be modified.
+     * May be longer than the number of events; the array is null-terminated in that case.
+     */
+    EventIntervalTree.Entry[] get(long epochDay) {
+        int slot = slotFor(epochDay);
+        return buckets[slot] == null ? EMPTY : buckets[slot];
+    }
+
+    /**
+     * Add the events which start on the given day to a list
+     *
+     * @param epochDay the day, as returned by {@link java.time.LocalDate#toEpochDay()}
+     * @param out      the list to add the day's events to, ordered by start
+     */
+    void collect(long epochDay, List<CalendarEvent> out) {
+        for (EventIntervalTree.Entry e : get(epochDay)) {
+            if (e == null) break;
+            out.add(e.event);
+        }
+    }
+
+    /**
+     * find the slot that holds, or would hold, the given day
+     */
+    private int slotFor(long epochDay) {
+        int mask = keys.length - 1;
+        // spread the bits so that consecutive days don't cluster
+        long h = epochDay * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (buckets[slot] != null && keys[slot] != epochDay) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * rehash the table, dropping buckets which have been emptied,
+     * and doubling the capacity if it is still too full
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        EventIntervalTree.Entry[][] oldBuckets = buckets;
+        int[] oldCounts = counts;
+        int live = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldBuckets[i] != null && oldCounts[i] > 0) live++;
+        }
+        // only grow if most of the used slots still hold events
+        int capacity = live * 2 > oldKeys.length ? oldKeys.length * 2 : oldKeys.length;
+        keys = new long[capacity];
+        buckets = new EventIntervalTree.Entry[capacity][];
+        counts = new int[capacity];
+        used = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldBuckets[i] != null && oldCounts[i] > 0) {
+                int slot = slotFor(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                buckets[slot] = oldBuckets[i];
+                counts[slot] = oldCounts[i];
+                used++;
+            }
+        }
+    }
+}
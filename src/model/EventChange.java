@@ -0,0 +1,191 @@
+package model;
+
+import java.time.LocalDateTime;
+
+/**
+ * One event which was added to, removed from or modified in a calendar, together with
+ * the times it occupied before and after the change. Since events are edited in place,
+ * the times are recorded by the calendar when the change is made; the event itself only
+ * holds its current values.
+ *
+ * @author Kitty Elliott
+ */
+public abstract class EventChange {
+    private final CalendarEvent event;
+
+    private EventChange(CalendarEvent event) {
+        this.event = event;
+    }
+
+    /**
+     * @return the event which changed
+     */
+    public CalendarEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * @return the earliest point in time the change affects
+     */
+    public abstract LocalDateTime getFrom();
+
+    /**
+     * @return the latest point in time the change affects
+     */
+    public abstract LocalDateTime getTo();
+
+    /**
+     * An event which was added to the calendar
+     */
+    public static final class Added extends EventChange {
+        private final LocalDateTime start, end;
+
+        private Added(CalendarEvent event, LocalDateTime start, LocalDateTime end) {
+            super(event);
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public LocalDateTime getFrom() {
+            return start;
+        }
+
+        @Override
+        public LocalDateTime getTo() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("EventAdded[%s, %s - %s]", getEvent().getTitle(), start, end);
+        }
+    }
+
+    /**
+     * An event which was removed from the calendar
+     */
+    public static final class Removed extends EventChange {
+        private final LocalDateTime start, end;
+
+        private Removed(CalendarEvent event, LocalDateTime start, LocalDateTime end) {
+            super(event);
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public LocalDateTime getFrom() {
+            return start;
+        }
+
+        @Override
+        public LocalDateTime getTo() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("EventRemoved[%s, %s - %s]", getEvent().getTitle(), start, end);
+        }
+    }
+
+    /**
+     * An event in the calendar which was modified, and may have moved
+     */
+    public static final class Modified extends EventChange {
+        private final LocalDateTime startBefore, endBefore, startAfter, endAfter;
+
+        private Modified(CalendarEvent event, LocalDateTime startBefore, LocalDateTime endBefore,
+                         LocalDateTime startAfter, LocalDateTime endAfter) {
+            super(event);
+            this.startBefore = startBefore;
+            this.endBefore = endBefore;
+            this.startAfter = startAfter;
+            this.endAfter = endAfter;
+        }
+
+        /**
+         * @return when the event started before it was modified
+         */
+        public LocalDateTime getStartBefore() {
+            return startBefore;
+        }
+
+        /**
+         * @return when the event ended before it was modified, or its start if it had no end
+         */
+        public LocalDateTime getEndBefore() {
+            return endBefore;
+        }
+
+        /**
+         * @return when the event starts after it was modified
+         */
+        public LocalDateTime getStartAfter() {
+            return startAfter;
+        }
+
+        /**
+         * @return when the event ends after it was modified, or its start if it has no end
+         */
+        public LocalDateTime getEndAfter() {
+            return endAfter;
+        }
+
+        /**
+         * @return true if the event's times changed, rather than only its other details
+         */
+        public boolean isMoved() {
+            return !startBefore.equals(startAfter) || !endBefore.equals(endAfter);
+        }
+
+        @Override
+        public LocalDateTime getFrom() {
+            return startBefore.isBefore(startAfter) ? startBefore : startAfter;
+        }
+
+        @Override
+        public LocalDateTime getTo() {
+            return endBefore.isAfter(endAfter) ? endBefore : endAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("EventModified[%s, %s - %s -> %s - %s]", getEvent().getTitle(),
+                    startBefore, endBefore, startAfter, endAfter);
+        }
+    }
+
+    /**
+     * Describe a change from the times an event had before to the times it has after.
+     * The times before are null if the event was not in the calendar, and the times after
+     * are null if it is no longer in it.
+     *
+     * @return the change, or null if the event was in the calendar neither before nor after
+     */
+    static EventChange of(CalendarEvent event, LocalDateTime startBefore, LocalDateTime endBefore,
+                          LocalDateTime startAfter, LocalDateTime endAfter) {
+        if (startBefore == null) {
+            return startAfter == null ? null : new Added(event, startAfter, endAfter);
+        } else if (startAfter == null) {
+            return new Removed(event, startBefore, endBefore);
+        } else {
+            return new Modified(event, startBefore, endBefore, startAfter, endAfter);
+        }
+    }
+
+    /**
+     * @return when the event started before the change, or null if it was not in the calendar
+     */
+    LocalDateTime startBefore() {
+        return this instanceof Added ? null : this instanceof Removed ? getFrom() : ((Modified) this).startBefore;
+    }
+
+    /**
+     * @return when the event ended before the change, or null if it was not in the calendar
+     */
+    LocalDateTime endBefore() {
+        return this instanceof Added ? null : this instanceof Removed ? getTo() : ((Modified) this).endBefore;
+    }
+}
@@ -0,0 +1,444 @@
+package model;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * An augmented interval tree over the events of a single {@link CalendarModel}.
+ * <p>
+ * The tree is an AVL tree ordered by each event's start, with ties broken by
+ * insertion order. Every node also records the latest end found in its subtree,
+ * so overlap queries can skip whole subtrees which end before the query range.
+ * Range queries therefore cost O(log n + k) instead of a scan of every event.
+ * <p>
+ * Start and end are captured when an event is inserted, so an event whose date or
+ * times are edited must be {@link #remove removed} and re-{@link #add added}
+ * for the tree to stay correct. They are held as epoch-seconds plus nanoseconds, so
+ * that building and searching the tree compares primitives rather than LocalDateTimes.
+ *
+ * @author Jessica Coan
+ */
+final class EventIntervalTree {
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * A node of the tree. Also serves as the handle through which its event is removed.
+     */
+    static final class Entry {
+        final CalendarEvent event;
+        final long seq;
+        private final long startSec, endSec;
+        private final int startNano, endNano;
+        private Entry left, right;
+        private int height, size;
+        private long maxEndSec;
+        private int maxEndNano;
+        // the event's position in its calendar's list of events, kept by CalendarModel
+        int position;
+
+        private Entry(CalendarEvent event, long seq) {
+            this.event = event;
+            this.seq = seq;
+            long day = event.getDate().toEpochDay() * SECONDS_PER_DAY;
+            startSec = day + event.getStartTime().toSecondOfDay();
+            startNano = event.getStartTime().getNano();
+            if (event.getEndTime() == null
+                    || compare(day + event.getEndTime().toSecondOfDay(), event.getEndTime().getNano(),
+                    startSec, startNano) < 0) {
+                endSec = startSec;
+                endNano = startNano;
+            } else {
+                endSec = day + event.getEndTime().toSecondOfDay();
+                endNano = event.getEndTime().getNano();
+            }
+            update();
+        }
+
+        /**
+         * @return the epoch-day on which the event started when it was indexed
+         */
+        long epochDay() {
+            return Math.floorDiv(startSec, SECONDS_PER_DAY);
+        }
+
+        /**
+         * @return when the event started when it was indexed
+         */
+        LocalDateTime start() {
+            return LocalDateTime.ofEpochSecond(startSec, startNano, ZoneOffset.UTC);
+        }
+
+        /**
+         * @return when the event ended when it was indexed, or its start if it had no end
+         */
+        LocalDateTime end() {
+            return LocalDateTime.ofEpochSecond(endSec, endNano, ZoneOffset.UTC);
+        }
+
+        /**
+         * @param time a point in time
+         * @return a negative number, zero, or a positive number if the event started before,
+         * at, or after the given time when it was indexed
+         */
+        int compareStartTo(LocalDateTime time) {
+            return compare(startSec, startNano, secondsOf(time), time.getNano());
+        }
+
+        /**
+         * recompute the height, size and maxEnd of this node from its children
+         */
+        private void update() {
+            height = 1 + Math.max(heightOf(left), heightOf(right));
+            size = 1 + sizeOf(left) + sizeOf(right);
+            maxEndSec = endSec;
+            maxEndNano = endNano;
+            if (left != null && compare(left.maxEndSec, left.maxEndNano, maxEndSec, maxEndNano) > 0) {
+                maxEndSec = left.maxEndSec;
+                maxEndNano = left.maxEndNano;
+            }
+            if (right != null && compare(right.maxEndSec, right.maxEndNano, maxEndSec, maxEndNano) > 0) {
+                maxEndSec = right.maxEndSec;
+                maxEndNano = right.maxEndNano;
+            }
+        }
+    }
+
+    static final Comparator<Entry> ORDER = (a, b) -> {
+        int c = compare(a.startSec, a.startNano, b.startSec, b.startNano);
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    };
+
+    private Entry root;
+    private long nextSeq;
+
+    /**
+     * @param time a point in time
+     * @return the whole seconds since the epoch at the given time, ignoring any time zone
+     */
+    private static long secondsOf(LocalDateTime time) {
+        return time.toLocalDate().toEpochDay() * SECONDS_PER_DAY + time.toLocalTime().toSecondOfDay();
+    }
+
+    /**
+     * compare two points in time given as seconds and nanoseconds
+     */
+    private static int compare(long sec1, int nano1, long sec2, int nano2) {
+        return sec1 != sec2 ? Long.compare(sec1, sec2) : Integer.compare(nano1, nano2);
+    }
+
+    /**
+     * @return the number of events in the tree
+     */
+    int size() {
+        return sizeOf(root);
+    }
+
+    /**
+     * Insert an event into the tree
+     *
+     * @param event the event to insert
+     * @return the handle used to later remove the event
+     */
+    Entry add(CalendarEvent event) {
+        Entry entry = new Entry(event, nextSeq++);
+        root = insert(root, entry);
+        return entry;
+    }
+
+    /**
+     * Remove a previously added event from the tree
+     *
+     * @param entry the handle returned when the event was added
+     */
+    void remove(Entry entry) {
+        root = delete(root, entry);
+    }
+
+    /**
+     * Replace the contents of the tree with the given events, in O(n log n).
+     *
+     * @param events the events to index. Ties in start are ordered as in this list.
+     * @return the handles of the given events, in order of start
+     */
+    Entry[] rebuild(List<CalendarEvent> events) {
+        Entry[] sorted = new Entry[events.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = new Entry(events.get(i), nextSeq++);
+        }
+        Arrays.sort(sorted, ORDER);
+        root = build(sorted, 0, sorted.length);
+        return sorted;
+    }
+
+    /**
+     * Collect, in order of start, every event which starts strictly after
+     * {@code before} and strictly before {@code after}
+     *
+     * @param before exclusive lower bound of the start
+     * @param after  exclusive upper bound of the start
+     * @param out    the list to add the events to
+     */
+    void startingBetween(LocalDateTime before, LocalDateTime after, List<CalendarEvent> out) {
+        startingBetween(root, before, after, out);
+    }
+
+    /**
+     * Lazily iterate, in order of start, over every event which starts strictly after
+     * {@code before} and strictly before {@code after}. Nothing proportional to the
+     * number of events in the range is allocated.
+     * The tree must not be modified while the iterator is in use.
+     *
+     * @param before exclusive lower bound of the start
+     * @param after  exclusive upper bound of the start
+     * @return an iterator over the handles of the events in the range
+     */
+    Iterator<Entry> startingBetween(LocalDateTime before, LocalDateTime after) {
+        return startingBetween(before, after, 0);
+    }
+
+    /**
+     * Same as {@link #startingBetween(LocalDateTime, LocalDateTime)}, but skips over
+     * the first {@code offset} events of the range in O(log n).
+     *
+     * @param before exclusive lower bound of the start
+     * @param after  exclusive upper bound of the start
+     * @param offset the number of events to skip. must not be negative.
+     * @return an iterator over the handles of the events in the range
+     */
+    Iterator<Entry> startingBetween(LocalDateTime before, LocalDateTime after, long offset) {
+        long rank = countAtOrBefore(before) + offset;
+        return new RangeIterator(root, rank > size() ? size() : (int) rank, after);
+    }
+
+    /**
+     * Count the events which start strictly after {@code before} and strictly
+     * before {@code after}, in O(log n)
+     *
+     * @param before exclusive lower bound of the start
+     * @param after  exclusive upper bound of the start
+     * @return the number of events in the range
+     */
+    int countStartingBetween(LocalDateTime before, LocalDateTime after) {
+        return Math.max(0, countBefore(after) - countAtOrBefore(before));
+    }
+
+    /**
+     * @param time a point in time
+     * @return the number of events which start at or before the given time
+     */
+    private int countAtOrBefore(LocalDateTime time) {
+        int count = 0;
+        for (Entry n = root; n != null; ) {
+            if (n.compareStartTo(time) > 0) {
+                n = n.left;
+            } else {
+                count += sizeOf(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param time a point in time
+     * @return the number of events which start strictly before the given time
+     */
+    private int countBefore(LocalDateTime time) {
+        int count = 0;
+        for (Entry n = root; n != null; ) {
+            if (n.compareStartTo(time) < 0) {
+                count += sizeOf(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Collect, in order of start, every event which overlaps the range from {@code from}
+     * (inclusive) to {@code to} (exclusive). An event with no duration overlaps the range
+     * if it starts within it.
+     *
+     * @param from start of the range
+     * @param to   end of the range
+     * @param out  the list to add the events to
+     */
+    void overlapping(LocalDateTime from, LocalDateTime to, List<CalendarEvent> out) {
+        overlapping(root, from, to, out);
+    }
+
+    private static void startingBetween(Entry n, LocalDateTime before, LocalDateTime after,
+                                        List<CalendarEvent> out) {
+        while (n != null) {
+            boolean goLeft = n.compareStartTo(before) > 0;
+            boolean goRight = n.compareStartTo(after) < 0;
+            if (goLeft && goRight) {
+                startingBetween(n.left, before, after, out);
+                out.add(n.event);
+                n = n.right;
+            } else if (goLeft) {
+                n = n.left;
+            } else {
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * An in-order walk which starts at the node of a given rank,
+     * keeping the path back up the tree on a stack
+     */
+    private static final class RangeIterator implements Iterator<Entry> {
+        private final Deque<Entry> path = new ArrayDeque<>();
+        private final LocalDateTime after;
+        private Entry next;
+
+        private RangeIterator(Entry root, int rank, LocalDateTime after) {
+            this.after = after;
+            for (Entry n = root; n != null; ) {
+                int leftSize = sizeOf(n.left);
+                if (rank < leftSize) {
+                    path.push(n);
+                    n = n.left;
+                } else if (rank == leftSize) {
+                    path.push(n);
+                    break;
+                } else {
+                    rank -= leftSize + 1;
+                    n = n.right;
+                }
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = path.poll();
+            if (next == null) return;
+            if (next.compareStartTo(after) >= 0) {
+                next = null;
+                path.clear();
+                return;
+            }
+            for (Entry n = next.right; n != null; n = n.left) {
+                path.push(n);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry current = next;
+            advance();
+            return current;
+        }
+    }
+
+    private static void overlapping(Entry n, LocalDateTime from, LocalDateTime to,
+                                    List<CalendarEvent> out) {
+        // every event under a node ends no later than that node's maxEnd
+        if (n == null || compare(n.maxEndSec, n.maxEndNano, secondsOf(from), from.getNano()) < 0) return;
+        overlapping(n.left, from, to, out);
+        if (n.compareStartTo(to) < 0) {
+            if (compare(n.endSec, n.endNano, secondsOf(from), from.getNano()) > 0 || n.compareStartTo(from) >= 0) {
+                out.add(n.event);
+            }
+            overlapping(n.right, from, to, out);
+        }
+    }
+
+    private static Entry build(Entry[] sorted, int from, int to) {
+        if (from >= to) return null;
+        int mid = (from + to) >>> 1;
+        Entry n = sorted[mid];
+        n.left = build(sorted, from, mid);
+        n.right = build(sorted, mid + 1, to);
+        n.update();
+        return n;
+    }
+
+    private static Entry insert(Entry n, Entry entry) {
+        if (n == null) return entry;
+        if (ORDER.compare(entry, n) < 0) {
+            n.left = insert(n.left, entry);
+        } else {
+            n.right = insert(n.right, entry);
+        }
+        return balance(n);
+    }
+
+    private static Entry delete(Entry n, Entry entry) {
+        if (n == null) return null;
+        int c = ORDER.compare(entry, n);
+        if (c < 0) {
+            n.left = delete(n.left, entry);
+        } else if (c > 0) {
+            n.right = delete(n.right, entry);
+        } else {
+            Entry left = n.left, right = n.right;
+            n.left = n.right = null;
+            n.update();
+            if (left == null) return right;
+            if (right == null) return left;
+            // splice the successor node into this node's place
+            Entry successor = right;
+            while (successor.left != null) successor = successor.left;
+            successor.right = deleteMin(right);
+            successor.left = left;
+            return balance(successor);
+        }
+        return balance(n);
+    }
+
+    private static Entry deleteMin(Entry n) {
+        if (n.left == null) return n.right;
+        n.left = deleteMin(n.left);
+        return balance(n);
+    }
+
+    private static Entry balance(Entry n) {
+        n.update();
+        int bf = heightOf(n.left) - heightOf(n.right);
+        if (bf > 1) {
+            if (heightOf(n.left.left) < heightOf(n.left.right)) n.left = rotateLeft(n.left);
+            return rotateRight(n);
+        } else if (bf < -1) {
+            if (heightOf(n.right.right) < heightOf(n.right.left)) n.right = rotateRight(n.right);
+            return rotateLeft(n);
+        }
+        return n;
+    }
+
+    private static Entry rotateRight(Entry n) {
+        Entry l = n.left;
+        n.left = l.right;
+        l.right = n;
+        n.update();
+        l.update();
+        return l;
+    }
+
+    private static Entry rotateLeft(Entry n) {
+        Entry r = n.right;
+        n.right = r.left;
+        r.left = n;
+        n.update();
+        r.update();
+        return r;
+    }
+
+    private static int heightOf(Entry n) {
+        return n == null ? 0 : n.height;
+    }
+
+    private static int sizeOf(Entry n) {
+        return n == null ? 0 : n.size;
+    }
+}
@@ -7,16 +7,36 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.Month;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import javafx.util.Pair;
 import org.junit.Test;
 import controller.CalendarAlreadyExistsException;
 import controller.CalendarController;
+import controller.IcsImporter;
 import controller.NoSuchCalendarException;
+import controller.QueryCache;
+import model.CalendarChange;
 import model.CalendarEvent;
 import model.CalendarModel;
 
@@ -26,6 +46,28 @@ public class CalendarControllerTests {
 	private static File testFile1 = new File("");
 	private static File testFile2 = new File("test_cals.bin");
 
+	/**
+	 * Deletes a calendar file along with everything kept next to it: its log, the log set
+	 * aside while a snapshot is written, its backups, and any logs moved aside as orphans
+	 */
+	private static void deleteCalendarFiles(File calFile) throws IOException {
+		String path = calFile.getPath();
+		Files.deleteIfExists(calFile.toPath());
+		Files.deleteIfExists(new File(path + ".log").toPath());
+		Files.deleteIfExists(new File(path + ".log.prev").toPath());
+		// as named by SnapshotStorage.backupFile, which keeps three
+		for (int i = 1; i <= 3; i++) {
+			Files.deleteIfExists(new File(path + "." + i).toPath());
+		}
+		File log = new File(path + ".log").getAbsoluteFile();
+		File[] orphans = log.getParentFile().listFiles((dir, name) -> name.startsWith(log.getName() + ".orphan"));
+		if (orphans != null) {
+			for (File orphan : orphans) {
+				Files.delete(orphan.toPath());
+			}
+		}
+	}
+
 
 	@Test
 	public void testControllerNull() {
@@ -40,7 +82,7 @@ public class CalendarControllerTests {
 		Set<String> set1 = new HashSet<String>();
 		set1.add("Default");
 		assertEquals(cont1.getCalendarNames(), set1);
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -59,7 +101,7 @@ public class CalendarControllerTests {
 		           () -> {
 		        	   cont1.createNewCalendar("calendar1");
 		           });
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -72,7 +114,7 @@ public class CalendarControllerTests {
 		cont1.createNewCalendar("cal1");
 		assertTrue(cont1.deleteCalendar("cal1"));
 		assertFalse(cont1.deleteCalendar("cal2"));
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -96,7 +138,7 @@ public class CalendarControllerTests {
 		set1.add("newCal");
 		cont1.renameCalendar("newCal", "cal1");
 		assertEquals(set1,cont1.getCalendarNames());
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -113,7 +155,7 @@ public class CalendarControllerTests {
 		       			cont1.addEvent("not a calendar", event);
 		           });
 		cont1.addEvent("Default", event);
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -131,7 +173,7 @@ public class CalendarControllerTests {
 		       			cont1.removeEvent("not a calendar", event);
 		           });
 		cont1.removeEvent("Default", event);
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -160,7 +202,7 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInYear("Default", 2020)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -189,7 +231,7 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInMonth("Default", 2020,4)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -221,7 +263,7 @@ public class CalendarControllerTests {
 		
 		assertTrue(events[0].equals(cont1.getEventsInDay("Default", x)[0]));
 		assertTrue(events[1].equals(cont1.getEventsInDay("Default", x)[1]));
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 
 	}
 	
@@ -253,7 +295,7 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInHour("Default", x)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
 	/**
@@ -290,9 +332,720 @@ public class CalendarControllerTests {
 		
 		assertTrue(events[0].equals(cont1.getEventsInRange("Default", x,y)[0]));
 		assertTrue(events[1].equals(cont1.getEventsInRange("Default", x,y)[1]));
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
+	}
+	
+	/**
+	 * Tests the merged, multi-calendar getEventsInRange()
+	 * @throws NoSuchCalendarException 
+	 */
+	@Test
+	public void testGetEventsInRangeMerged() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("cal1");
+		cont1.createNewCalendar("cal2");
+		String[] cals = {"Default", "cal1", "cal2"};
+		for (int i = 0; i < 30; i++) {
+			cont1.addEvent(cals[(i * 7) % 3], new CalendarEvent("event" + i,
+					LocalDateTime.of(2020, Month.APRIL, 1 + (i * 11) % 28, i % 24, 0)));
+		}
+		LocalDateTime x = LocalDateTime.of(2020, Month.APRIL, 3, 0, 0);
+		LocalDateTime y = LocalDateTime.of(2020, Month.APRIL, 20, 0, 0);
+		List<Pair<String, CalendarEvent>> merged =
+				cont1.getEventsInRange(new HashSet<>(Arrays.asList(cals)), x, y);
+
+		int expected = 0;
+		for (String cal : cals) {
+			expected += cont1.getEventsInRange(cal, x, y).length;
+		}
+		assertEquals(expected, merged.size());
+		for (int i = 1; i < merged.size(); i++) {
+			CalendarEvent prev = merged.get(i - 1).getValue();
+			CalendarEvent cur = merged.get(i).getValue();
+			assertFalse(cur.getDate().atTime(cur.getStartTime())
+					.isBefore(prev.getDate().atTime(prev.getStartTime())));
+		}
+		assertThrows(NoSuchCalendarException.class,
+		           () -> {
+		       			cont1.getEventsInRange(Collections.singleton("not a calendar"), x, y);
+		           });
+		deleteCalendarFiles(cont1.calFile);
+	}
+	
+	/**
+	 * Tests getEventsByDay()
+	 * @throws NoSuchCalendarException 
+	 */
+	@Test
+	public void testGetEventsByDay() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("cal1");
+		CalendarEvent event1 = new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0));
+		CalendarEvent event2 = new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 1, 8, 0));
+		CalendarEvent event3 = new CalendarEvent("event3", LocalDateTime.of(2020, Month.APRIL, 3, 0, 0));
+		CalendarEvent event4 = new CalendarEvent("event4", LocalDateTime.of(2020, Month.APRIL, 4, 0, 0));
+		cont1.addEvent("Default", event1);
+		cont1.addEvent("cal1", event2);
+		cont1.addEvent("cal1", event3);
+		cont1.addEvent("Default", event4);
+
+		Set<String> cals = new HashSet<>(Arrays.asList("Default", "cal1"));
+		List<List<Pair<String, CalendarEvent>>> days =
+				cont1.getEventsByDay(cals, LocalDate.of(2020, Month.APRIL, 1), 3);
+		assertEquals(3, days.size());
+		assertEquals(new Pair<>("cal1", event2), days.get(0).get(0));
+		assertEquals(new Pair<>("Default", event1), days.get(0).get(1));
+		assertTrue(days.get(1).isEmpty());
+		assertEquals(new Pair<>("cal1", event3), days.get(2).get(0));
+		assertEquals(1, days.get(2).size());
+
+		assertThrows(NoSuchCalendarException.class,
+		           () -> {
+		       			cont1.getEventsByDay(Collections.singleton("not a calendar"), LocalDate.of(2020, Month.APRIL, 1), 3);
+		           });
+		deleteCalendarFiles(cont1.calFile);
 	}
 	
+	/**
+	 * Tests that changes which were only written to the operation log are
+	 * restored by the next controller, and that a torn record at the end is dropped
+	 */
+	@Test
+	public void testReplayLog() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		File logFile = new File(testFile.getPath() + ".log");
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("cal1");
+		cont1.createNewCalendar("cal2");
+		CalendarEvent event1 = new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0));
+		CalendarEvent event2 = new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 2, 9, 0));
+		CalendarEvent event3 = new CalendarEvent("event3", LocalDateTime.of(2020, Month.APRIL, 3, 9, 0));
+		cont1.addEvent("cal1", event1);
+		cont1.addEvent("cal1", event2);
+		cont1.addEvent("cal1", event3);
+		cont1.removeEvent("cal1", event1);
+		event3.setDate(LocalDate.of(2020, Month.MAY, 3));
+		event3.setNotes("moved");
+		cont1.markModified("cal1", event3);
+		cont1.renameCalendar("renamed", "cal1");
+		cont1.deleteCalendar("cal2");
+		cont1.checkpoint();
+		// simulate a crash in the middle of appending a record
+		Files.write(logFile.toPath(), new byte[]{0, 0, 0, 40, 1, 2}, java.nio.file.StandardOpenOption.APPEND);
+
+		CalendarController cont2 = new CalendarController(testFile);
+		assertEquals(new HashSet<>(Arrays.asList("Default", "renamed")), cont2.getCalendarNames());
+		assertEquals(1, cont2.getEventsInMonth("renamed", 2020, 4).length);
+		assertEquals("event2", cont2.getEventsInMonth("renamed", 2020, 4)[0].getTitle());
+		CalendarEvent[] may = cont2.getEventsInMonth("renamed", 2020, 5);
+		assertEquals(1, may.length);
+		assertEquals("moved", may[0].getNotes());
+
+		// after a new snapshot, the old log must not be applied again
+		cont2.addEvent("Default", new CalendarEvent("event4", LocalDateTime.of(2020, Month.APRIL, 4, 9, 0)));
+		cont2.saveCalendars();
+		CalendarController cont3 = new CalendarController(testFile);
+		assertEquals(1, cont3.getEventsInMonth("Default", 2020, 4).length);
+		assertEquals(1, cont3.getEventsInMonth("renamed", 2020, 4).length);
+		deleteCalendarFiles(cont1.calFile);
+	}
+	
+	/**
+	 * Tests that the snapshot keeps every field of an event, and that a calendar
+	 * file in the old serialized format is still loaded
+	 */
+	@Test
+	public void testSnapshotRoundTrip() throws NoSuchCalendarException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		CalendarEvent event1 = new CalendarEvent("event1", LocalDate.of(2020, 4, 1),
+				java.time.LocalTime.of(2, 30, 20, 40), null, "room", "notes");
+		event1.setColorRGB(0x123456);
+		CalendarEvent event2 = new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 2, 9, 15));
+		cont1.addEvent("Default", event1);
+		cont1.addEvent("Default", event2);
+		cont1.saveCalendars();
+
+		CalendarEvent[] loaded = new CalendarController(testFile).getEventsInMonth("Default", 2020, 4);
+		assertEquals(2, loaded.length);
+		assertEquals(event1.getStartTime(), loaded[0].getStartTime());
+		assertEquals(null, loaded[0].getEndTime());
+		assertEquals("room", loaded[0].getLocation());
+		assertEquals("notes", loaded[0].getNotes());
+		assertEquals(0x123456, loaded[0].getColorRGB());
+		assertEquals(event2.getEndTime(), loaded[1].getEndTime());
+		assertEquals(-1, loaded[1].getColorRGB());
+
+		// a file written by the old version is an ObjectOutputStream of the map
+		java.util.HashMap<String, CalendarModel> legacy = new java.util.HashMap<>();
+		legacy.put("old", new CalendarModel(Collections.singletonList(event2)));
+		try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(
+				Files.newOutputStream(testFile.toPath()))) {
+			out.writeObject(legacy);
+		}
+		CalendarController cont2 = new CalendarController(testFile);
+		assertEquals(Collections.singleton("old"), cont2.getCalendarNames());
+		assertEquals("event2", cont2.getEventsInMonth("old", 2020, 4)[0].getTitle());
+		// wait for it to be migrated, so that the file is not written again once deleted
+		cont2.checkpoint().join();
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that a file in the legacy format is rewritten in the current format when it
+	 * is loaded, even though nothing is changed
+	 */
+	@Test
+	public void testLegacyMigration() throws NoSuchCalendarException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		java.util.HashMap<String, CalendarModel> legacy = new java.util.HashMap<>();
+		legacy.put("old", new CalendarModel(Collections.singletonList(
+				new CalendarEvent("event", LocalDateTime.of(2020, Month.APRIL, 2, 9, 15)))));
+		try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(
+				Files.newOutputStream(testFile.toPath()))) {
+			out.writeObject(legacy);
+		}
+		CalendarController cont1 = new CalendarController(testFile);
+		// forcing the log waits for the snapshot being written ahead of it
+		cont1.checkpoint().join();
+		try (java.io.DataInputStream in = new java.io.DataInputStream(Files.newInputStream(testFile.toPath()))) {
+			assertEquals(0x43414C53, in.readInt()); // "CALS"
+			assertEquals(2, in.readInt());
+		}
+		CalendarController cont2 = new CalendarController(testFile);
+		assertEquals(Collections.singleton("old"), cont2.getCalendarNames());
+		assertEquals("event", cont2.getEventsInMonth("old", 2020, 4)[0].getTitle());
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that calendars which are never used after being loaded survive being saved again
+	 */
+	@Test
+	public void testSaveUnusedCalendars() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("other");
+		cont1.addEvent("Default", new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0)));
+		cont1.addEvent("other", new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 2, 9, 0)));
+		cont1.saveCalendars();
+
+		// only "Default" is decoded before saving; "other" is copied as it was
+		CalendarController cont2 = new CalendarController(testFile);
+		cont2.addEvent("Default", new CalendarEvent("event3", LocalDateTime.of(2020, Month.APRIL, 3, 9, 0)));
+		cont2.saveCalendars();
+		cont2.saveCalendars();
+
+		CalendarController cont3 = new CalendarController(testFile);
+		assertEquals(new HashSet<>(Arrays.asList("Default", "other")), cont3.getCalendarNames());
+		assertEquals(2, cont3.getEventsInMonth("Default", 2020, 4).length);
+		assertEquals("event2", cont3.getEventsInMonth("other", 2020, 4)[0].getTitle());
+		assertEquals("event2", cont2.getEventsInMonth("other", 2020, 4)[0].getTitle());
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that changes made while a snapshot is written in the background are kept,
+	 * including when the snapshot never makes it to disk
+	 */
+	@Test
+	public void testSaveInBackground() throws Exception {
+		Files.deleteIfExists(testFile.toPath());
+		File logFile = new File(testFile.getPath() + ".log");
+		File backup = new File(testFile.getPath() + ".bak");
+		File logBackup = new File(testFile.getPath() + ".log.bak");
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.addEvent("Default", new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0)));
+		cont1.checkpoint().get();
+		Files.copy(testFile.toPath(), backup.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(logFile.toPath(), logBackup.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+		java.util.concurrent.CompletableFuture<Void> saved = cont1.saveCalendarsAsync();
+		cont1.addEvent("Default", new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 2, 9, 0)));
+		saved.get();
+		cont1.checkpoint().get();
+		assertEquals(2, new CalendarController(testFile).getEventsInMonth("Default", 2020, 4).length);
+
+		// as if the application stopped before the new snapshot was renamed into place
+		Files.copy(backup.toPath(), testFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		Files.move(logBackup.toPath(), new File(logFile.getPath() + ".prev").toPath());
+		CalendarController cont2 = new CalendarController(testFile);
+		assertEquals(2, cont2.getEventsInMonth("Default", 2020, 4).length);
+		cont2.addEvent("Default", new CalendarEvent("event3", LocalDateTime.of(2020, Month.APRIL, 3, 9, 0)));
+		cont2.saveCalendars();
+		assertEquals(3, new CalendarController(testFile).getEventsInMonth("Default", 2020, 4).length);
+		assertFalse(new File(logFile.getPath() + ".prev").exists());
+		deleteCalendarFiles(testFile);
+		Files.deleteIfExists(backup.toPath());
+	}
+
+	/**
+	 * Tests that saving is skipped when no calendar has changed since the last save
+	 */
+	@Test
+	public void testSaveOnlyWhenDirty() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("other");
+		cont1.addEvent("other", new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0)));
+		cont1.saveCalendars();
+		byte[] saved = Files.readAllBytes(testFile.toPath());
+		cont1.getEventsInMonth("other", 2020, 4);
+		cont1.saveCalendars();
+		assertTrue(Arrays.equals(saved, Files.readAllBytes(testFile.toPath())));
+
+		// renaming a calendar which was never decoded still has to be saved
+		CalendarController cont2 = new CalendarController(testFile);
+		cont2.saveCalendars();
+		assertTrue(Arrays.equals(saved, Files.readAllBytes(testFile.toPath())));
+		cont2.renameCalendar("renamed", "other");
+		cont2.saveCalendars();
+		assertFalse(Arrays.equals(saved, Files.readAllBytes(testFile.toPath())));
+		CalendarController cont3 = new CalendarController(testFile);
+		assertEquals("event1", cont3.getEventsInMonth("renamed", 2020, 4)[0].getTitle());
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that a torn calendar file is detected, and the newest backup is loaded instead
+	 */
+	@Test
+	public void testTornSnapshotFallsBack() throws NoSuchCalendarException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.addEvent("Default", new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0)));
+		cont1.saveCalendars();
+		cont1.addEvent("Default", new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 2, 9, 0)));
+		cont1.saveCalendars();
+		File backup = new File(testFile.getPath() + ".1");
+		assertTrue(backup.exists());
+
+		byte[] saved = Files.readAllBytes(testFile.toPath());
+		Files.write(testFile.toPath(), Arrays.copyOf(saved, saved.length - 1));
+		CalendarController cont2 = new CalendarController(testFile);
+		assertEquals(1, cont2.getEventsInMonth("Default", 2020, 4).length);
+		assertTrue(Arrays.equals(Files.readAllBytes(backup.toPath()), Files.readAllBytes(testFile.toPath())));
+
+		// a damaged block is only found when the calendar is decoded
+		saved[saved.length - 2] ^= 1;
+		Files.write(testFile.toPath(), saved);
+		CalendarController cont3 = new CalendarController(testFile);
+		assertThrows(java.io.UncheckedIOException.class, () -> cont3.getEventsInMonth("Default", 2020, 4));
+		// but it can still be deleted, without decoding it, here and when the log is replayed
+		assertTrue(cont3.deleteCalendar("Default"));
+		assertFalse(cont3.getCalendarNames().contains("Default"));
+		CalendarController cont4 = new CalendarController(testFile);
+		assertFalse(cont4.getCalendarNames().contains("Default"));
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that the log of a torn calendar file is moved aside rather than replaced when
+	 * an older backup is loaded, and that the loss is reported
+	 */
+	@Test
+	public void testTornSnapshotKeepsOrphanedLog() throws NoSuchCalendarException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		File logFile = new File(testFile.getPath() + ".log");
+		File orphan = new File(testFile.getPath() + ".log.orphan");
+		Files.deleteIfExists(orphan.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		assertEquals(null, cont1.getLoadWarning());
+		cont1.addEvent("Default", new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0)));
+		cont1.saveCalendars();
+		// only in the log
+		cont1.addEvent("Default", new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 2, 9, 0)));
+		cont1.checkpoint().join();
+		byte[] logged = Files.readAllBytes(logFile.toPath());
+
+		byte[] saved = Files.readAllBytes(testFile.toPath());
+		Files.write(testFile.toPath(), Arrays.copyOf(saved, saved.length - 1));
+		CalendarController cont2 = new CalendarController(testFile);
+		assertEquals(0, cont2.getEventsInMonth("Default", 2020, 4).length);
+		assertTrue(cont2.getLoadWarning() != null);
+		assertTrue(cont2.getLoadWarning().contains(orphan.getAbsolutePath()));
+		assertTrue(Arrays.equals(logged, Files.readAllBytes(orphan.toPath())));
+
+		// new changes start a new log, and leave the orphan alone
+		cont2.addEvent("Default", new CalendarEvent("event3", LocalDateTime.of(2020, Month.APRIL, 3, 9, 0)));
+		cont2.checkpoint().join();
+		assertTrue(Arrays.equals(logged, Files.readAllBytes(orphan.toPath())));
+		CalendarController cont3 = new CalendarController(testFile);
+		assertEquals(null, cont3.getLoadWarning());
+		assertEquals(1, cont3.getEventsInMonth("Default", 2020, 4).length);
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests keeping each calendar in a file of its own, in a directory
+	 */
+	@Test
+	public void testShardedCalendars() throws Exception {
+		File dir = Files.createTempDirectory("test_cals").toFile();
+		CalendarController cont1 = new CalendarController(dir);
+		cont1.createNewCalendar("other");
+		cont1.addEvent("Default", new CalendarEvent("event1", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0)));
+		cont1.addEvent("other", new CalendarEvent("event2", LocalDateTime.of(2020, Month.APRIL, 2, 9, 0)));
+		cont1.saveCalendars();
+		Set<String> shards = shardsIn(dir);
+
+		// renaming only rewrites the manifest, and changing one calendar only rewrites its file
+		CalendarController cont2 = new CalendarController(dir);
+		cont2.renameCalendar("renamed", "other");
+		cont2.saveCalendars();
+		Set<String> added = shardsIn(dir);
+		added.removeAll(shards);
+		assertTrue(added.isEmpty());
+		shards = shardsIn(dir);
+		cont2.addEvent("Default", new CalendarEvent("event3", LocalDateTime.of(2020, Month.APRIL, 3, 9, 0)));
+		cont2.saveCalendars();
+		Set<String> changed = shardsIn(dir);
+		changed.removeAll(shards);
+		assertEquals(1, changed.size());
+
+		CalendarController cont3 = new CalendarController(dir);
+		assertEquals(new HashSet<>(Arrays.asList("Default", "renamed")), cont3.getCalendarNames());
+		assertEquals(2, cont3.getEventsInMonth("Default", 2020, 4).length);
+		assertEquals("event2", cont3.getEventsInMonth("renamed", 2020, 4)[0].getTitle());
+		assertEquals(3, cont3.countEventsInRange(cont3.getCalendarNames(),
+				LocalDateTime.of(2020, Month.APRIL, 1, 0, 0), LocalDateTime.of(2020, Month.MAY, 1, 0, 0)));
+
+		for (File f : dir.listFiles()) {
+			Files.delete(f.toPath());
+		}
+		deleteCalendarFiles(dir);
+	}
+
+	private static Set<String> shardsIn(File dir) {
+		Set<String> names = new HashSet<>();
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(".cal")) names.add(f.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Tests importing an iCalendar file, and that the imported events are logged
+	 */
+	@Test
+	public void testImportIcs() throws NoSuchCalendarException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		String ics = String.join("\r\n",
+				"BEGIN:VCALENDAR",
+				"VERSION:2.0",
+				"BEGIN:VEVENT",
+				"DTSTART:20200401T090000",
+				"DTEND:20200401T103000",
+				"SUMMARY:Meeting\\, with a very long title which is folded",
+				"  onto a second line",
+				"LOCATION:Room 1",
+				"DESCRIPTION:first line\\nsecond line",
+				"BEGIN:VALARM",
+				"DESCRIPTION:not the event's notes",
+				"END:VALARM",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"DTSTART;VALUE=DATE:20200402",
+				"SUMMARY:All day",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"DTSTART:20200403T120000Z",
+				"DURATION:PT1H",
+				"SUMMARY:In UTC",
+				"END:VEVENT",
+				"BEGIN:VEVENT",
+				"SUMMARY:No start",
+				"END:VEVENT",
+				"END:VCALENDAR", "");
+		IcsImporter.Result result = cont1.importEvents("Default", new StringReader(ics));
+		assertEquals(3, result.imported);
+		assertEquals(1, result.skipped);
+
+		CalendarEvent meeting = cont1.getEventsInDay("Default", LocalDate.of(2020, 4, 1))[0];
+		assertEquals("Meeting, with a very long title which is folded onto a second line", meeting.getTitle());
+		assertEquals(LocalTime.of(10, 30), meeting.getEndTime());
+		assertEquals("Room 1", meeting.getLocation());
+		assertEquals("first line\nsecond line", meeting.getNotes());
+		CalendarEvent allDay = cont1.getEventsInDay("Default", LocalDate.of(2020, 4, 2))[0];
+		assertEquals(LocalTime.MIDNIGHT, allDay.getStartTime());
+		assertEquals(LocalTime.MAX, allDay.getEndTime());
+		LocalDateTime utc = LocalDateTime.of(2020, 4, 3, 12, 0).atOffset(ZoneOffset.UTC)
+				.atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+		assertEquals(utc.toLocalTime(), cont1.getEventsInDay("Default", utc.toLocalDate())[0].getStartTime());
+
+		// the events were logged, so they are there when the calendars are loaded again
+		CalendarController cont2 = new CalendarController(testFile);
+		assertEquals(3, cont2.countEventsInRange(cont2.getCalendarNames(),
+				LocalDateTime.of(2020, Month.MARCH, 1, 0, 0), LocalDateTime.of(2020, Month.MAY, 1, 0, 0)));
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests exporting calendars as iCalendar files, and reading them back in
+	 */
+	@Test
+	public void testExportIcs() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("other");
+		cont1.addEvent("Default", new CalendarEvent("Meeting; with, escapes\\ and a title long enough to be folded",
+				LocalDate.of(2020, 4, 1), LocalTime.of(9, 0), LocalTime.of(10, 30), "Room 1", "two\nlines"));
+		cont1.addEvent("Default", new CalendarEvent("All day", LocalDate.of(2020, 4, 2),
+				LocalTime.MIDNIGHT, LocalTime.MAX, null, null));
+		cont1.addEvent("Default", new CalendarEvent("Later", LocalDateTime.of(2020, 6, 1, 9, 0)));
+		cont1.addEvent("other", new CalendarEvent("Other", LocalDate.of(2020, 4, 3),
+				LocalTime.of(9, 0), LocalTime.of(10, 0), null, null));
+
+		StringWriter out = new StringWriter();
+		assertEquals(3, cont1.exportCalendar("Default", out));
+		for (String line : out.toString().split("\r\n")) {
+			assertTrue(line.getBytes(StandardCharsets.UTF_8).length <= 75);
+		}
+		cont1.createNewCalendar("copy");
+		cont1.importEvents("copy", new StringReader(out.toString()));
+		List<CalendarEvent> original = cont1.streamEventsInRange("Default", LocalDateTime.MIN, LocalDateTime.MAX,
+				0, Long.MAX_VALUE).collect(Collectors.toList());
+		List<CalendarEvent> copy = cont1.streamEventsInRange("copy", LocalDateTime.MIN, LocalDateTime.MAX,
+				0, Long.MAX_VALUE).collect(Collectors.toList());
+		assertEquals(original.size(), copy.size());
+		for (int i = 0; i < original.size(); i++) {
+			assertEquals(original.get(i).getTitle(), copy.get(i).getTitle());
+			assertEquals(original.get(i).getDate(), copy.get(i).getDate());
+			assertEquals(original.get(i).getStartTime(), copy.get(i).getStartTime());
+			assertEquals(original.get(i).getLocation(), copy.get(i).getLocation());
+			assertEquals(original.get(i).getNotes(), copy.get(i).getNotes());
+		}
+		assertEquals(LocalTime.MAX, copy.get(1).getEndTime());
+
+		// only the events within a range
+		StringWriter april = new StringWriter();
+		assertEquals(2, cont1.exportEvents("Default", LocalDateTime.of(2020, 4, 1, 0, 0).minusSeconds(1),
+				LocalDateTime.of(2020, 5, 1, 0, 0), april));
+
+		// several calendars at once, into files of their own
+		File a = new File("test_export_a.ics"), b = new File("test_export_b.ics");
+		Map<String, File> targets = new HashMap<>();
+		targets.put("Default", a);
+		targets.put("other", b);
+		assertEquals(4, cont1.exportCalendars(targets));
+		assertTrue(new String(Files.readAllBytes(b.toPath()), StandardCharsets.UTF_8).contains("SUMMARY:Other"));
+
+		// and on another thread, from the events as they were when it was started
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CompletableFuture<Integer> exported = cont1.exportCalendarsAsync(targets, executor);
+			cont1.addEvent("other", new CalendarEvent("Later", LocalDateTime.of(2020, 6, 1, 9, 0)));
+			assertEquals(4, (int) exported.join());
+			assertFalse(new String(Files.readAllBytes(b.toPath()), StandardCharsets.UTF_8).contains("SUMMARY:Later"));
+			assertThrows(NoSuchCalendarException.class,
+					() -> cont1.exportCalendarsAsync(Collections.singletonMap("missing", a), executor));
+		} finally {
+			executor.shutdown();
+		}
+		Files.delete(a.toPath());
+		Files.delete(b.toPath());
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests moving events between calendars in one batch, and that bulk removals are logged
+	 */
+	@Test
+	public void testBatchChanges() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("other");
+		List<CalendarEvent> events = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			events.add(new CalendarEvent("event" + i, LocalDateTime.of(2020, Month.APRIL, 1 + i, 9, 0)));
+		}
+		assertEquals(10, cont1.addEvents("Default", events));
+		cont1.saveCalendars();
+
+		cont1.beginBatch();
+		assertEquals(4, cont1.removeEvents("Default", events.subList(2, 6)));
+		cont1.addEvents("other", events.subList(2, 6));
+		CalendarEvent replacement = new CalendarEvent("replacement", LocalDateTime.of(2020, Month.MAY, 1, 9, 0));
+		assertTrue(cont1.replaceEvents("Default", Collections.singletonList(events.get(0)),
+				Collections.singletonList(replacement)));
+		Map<String, CalendarChange> changes = cont1.endBatch();
+		assertEquals(2, changes.size());
+		assertEquals(5, changes.get("Default").getRemoved().size());
+		assertEquals(Collections.singleton(replacement), changes.get("Default").getAdded());
+		assertEquals(4, changes.get("other").getAdded().size());
+		assertThrows(IllegalStateException.class, cont1::endBatch);
+
+		// the bulk changes were logged, so they are there when the calendars are loaded again
+		CalendarController cont2 = new CalendarController(testFile);
+		List<CalendarEvent> remaining = cont2.streamEventsInRange("Default", LocalDateTime.MIN, LocalDateTime.MAX,
+				0, Long.MAX_VALUE).collect(Collectors.toList());
+		assertEquals(Arrays.asList("event1", "event6", "event7", "event8", "event9", "replacement"),
+				remaining.stream().map(CalendarEvent::getTitle).collect(Collectors.toList()));
+		assertEquals(4, cont2.getEventsInMonth("other", 2020, 4).length);
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that listeners on the controller hear about changes to each calendar under its current name
+	 */
+	@Test
+	public void testChangeListeners() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		List<String> names = new ArrayList<>();
+		List<CalendarChange> changes = new ArrayList<>();
+		cont1.addListener((calName, change) -> {
+			names.add(calName);
+			changes.add(change);
+		});
+		CalendarEvent event = new CalendarEvent("event", LocalDateTime.of(2020, Month.APRIL, 1, 9, 0));
+		cont1.addEvent("Default", event);
+		assertEquals(Collections.singletonList("Default"), names);
+		assertEquals(Collections.singleton(event), changes.get(0).getAdded());
+
+		// changes after a rename are passed on under the new name
+		cont1.renameCalendar("Work", "Default");
+		event.setDate(LocalDate.of(2020, Month.APRIL, 3));
+		cont1.markModified("Work", event);
+		assertEquals(Arrays.asList("Default", "Work"), names);
+		assertEquals(LocalDate.of(2020, Month.APRIL, 1), changes.get(1).getFrom().toLocalDate());
+		assertEquals(LocalDate.of(2020, Month.APRIL, 3), changes.get(1).getTo().toLocalDate());
+
+		// a batch is passed on once per calendar
+		cont1.createNewCalendar("other");
+		cont1.beginBatch();
+		cont1.removeEvent("Work", event);
+		cont1.addEvent("other", event);
+		cont1.endBatch();
+		assertEquals(4, names.size());
+		assertEquals(new HashSet<>(Arrays.asList("Work", "other")), new HashSet<>(names.subList(2, 4)));
+
+		// a calendar created again under a deleted calendar's name is a different calendar
+		cont1.deleteCalendar("other");
+		cont1.createNewCalendar("other");
+		cont1.addEvent("other", new CalendarEvent("again", LocalDateTime.of(2020, Month.APRIL, 5, 9, 0)));
+		assertEquals(5, names.size());
+		assertEquals(1, changes.get(4).getAdded().size());
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that getting events by day on another thread gives the same result as on this one,
+	 * even while the calendar is being changed
+	 */
+	@Test
+	public void testEventsByDayAsync() throws Exception {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("other");
+		List<CalendarEvent> events = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			events.add(new CalendarEvent("event" + i, LocalDateTime.of(2020, Month.APRIL, 1 + i % 30, i % 24, 0)));
+		}
+		cont1.addEvents("Default", events.subList(0, 500));
+		cont1.addEvents("other", events.subList(500, 1000));
+		Set<String> names = new HashSet<>(Arrays.asList("Default", "other"));
+		LocalDate first = LocalDate.of(2020, Month.APRIL, 5);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertEquals(cont1.getEventsByDay(names, first, 7),
+					cont1.getEventsByDayAsync(names, first, 7, executor).get());
+
+			// changes made while reading wait for the read, so each read sees the calendars
+			// between two changes
+			List<CompletableFuture<List<List<Pair<String, CalendarEvent>>>>> reads = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				reads.add(cont1.getEventsByDayAsync(names, first, 7, executor));
+				CalendarEvent old = events.get(i);
+				CalendarEvent moved = new CalendarEvent(old.getTitle(), old.getDate().plusDays(1).atTime(old.getStartTime()));
+				cont1.removeEvent("Default", old);
+				cont1.addEvent("Default", moved);
+				events.set(i, moved);
+			}
+			for (CompletableFuture<List<List<Pair<String, CalendarEvent>>>> read : reads) {
+				List<List<Pair<String, CalendarEvent>>> days = read.get();
+				assertEquals(7, days.size());
+				for (int d = 0; d < 7; d++) {
+					for (Pair<String, CalendarEvent> p : days.get(d)) {
+						assertEquals(first.plusDays(d), p.getValue().getDate());
+					}
+				}
+			}
+
+			// once the changes are done, a read sees all of them
+			List<List<Pair<String, CalendarEvent>>> days = cont1.getEventsByDayAsync(names, first, 7, executor).get();
+			for (int d = 0; d < 7; d++) {
+				LocalDate day = first.plusDays(d);
+				List<String> expected = events.stream().filter(e -> e.getDate().equals(day))
+						.map(CalendarEvent::getTitle).sorted().collect(Collectors.toList());
+				assertEquals(expected, days.get(d).stream().map(p -> p.getValue().getTitle())
+						.sorted().collect(Collectors.toList()));
+				for (int i = 1; i < days.get(d).size(); i++) {
+					assertTrue(!days.get(d).get(i).getValue().getStartTime()
+							.isBefore(days.get(d).get(i - 1).getValue().getStartTime()));
+				}
+			}
+			assertThrows(NoSuchCalendarException.class,
+					() -> cont1.getEventsByDayAsync(Collections.singleton("missing"), first, 7, executor));
+		} finally {
+			executor.shutdown();
+		}
+		deleteCalendarFiles(testFile);
+	}
+
+	/**
+	 * Tests that runs of days are cached by calendar and version, that patches after a
+	 * change bypass the cache, and that the least recently used runs are evicted
+	 */
+	@Test
+	public void testQueryCache() throws NoSuchCalendarException, CalendarAlreadyExistsException, IOException {
+		Files.deleteIfExists(testFile.toPath());
+		CalendarController cont1 = new CalendarController(testFile);
+		cont1.createNewCalendar("other");
+		LocalDate first = LocalDate.of(2020, Month.APRIL, 5);
+		cont1.addEvent("Default", new CalendarEvent("a", first.atTime(9, 0)));
+		cont1.addEvent("other", new CalendarEvent("b", first.atTime(10, 0)));
+		Set<String> names = new HashSet<>(Arrays.asList("Default", "other"));
+
+		List<List<Pair<String, CalendarEvent>>> week = cont1.getEventsByDay(names, first, 7);
+		assertEquals(0, cont1.getQueryCache().getStats().hits);
+		assertEquals(2, cont1.getQueryCache().getStats().misses);
+		assertEquals(week, cont1.getEventsByDay(names, first, 7));
+		assertEquals(2, cont1.getQueryCache().getStats().hits);
+
+		// only the calendar which changed is read again
+		CalendarEvent moved = new CalendarEvent("c", first.atTime(8, 0));
+		cont1.addEvent("Default", moved);
+		week = cont1.getEventsByDay(names, first, 7);
+		assertEquals(3, cont1.getQueryCache().getStats().hits);
+		assertEquals(3, cont1.getQueryCache().getStats().misses);
+		assertEquals(moved, week.get(0).get(0).getValue());
+		moved.setDate(first.plusDays(1));
+		cont1.markModified("Default", moved);
+		assertEquals(moved, cont1.getEventsByDay(names, first, 7).get(1).get(0).getValue());
+
+		// patches after a change are read around the cache
+		QueryCache.Stats before = cont1.getQueryCache().getStats();
+		List<List<Pair<String, CalendarEvent>>> patch = cont1.getChangedEventsByDay(names, first.plusDays(1), 2);
+		assertEquals(cont1.getEventsByDay(names, first, 7).subList(1, 3), patch);
+		QueryCache.Stats after = cont1.getQueryCache().getStats();
+		assertEquals(before.misses, after.misses);
+		assertEquals(before.size, after.size);
+
+		// a calendar deleted and created again is not mistaken for the old one
+		cont1.deleteCalendar("other");
+		cont1.createNewCalendar("other");
+		// at the same version as the old one
+		cont1.addEvent("other", new CalendarEvent("d", first.plusDays(30).atTime(10, 0)));
+		assertTrue(cont1.getEventsByDay(Collections.singleton("other"), first, 7).stream()
+				.allMatch(List::isEmpty));
+
+		cont1.getQueryCache().setCapacity(1);
+		assertEquals(1, cont1.getQueryCache().getStats().size);
+		assertTrue(cont1.getQueryCache().getStats().evictions > 0);
+		deleteCalendarFiles(testFile);
+	}
+
 	/**
 	 * Tests loadCalendars()
 	 * @throws NoSuchCalendarException 
@@ -325,7 +1078,10 @@ public class CalendarControllerTests {
 		           });
 		
 		assertTrue(events[0].equals(cont1.getEventsInHour("Default", x)[0]));
-		Files.deleteIfExists(cont1.calFile.toPath());
+		deleteCalendarFiles(cont1.calFile);
+		// testFile1 names no file, but its logs are still kept next to where it would be
+		Files.deleteIfExists(new File(testFile1.getPath() + ".log").toPath());
+		Files.deleteIfExists(new File(testFile1.getPath() + ".log.prev").toPath());
 	}
 	
 }
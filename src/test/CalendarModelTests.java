@@ -1,12 +1,27 @@
 package test;
 
+import model.CalendarChange;
 import model.CalendarEvent;
+import model.CalendarListener;
+import model.EventChange;
 import model.CalendarModel;
 import org.junit.Test;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class CalendarModelTests {
 //    @Test
@@ -28,4 +43,296 @@ public class CalendarModelTests {
 //        CalendarEvent[] events = model.getEventsInHour(2020, Calendar.APRIL, 19, 3);
 //        assertEquals(1, events.length);
 //    }
+
+    /**
+     * build a model holding a number of random events spread over a couple of years
+     */
+    private static CalendarModel randomModel(Random rng, int n) {
+        CalendarModel model = new CalendarModel();
+        for (int i = 0; i < n; i++) {
+            LocalDate date = LocalDate.of(2019, 1, 1).plusDays(rng.nextInt(730));
+            LocalTime start = LocalTime.of(rng.nextInt(24), rng.nextInt(4) * 15);
+            LocalTime end = start.plusMinutes(rng.nextInt(120));
+            if (end.isBefore(start)) end = LocalTime.MAX;
+            model.addEvent(new CalendarEvent("event" + i, date, start, end, null, null));
+        }
+        return model;
+    }
+
+    /**
+     * sort events by their start, the order in which the index returns them
+     */
+    private static CalendarEvent[] byStart(CalendarEvent[] events) {
+        CalendarEvent[] sorted = events.clone();
+        Arrays.sort(sorted, Comparator.comparing((CalendarEvent e) -> e.getDate().atTime(e.getStartTime())));
+        return sorted;
+    }
+
+    /**
+     * Tests that the indexed range queries agree with a full scan
+     */
+    @Test
+    public void testIndexMatchesScan() {
+        Random rng = new Random(335);
+        CalendarModel model = randomModel(rng, 2000);
+        for (int i = 0; i < 200; i++) {
+            LocalDateTime before = LocalDateTime.of(2019, 1, 1, 0, 0)
+                    .plusMinutes(rng.nextInt(730 * 24 * 60));
+            LocalDateTime after = before.plusMinutes(rng.nextInt(60 * 24 * 40));
+            assertArrayEquals(byStart(model.scanEventsInRange(before, after)),
+                    model.getEventsInRange(before, after));
+        }
+        // remove half of the events, then check again
+        CalendarEvent[] all = model.getAllEvents().toArray(new CalendarEvent[0]);
+        for (int i = 0; i < all.length; i += 2) {
+            model.removeEvent(all[i]);
+        }
+        assertEquals(all.length / 2, model.getEventsInRange(
+                LocalDateTime.of(2018, 1, 1, 0, 0), LocalDateTime.of(2022, 1, 1, 0, 0)).length);
+        assertEquals(model.scanEventsInRange(LocalDateTime.of(2019, 6, 1, 0, 0),
+                LocalDateTime.of(2019, 7, 1, 0, 0)).length,
+                model.getEventsInMonth(2019, 6).length);
+    }
+
+    /**
+     * Tests that the per-day index stays consistent with a full scan as events are edited
+     */
+    @Test
+    public void testDayIndexMatchesScan() {
+        Random rng = new Random(4);
+        CalendarModel model = randomModel(rng, 3000);
+        CalendarEvent[] all = model.getAllEvents().toArray(new CalendarEvent[0]);
+        for (int i = 0; i < all.length; i += 3) {
+            all[i].setDate(all[i].getDate().plusDays(rng.nextInt(60) - 30));
+            model.markModified(all[i]);
+        }
+        for (int i = 1; i < all.length; i += 3) {
+            model.removeEvent(all[i]);
+        }
+        for (int i = 0; i < 100; i++) {
+            LocalDate day = LocalDate.of(2019, 1, 1).plusDays(rng.nextInt(730));
+            LocalDateTime midnight = day.atStartOfDay();
+            assertArrayEquals(byStart(model.scanEventsInRange(midnight.minusNanos(1), midnight.plusDays(1))),
+                    model.getEventsInDay(day));
+            int hour = rng.nextInt(24);
+            assertEquals(model.scanEventsInRange(midnight.plusHours(hour).minusSeconds(1),
+                    midnight.plusHours(hour + 1)).length,
+                    model.getEventsInHour(day.getYear(), day.getMonthValue(), day.getDayOfMonth(), hour).length);
+        }
+    }
+
+    /**
+     * Tests the lazy query API: streams with offset/limit, counting, and the next event lookup
+     */
+    @Test
+    public void testStreamingQueries() {
+        Random rng = new Random(5);
+        CalendarModel model = randomModel(rng, 1000);
+        LocalDateTime before = LocalDateTime.of(2019, 3, 1, 0, 0);
+        LocalDateTime after = LocalDateTime.of(2019, 9, 1, 0, 0);
+        CalendarEvent[] expected = model.getEventsInRange(before, after);
+
+        assertEquals(expected.length, model.countEventsInRange(before, after));
+        assertEquals(expected.length, model.spliteratorEventsInRange(before, after, 0, Long.MAX_VALUE)
+                .getExactSizeIfKnown());
+        assertArrayEquals(Arrays.copyOfRange(expected, 10, 25),
+                model.streamEventsInRange(before, after, 10, 15).toArray());
+        assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 3, expected.length),
+                model.streamEventsInRange(before, after, expected.length - 3, 15).toArray());
+        assertEquals(0, model.streamEventsInRange(before, after, expected.length + 5, 15).count());
+        assertEquals(Arrays.asList(expected),
+                model.streamEventsInRange(before, after).collect(Collectors.toList()));
+
+        assertEquals(expected[0], model.getNextEvent(before));
+        assertEquals(null, model.getNextEvent(LocalDateTime.of(2030, 1, 1, 0, 0)));
+    }
+
+    /**
+     * Tests that an event whose date was edited is found at its new date once marked modified
+     */
+    @Test
+    public void testMarkModifiedMovesEvent() {
+        CalendarModel model = new CalendarModel();
+        CalendarEvent event = new CalendarEvent("test", LocalDateTime.of(2020, 4, 19, 3, 20));
+        model.addEvent(event);
+        assertEquals(1, model.getEventsInMonth(2020, 4).length);
+
+        event.setDate(LocalDate.of(2020, 5, 2));
+        model.markModified(event);
+        assertEquals(0, model.getEventsInMonth(2020, 4).length);
+        assertEquals(1, model.getEventsInDay(LocalDate.of(2020, 5, 2)).length);
+        assertEquals(1, model.getEventsInHour(2020, 5, 2, 3).length);
+    }
+
+    /**
+     * Tests getEventsOverlapping(), which includes events that start before the range
+     */
+    @Test
+    public void testGetEventsOverlapping() {
+        CalendarModel model = new CalendarModel();
+        LocalDate date = LocalDate.of(2020, 4, 19);
+        CalendarEvent longEvent = new CalendarEvent("long", date,
+                LocalTime.of(8, 0), LocalTime.of(17, 0), null, null);
+        CalendarEvent shortEvent = new CalendarEvent("short", date,
+                LocalTime.of(12, 0), LocalTime.of(12, 30), null, null);
+        model.addEvent(longEvent);
+        model.addEvent(shortEvent);
+
+        assertArrayEquals(new CalendarEvent[]{longEvent},
+                model.getEventsOverlapping(date.atTime(15, 0), date.atTime(16, 0)));
+        assertArrayEquals(new CalendarEvent[]{longEvent, shortEvent},
+                model.getEventsOverlapping(date.atTime(12, 15), date.atTime(13, 0)));
+        assertEquals(0, model.getEventsInRange(date.atTime(15, 0), date.atTime(16, 0)).length);
+    }
+
+    /**
+     * Tests that bulk changes and batches notify listeners once, with everything that changed
+     */
+    @Test
+    public void testIndexOf() {
+        CalendarModel model = new CalendarModel();
+        List<CalendarEvent> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            events.add(new CalendarEvent("event" + i, LocalDateTime.of(2020, 4, 1 + i % 30, i % 24, 0)));
+        }
+        model.addEvents(events.subList(0, 50));
+        for (CalendarEvent event : events.subList(50, 100)) {
+            model.addEvent(event);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            CalendarEvent event = events.get(random.nextInt(events.size()));
+            switch (random.nextInt(4)) {
+                case 0:
+                    model.removeEvent(event);
+                    break;
+                case 1:
+                    model.addEvent(event);
+                    break;
+                case 2:
+                    model.removeEvents(Collections.singletonList(event));
+                    break;
+                default:
+                    event.setDate(event.getDate().plusDays(1));
+                    model.markModified(event);
+            }
+            CalendarEvent probe = events.get(random.nextInt(events.size()));
+            assertEquals(model.getAllEvents().indexOf(probe), model.indexOf(probe));
+        }
+        for (CalendarEvent event : events) {
+            assertEquals(model.getAllEvents().indexOf(event), model.indexOf(event));
+        }
+    }
+
+    @Test
+    public void testBatchNotifiesOnce() {
+        CalendarModel model = new CalendarModel();
+        List<CalendarChange> changes = new ArrayList<>();
+        model.addListener((calendar, change) -> changes.add(change));
+        List<CalendarEvent> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            events.add(new CalendarEvent("event" + i, LocalDateTime.of(2020, 4, 1 + i % 30, i % 24, 0)));
+        }
+        assertEquals(100, model.addEvents(events));
+        assertEquals(0, model.addEvents(events));
+        assertEquals(1, changes.size());
+        assertEquals(100, changes.get(0).getAdded().size());
+
+        CalendarEvent moved = events.get(0);
+        CalendarEvent added = new CalendarEvent("added", LocalDateTime.of(2020, 5, 1, 9, 0));
+        model.beginBatch();
+        assertEquals(50, model.removeEvents(events.subList(0, 50)));
+        model.addEvent(added);
+        model.addEvent(moved);
+        moved.setDate(LocalDate.of(2020, 6, 1));
+        model.markModified(moved);
+        model.markModified(added);
+        assertEquals(1, changes.size());
+        CalendarChange change = model.endBatch();
+        assertEquals(2, changes.size());
+        assertEquals(change, changes.get(1));
+        // the removed event which was added back again only shows as modified
+        assertEquals(49, change.getRemoved().size());
+        assertEquals(Collections.singleton(added), change.getAdded());
+        assertEquals(Collections.singleton(moved), change.getModified());
+        assertEquals(52, model.getAllEvents().size());
+        assertEquals(1, model.getEventsInMonth(2020, 6).length);
+        assertArrayEquals(model.scanEventsInRange(LocalDateTime.MIN, LocalDateTime.MAX),
+                model.getAllEvents().toArray(new CalendarEvent[0]));
+
+        assertTrue(model.replaceEvents(events.subList(50, 100), Collections.singletonList(events.get(1))));
+        assertEquals(3, model.getAllEvents().size());
+        assertEquals(3, changes.size());
+    }
+
+    /**
+     * Tests that listeners are told which events changed and where they were before
+     */
+    @Test
+    public void testListenerDeltas() {
+        CalendarModel model = new CalendarModel();
+        List<CalendarChange> changes = new ArrayList<>();
+        CalendarListener listener = (calendar, change) -> changes.add(change);
+        model.addListener(listener);
+        List<Runnable> delivered = new ArrayList<>();
+        model.addListener((calendar, change) -> changes.add(change), delivered::add);
+
+        LocalDate date = LocalDate.of(2020, 4, 19);
+        CalendarEvent event = new CalendarEvent("test", date, LocalTime.of(9, 0), LocalTime.of(10, 0), null, null);
+        model.addEvent(event);
+        event.setStartTime(LocalTime.of(14, 0));
+        event.setEndTime(LocalTime.of(15, 0));
+        model.markModified(event);
+        model.removeEvent(event);
+        model.markModified(event); // no longer in the calendar, so not a change
+        assertEquals(3, changes.size());
+        assertEquals(3, delivered.size());
+
+        EventChange added = changes.get(0).getChanges().iterator().next();
+        assertTrue(added instanceof EventChange.Added);
+        assertEquals(date.atTime(9, 0), added.getFrom());
+        EventChange.Modified modified = (EventChange.Modified) changes.get(1).getChanges().iterator().next();
+        assertEquals(date.atTime(9, 0), modified.getStartBefore());
+        assertEquals(date.atTime(14, 0), modified.getStartAfter());
+        assertEquals(date.atTime(9, 0), modified.getFrom());
+        assertEquals(date.atTime(15, 0), modified.getTo());
+        assertTrue(modified.isMoved());
+        EventChange removed = changes.get(2).getChanges().iterator().next();
+        assertTrue(removed instanceof EventChange.Removed);
+        assertEquals(date.atTime(14, 0), removed.getFrom());
+
+        // changes handed to an executor are delivered when it runs them
+        delivered.forEach(Runnable::run);
+        assertEquals(6, changes.size());
+        model.removeListener(listener);
+        model.addEvent(event);
+        assertEquals(6, changes.size());
+        assertEquals(4, delivered.size());
+    }
+
+    /**
+     * Tests that the list of events handed out by shareEvents() does not see later additions
+     * and removals, while the calendar does
+     */
+    @Test
+    public void testShareEvents() {
+        LocalDate date = LocalDate.of(2020, 4, 19);
+        CalendarEvent a = new CalendarEvent("a", date.atTime(9, 0));
+        CalendarEvent b = new CalendarEvent("b", date.atTime(10, 0));
+        CalendarEvent c = new CalendarEvent("c", date.atTime(11, 0));
+        CalendarModel model = new CalendarModel(Arrays.asList(a, b));
+
+        List<CalendarEvent> shared = model.shareEvents();
+        model.addEvent(c);
+        model.removeEvent(a);
+        assertEquals(Arrays.asList(a, b), shared);
+        assertEquals(Arrays.asList(b, c), model.getAllEvents());
+        assertEquals(1, model.indexOf(c));
+
+        // a list shared again is only copied once more
+        shared = model.shareEvents();
+        model.replaceEvents(Collections.singletonList(b), Collections.singletonList(a));
+        assertEquals(Arrays.asList(b, c), shared);
+        assertEquals(Arrays.asList(c, a), model.getAllEvents());
+    }
 }
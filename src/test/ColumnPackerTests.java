@@ -0,0 +1,77 @@
+package test;
+
+import org.junit.Test;
+import view.ColumnPacker;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnPackerTests {
+
+    /**
+     * Tests that intervals which only touch share a column, and ones which overlap do not
+     */
+    @Test
+    public void testTouchingIntervals() {
+        ColumnPacker packer = new ColumnPacker();
+        int[] columns = new int[3];
+        assertEquals(1, packer.pack(new int[]{20, 0, 10}, new int[]{30, 10, 20}, 3, columns));
+        assertArrayEquals(new int[]{0, 0, 0}, columns);
+        assertEquals(2, packer.pack(new int[]{0, 5, 10}, new int[]{10, 15, 20}, 3, columns));
+        assertArrayEquals(new int[]{0, 1, 0}, columns);
+    }
+
+    /**
+     * Tests packing random days against a brute force count of the most intervals which
+     * overlap at once
+     */
+    @Test
+    public void testRandomDays() {
+        Random random = new Random(21);
+        ColumnPacker packer = new ColumnPacker();
+        for (int day = 0; day < 500; day++) {
+            int n = random.nextInt(day < 100 ? 8 : 200);
+            int[] starts = new int[n];
+            int[] ends = new int[n];
+            for (int i = 0; i < n; i++) {
+                // on the quarter hour, so that many intervals touch or start together
+                starts[i] = 15 * random.nextInt(96);
+                ends[i] = starts[i] + 15 * (1 + random.nextInt(8));
+            }
+            int[] columns = new int[n];
+            int numColumns = packer.pack(starts, ends, n, columns);
+
+            int maxOverlap = 0;
+            for (int i = 0; i < n; i++) {
+                // the most overlap is at the start of some interval
+                int overlap = 0;
+                for (int j = 0; j < n; j++) {
+                    if (starts[j] <= starts[i] && starts[i] < ends[j]) overlap++;
+                }
+                maxOverlap = Math.max(maxOverlap, overlap);
+            }
+            assertEquals(maxOverlap, numColumns);
+
+            for (int i = 0; i < n; i++) {
+                assertTrue(columns[i] >= 0 && columns[i] < numColumns);
+                for (int j = i + 1; j < n; j++) {
+                    if (columns[i] == columns[j]) {
+                        assertTrue(ends[i] <= starts[j] || ends[j] <= starts[i]);
+                    }
+                }
+            }
+
+            // the same intervals are packed the same way, by this packer or a new one
+            int[] again = new int[n];
+            assertEquals(numColumns, packer.pack(starts, ends, n, again));
+            assertArrayEquals(columns, again);
+            Arrays.fill(again, -1);
+            assertEquals(numColumns, new ColumnPacker().pack(starts, ends, n, again));
+            assertArrayEquals(columns, again);
+        }
+    }
+}
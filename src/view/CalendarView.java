@@ -2,6 +2,7 @@ package view;
 
 import controller.CalendarAlreadyExistsException;
 import controller.CalendarController;
+import controller.IcsImporter;
 import controller.NoSuchCalendarException;
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -10,11 +11,21 @@ import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Kitty Elliott
@@ -23,12 +34,14 @@ public class CalendarView extends Application {
     private Stage stage;
     private CalendarController controller;
     private CalendarViewMode month, day, week,
+            canvasMonth, canvasWeek,
             current;
     private Set<String> currentlyVisibleCals;
     private VBox mainColumn;
     private final Duration
             SAVE_INTERVAL = Duration.ofSeconds(30),
-            SAVE_DELAY = SAVE_INTERVAL;
+            SAVE_DELAY = SAVE_INTERVAL,
+            SAVE_TIMEOUT = Duration.ofSeconds(10);
 
     /**
      * @param stage represents the main application window.
@@ -48,6 +61,8 @@ public class CalendarView extends Application {
         month = new MonthView(controller);
         day = new DayView(controller);
         week = new WeekView(controller);
+        canvasMonth = new CanvasMonthView(controller);
+        canvasWeek = new CanvasWeekView(controller);
 
         current = month;
 
@@ -55,27 +70,46 @@ public class CalendarView extends Application {
 
         stage.setTitle("Calendar");
         stage.setScene(new Scene(mainColumn));
-        // schedule periodic saving
+        // schedule periodic saving. changes are logged as they happen,
+        // so this only has to force the log to disk, and occasionally compact it.
+        // the writing is done in the background, so the UI never waits for the disk
         Timer timer = new Timer();
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
                 // use runLater to avoid data races
-                Platform.runLater(() -> controller.saveCalendars());
+                Platform.runLater(() -> controller.checkpoint().exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                }));
             }
         }, SAVE_DELAY.toMillis(), SAVE_INTERVAL.toMillis());
         stage.setOnCloseRequest(e -> {
             timer.cancel();
-            controller.saveCalendars();
+            try {
+                controller.checkpoint().get(SAVE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException ex) {
+                ex.printStackTrace();
+            }
         });
 
         stage.show();
+        if (controller.getLoadWarning() != null) {
+            new Alert(Alert.AlertType.WARNING, controller.getLoadWarning()).show();
+        }
     }
 
     /**
      * @return a menu bar full of menus.
      */
     private MenuBar constructMenus() {
+        Menu fileMenu = new Menu("File");
+        MenuItem importItem = new MenuItem("Import Events...");
+        importItem.setOnAction(this::importEvents);
+        MenuItem exportItem = new MenuItem("Export Visible Calendars...");
+        exportItem.setOnAction(this::exportCalendars);
+        fileMenu.getItems().addAll(importItem, exportItem);
+
         Menu viewMenu = new Menu("View");
         MenuItem monthItem = new MenuItem("Month");
         MenuItem weekItem = new MenuItem("Week");
@@ -83,7 +117,13 @@ public class CalendarView extends Application {
         monthItem.setOnAction(e -> switchTo(month));
         weekItem.setOnAction(e -> switchTo(week));
         dayItem.setOnAction(e -> switchTo(day));
-        viewMenu.getItems().addAll(monthItem, dayItem, weekItem);
+        // the same views painted on a canvas, for calendars with many events
+        MenuItem canvasMonthItem = new MenuItem("Month (Canvas)");
+        MenuItem canvasWeekItem = new MenuItem("Week (Canvas)");
+        canvasMonthItem.setOnAction(e -> switchTo(canvasMonth));
+        canvasWeekItem.setOnAction(e -> switchTo(canvasWeek));
+        viewMenu.getItems().addAll(monthItem, dayItem, weekItem,
+                new SeparatorMenuItem(), canvasMonthItem, canvasWeekItem);
 
         Menu createMenu = new Menu("Create");
         MenuItem createEventItem = new MenuItem("New Event");
@@ -101,7 +141,7 @@ public class CalendarView extends Application {
         deleteCalItem.setOnAction(this::deleteCalendar);
         changeMenu.getItems().addAll(visibleCalsMenuItem, renameCalItem, deleteCalItem);
 
-        return new MenuBar(viewMenu, createMenu, changeMenu);
+        return new MenuBar(fileMenu, viewMenu, createMenu, changeMenu);
     }
 
     /**
@@ -206,14 +246,92 @@ public class CalendarView extends Application {
                 .ifPresent(p -> {
                     try {
                         controller.addEvent(p.getKey(), p.getValue());
-                        // referesh the current view
-                        current.setDate(current.getDate());
                     } catch (NoSuchCalendarException ex) {
                         ex.printStackTrace();
                     }
                 });
     }
 
+    /**
+     * event handler to import the events of an iCalendar file into a calendar.
+     * The file is read on another thread, and each batch of events is added on the
+     * FX thread before the next is read, so the UI stays responsive however large the file.
+     *
+     * @param e unused
+     */
+    private void importEvents(ActionEvent e) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Import Events");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("iCalendar files", "*.ics"));
+        File file = chooser.showOpenDialog(stage);
+        if (file == null) return;
+        selectOneCalendar("Select a calendar to import the events into").ifPresent(calName -> {
+            Thread importer = new Thread(() -> {
+                try (Reader in = Files.newBufferedReader(file.toPath())) {
+                    IcsImporter.Result result = new IcsImporter().read(in, batch -> {
+                        FutureTask<Integer> add = new FutureTask<>(() -> controller.addEvents(calName, batch));
+                        Platform.runLater(add);
+                        try {
+                            add.get();
+                        } catch (InterruptedException | ExecutionException ex) {
+                            throw new CompletionException(ex);
+                        }
+                    });
+                    Platform.runLater(() -> new Alert(Alert.AlertType.INFORMATION, result.toString()).show());
+                } catch (IOException | CompletionException ex) {
+                    ex.printStackTrace();
+                    Platform.runLater(() ->
+                            new Alert(Alert.AlertType.ERROR, "Could not import " + file.getName()).show());
+                }
+            }, "ics-import");
+            importer.setDaemon(true);
+            importer.start();
+        });
+    }
+
+    /**
+     * event handler to export each of the visible calendars as an iCalendar file
+     * of its own, in a directory chosen by the user
+     *
+     * @param e unused
+     */
+    private void exportCalendars(ActionEvent e) {
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Export Calendars");
+        File dir = chooser.showDialog(stage);
+        if (dir == null) return;
+        Map<String, File> targets = new HashMap<>();
+        Set<String> fileNames = new HashSet<>();
+        for (String calName : currentlyVisibleCals) {
+            // calendar names can hold characters which file names can't
+            String base = calName.replaceAll("[^\\w .-]", "_");
+            String fileName = base + ".ics";
+            for (int i = 2; !fileNames.add(fileName); i++) {
+                fileName = base + " (" + i + ").ics";
+            }
+            targets.put(calName, new File(dir, fileName));
+        }
+        try {
+            // the files are written in the background, so exporting large calendars doesn't freeze the UI
+            controller.exportCalendarsAsync(targets, task -> {
+                Thread exporter = new Thread(task, "ics-export");
+                exporter.setDaemon(true);
+                exporter.start();
+            }).whenComplete((exported, ex) -> Platform.runLater(() -> {
+                if (ex != null) {
+                    ex.printStackTrace();
+                    new Alert(Alert.AlertType.ERROR, "Could not export the calendars").show();
+                } else {
+                    new Alert(Alert.AlertType.INFORMATION, String.format("Exported %d events from %d calendars",
+                            exported, targets.size())).show();
+                }
+            }));
+        } catch (NoSuchCalendarException ex) {
+            ex.printStackTrace();
+            new Alert(Alert.AlertType.ERROR, "Could not export the calendars").show();
+        }
+    }
+
     /**
      * event handler to change the visible calendars.
      * displays a new Dialog to the user containing a list of
@@ -20,6 +20,16 @@ public interface CalendarViewMode {
      */
     Node getNode();
 
+    /**
+     * Whether this view is shown. A view which is not shown does not have to keep up with
+     * changes to the calendars, since it is redrawn by {@link #setDate} when it is shown.
+     *
+     * @return true if the node of this view is in a scene
+     */
+    default boolean isShown() {
+        return getNode().getScene() != null;
+    }
+
     /**
      * Change the range of time being shown by this view to
      * a range of time which include the given DateTime.
@@ -0,0 +1,129 @@
+package view;
+
+import controller.CalendarController;
+import javafx.geometry.VPos;
+import javafx.scene.Node;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.TextAlignment;
+import javafx.util.Pair;
+import model.CalendarEvent;
+
+import java.time.LocalDate;
+import java.time.format.TextStyle;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A month view which paints its days and events onto a canvas, for months too full of
+ * events for {@link MonthView} to lay out quickly. Days with more events than fit in
+ * their cell show how many more there are.
+ *
+ * @author Kitty Elliott
+ */
+public class CanvasMonthView extends CanvasView {
+    private static final String[] WEEK_DAYS = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+    private static final double HEADER_HEIGHT = 25;
+    private static final double DAY_NUMBER_HEIGHT = 18;
+    private static final double CHIP_HEIGHT = 15;
+
+    public CanvasMonthView(CalendarController controller) {
+        super(controller);
+    }
+
+    @Override
+    LocalDate anchorOf(LocalDate date) {
+        return date.withDayOfMonth(1);
+    }
+
+    @Override
+    LocalDate step(LocalDate anchor, int direction) {
+        return anchor.plusMonths(direction);
+    }
+
+    @Override
+    LocalDate firstShown(LocalDate anchor) {
+        // the grid starts on the sunday on or before the first of the month
+        return anchor.minusDays(anchor.getDayOfWeek().getValue() % 7);
+    }
+
+    @Override
+    int numShown() {
+        return 6 * 7;
+    }
+
+    @Override
+    String titleOf(LocalDate anchor) {
+        return anchor.getMonth().getDisplayName(TextStyle.FULL, Locale.US) + " " + anchor.getYear();
+    }
+
+    @Override
+    Node layout(Pane holder) {
+        holder.setPrefSize(750, 650);
+        canvas.widthProperty().bind(holder.widthProperty());
+        canvas.heightProperty().bind(holder.heightProperty());
+        return holder;
+    }
+
+    @Override
+    void paintDays(GraphicsContext gc, LocalDate anchor, List<List<Pair<String, CalendarEvent>>> days) {
+        double cellWidth = canvas.getWidth() / 7;
+        double cellHeight = (canvas.getHeight() - HEADER_HEIGHT) / 6;
+        LocalDate today = LocalDate.now();
+
+        gc.setTextBaseline(VPos.CENTER);
+        gc.setTextAlign(TextAlignment.CENTER);
+        gc.setFont(LABEL_FONT);
+        gc.setFill(Color.BLACK);
+        for (int col = 0; col < 7; col++) {
+            gc.fillText(WEEK_DAYS[col], (col + 0.5) * cellWidth, HEADER_HEIGHT / 2);
+        }
+        gc.setTextAlign(TextAlignment.LEFT);
+
+        LocalDate day = firstShown(anchor);
+        for (int index = 0; index < numShown(); index++, day = day.plusDays(1)) {
+            double x = (index % 7) * cellWidth;
+            double y = HEADER_HEIGHT + (index / 7) * cellHeight;
+            boolean inMonth = day.getMonth() == anchor.getMonth();
+            gc.setFill(!inMonth ? Color.GREY : day.equals(today) ? Color.AQUA : Color.WHITE);
+            gc.fillRect(x, y, cellWidth, cellHeight);
+            gc.setStroke(Color.BLACK);
+            gc.setLineWidth(0.5);
+            gc.strokeRect(x, y, cellWidth, cellHeight);
+            if (!inMonth) continue;
+
+            gc.setFill(Color.BLACK);
+            gc.setFont(LABEL_FONT);
+            gc.setTextBaseline(VPos.TOP);
+            gc.fillText(Integer.toString(day.getDayOfMonth()), x + CHIP_PADDING, y + CHIP_PADDING);
+
+            if (index >= days.size()) continue;
+            List<Pair<String, CalendarEvent>> events = days.get(index);
+            int fits = (int) ((cellHeight - DAY_NUMBER_HEIGHT) / CHIP_HEIGHT);
+            // leave room to say how many events did not fit
+            int shown = events.size() <= fits ? events.size() : Math.max(fits - 1, 0);
+            double chipY = y + DAY_NUMBER_HEIGHT;
+            for (int i = 0; i < shown; i++, chipY += CHIP_HEIGHT) {
+                paintChip(gc, x + 1, chipY, cellWidth - 2, CHIP_HEIGHT - 1, events.get(i));
+            }
+            if (shown < events.size()) {
+                gc.setFill(Color.BLACK);
+                gc.setFont(CHIP_FONT);
+                gc.setTextBaseline(VPos.TOP);
+                gc.fillText("+" + (events.size() - shown) + " more", x + CHIP_PADDING, chipY);
+            }
+        }
+    }
+
+    @Override
+    EventDialog newEventAt(double x, double y) {
+        if (y < HEADER_HEIGHT) return null;
+        int col = (int) (x / (canvas.getWidth() / 7));
+        int row = (int) ((y - HEADER_HEIGHT) / ((canvas.getHeight() - HEADER_HEIGHT) / 6));
+        if (col < 0 || col >= 7 || row < 0 || row >= 6) return null;
+        LocalDate day = firstShown(getDate()).plusDays(row * 7 + col);
+        if (day.getMonth() != getDate().getMonth()) return null;
+        return EventDialog.newEventAt(day, controller.getCalendarNames());
+    }
+}
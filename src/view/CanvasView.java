@@ -0,0 +1,279 @@
+package view;
+
+import controller.CalendarController;
+import controller.NoSuchCalendarException;
+import javafx.geometry.VPos;
+import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.util.Pair;
+import model.CalendarChange;
+import model.CalendarEvent;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A view which paints the days it shows and their events onto a single canvas, instead of
+ * using nodes for them, so that a range full of events costs the same to lay out as an empty
+ * one. Subclasses decide where the days and events go; this keeps the events of the days
+ * shown, repaints when they change, and remembers where each event was painted so that
+ * clicking on it opens it.
+ *
+ * @author Kitty Elliott
+ */
+abstract class CanvasView implements CalendarViewMode {
+    static final Font CHIP_FONT = new Font(11);
+    static final Font LABEL_FONT = new Font(14);
+    static final double CHIP_PADDING = 2;
+
+    final CalendarController controller;
+    final Canvas canvas = new Canvas();
+    private final BorderPane root;
+    private final Label title;
+    private Set<String> visibleCals;
+    // gets the events of the ranges before and after this one ahead of time
+    private final Prefetcher<List<List<Pair<String, CalendarEvent>>>> prefetcher;
+    private LocalDate date;
+    // the day which identifies the range painted, which is behind date while it is loaded
+    private LocalDate shown;
+    // the events of each day shown, starting from firstShown(shown)
+    private List<List<Pair<String, CalendarEvent>>> days = Collections.emptyList();
+
+    // the bounds of each chip painted, as x, y, width and height, and the event it shows
+    private double[] chipBounds = new double[4 * 256];
+    private final List<Pair<String, CalendarEvent>> chipEvents = new ArrayList<>();
+
+    CanvasView(CalendarController controller) {
+        this.controller = controller;
+        visibleCals = controller.getCalendarNames();
+        prefetcher = new Prefetcher<>(controller, this, numShown(), Function.identity());
+
+        Button forward = new Button("->");
+        Button backward = new Button("<-");
+        forward.setOnAction(e -> setDate(step(date, 1)));
+        backward.setOnAction(e -> setDate(step(date, -1)));
+        title = new Label();
+        title.setFont(new Font(35));
+        BorderPane top = new BorderPane(title);
+        top.setLeft(backward);
+        top.setRight(forward);
+
+        root = new BorderPane();
+        root.setTop(top);
+        Pane holder = new Pane(canvas);
+        root.setCenter(layout(holder));
+        canvas.widthProperty().addListener(o -> paint());
+        canvas.heightProperty().addListener(o -> paint());
+        canvas.setOnMouseClicked(this::clicked);
+
+        // repaint when the events shown change
+        controller.addListener(this::calendarChanged);
+        setDate(LocalDate.now());
+    }
+
+    /**
+     * @param date any day
+     * @return the day which identifies the range shown which includes the given day,
+     * such as the first day of its month
+     */
+    abstract LocalDate anchorOf(LocalDate date);
+
+    /**
+     * @param anchor    the day which identifies a range, as returned by {@link #anchorOf}
+     * @param direction 1 for the next range, or -1 for the previous one
+     * @return the day which identifies the next or previous range
+     */
+    abstract LocalDate step(LocalDate anchor, int direction);
+
+    /**
+     * @param anchor the day which identifies the range shown
+     * @return the first day painted, which may be before the range itself
+     */
+    abstract LocalDate firstShown(LocalDate anchor);
+
+    /**
+     * @return the number of days painted
+     */
+    abstract int numShown();
+
+    /**
+     * @param anchor the day which identifies the range shown
+     * @return the title to show above the canvas
+     */
+    abstract String titleOf(LocalDate anchor);
+
+    /**
+     * Size the canvas to fit in the view
+     *
+     * @param holder the pane holding the canvas
+     * @return the node to show below the title
+     */
+    abstract Node layout(Pane holder);
+
+    /**
+     * Paint the days shown and their events, using {@link #paintChip} for each event
+     *
+     * @param gc     the graphics context of the canvas, which has been cleared
+     * @param anchor the day which identifies the range shown
+     * @param days   the events of each day painted, in order of start, from the first day painted
+     */
+    abstract void paintDays(GraphicsContext gc, LocalDate anchor, List<List<Pair<String, CalendarEvent>>> days);
+
+    /**
+     * @param x the x coordinate of a click which was not on an event
+     * @param y the y coordinate of the click
+     * @return a dialog for creating an event at the time which was clicked on, or null if
+     * the click was not on a day
+     */
+    abstract EventDialog newEventAt(double x, double y);
+
+    /**
+     * Paint one event as a rectangle of its color holding its title, and remember where,
+     * so that clicks on it open it
+     */
+    final void paintChip(GraphicsContext gc, double x, double y, double w, double h,
+                         Pair<String, CalendarEvent> pair) {
+        CalendarEvent event = pair.getValue();
+        Color c = event.getColor();
+        gc.setFill(c);
+        gc.fillRect(x, y, w, h);
+        gc.setStroke(Color.WHITE);
+        gc.strokeRect(x, y, w, h);
+        gc.save();
+        gc.beginPath();
+        gc.rect(x, y, w, h);
+        gc.clip();
+        gc.setFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
+        gc.setFont(CHIP_FONT);
+        gc.setTextBaseline(VPos.TOP);
+        gc.fillText(event.getTitle(), x + CHIP_PADDING, y + CHIP_PADDING);
+        gc.restore();
+
+        int i = chipEvents.size();
+        if (chipBounds.length < 4 * (i + 1)) chipBounds = Arrays.copyOf(chipBounds, chipBounds.length * 2);
+        chipBounds[4 * i] = x;
+        chipBounds[4 * i + 1] = y;
+        chipBounds[4 * i + 2] = w;
+        chipBounds[4 * i + 3] = h;
+        chipEvents.add(pair);
+    }
+
+    /**
+     * repaint the whole canvas from the events already fetched
+     */
+    final void paint() {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        chipEvents.clear();
+        if (shown != null && canvas.getWidth() > 0 && canvas.getHeight() > 0) {
+            paintDays(gc, shown, days);
+        }
+    }
+
+    /**
+     * fetch the events of every day shown in the background, and then repaint
+     */
+    private void draw() {
+        LocalDate anchor = date;
+        prefetcher.load(visibleCals, firstShown(anchor), fetched -> {
+            title.setText(titleOf(anchor));
+            shown = anchor;
+            days = fetched;
+            paint();
+        });
+        // get the ranges either side ready, in case the user moves to them
+        prefetcher.prefetch(firstShown(step(anchor, -1)), firstShown(step(anchor, 1)));
+    }
+
+    /**
+     * Fetch the events of only the days on which one of the visible calendars changed,
+     * and repaint.
+     */
+    private void calendarChanged(String calName, CalendarChange change) {
+        if (!isShown() || !visibleCals.contains(calName)) return;
+        // the range being loaded is fetched again with the change
+        if (prefetcher.isLoading()) return;
+        if (days.size() != numShown()) {
+            // the last fetch failed, so there is nothing to patch
+            draw();
+            return;
+        }
+        LocalDate first = firstShown(shown);
+        SortedSet<LocalDate> changed = ChangedDays.within(change, first, first.plusDays(numShown() - 1));
+        if (changed.isEmpty()) return;
+        int numDays = (int) ChronoUnit.DAYS.between(changed.first(), changed.last()) + 1;
+        List<List<Pair<String, CalendarEvent>>> fetched;
+        try {
+            fetched = controller.getChangedEventsByDay(visibleCals, changed.first(), numDays);
+        } catch (NoSuchCalendarException e) {
+            e.printStackTrace();
+            return;
+        }
+        int offset = (int) ChronoUnit.DAYS.between(first, changed.first());
+        for (LocalDate day : changed) {
+            int i = (int) ChronoUnit.DAYS.between(changed.first(), day);
+            days.set(offset + i, fetched.get(i));
+        }
+        paint();
+    }
+
+    private void clicked(MouseEvent e) {
+        double x = e.getX(), y = e.getY();
+        // the last chip painted is on top
+        for (int i = chipEvents.size() - 1; i >= 0; i--) {
+            if (x >= chipBounds[4 * i] && x < chipBounds[4 * i] + chipBounds[4 * i + 2]
+                    && y >= chipBounds[4 * i + 1] && y < chipBounds[4 * i + 1] + chipBounds[4 * i + 3]) {
+                Pair<String, CalendarEvent> pair = chipEvents.get(i);
+                EventDialog.editAndSave(controller, pair.getKey(), pair.getValue());
+                return;
+            }
+        }
+        EventDialog dialog = newEventAt(x, y);
+        if (dialog == null) return;
+        dialog.showAndWait().ifPresent(pair -> {
+            try {
+                controller.addEvent(pair.getKey(), pair.getValue());
+            } catch (NoSuchCalendarException ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public Node getNode() {
+        return root;
+    }
+
+    @Override
+    public LocalDate getDate() {
+        return date;
+    }
+
+    @Override
+    public void setDate(LocalDate date) {
+        this.date = anchorOf(date);
+        draw();
+    }
+
+    @Override
+    public void setVisibleCalendars(Set<String> calNames) throws NoSuchCalendarException {
+        Set<String> superset = controller.getCalendarNames();
+        Set<String> curSet = new HashSet<>();
+        for (String name : calNames) {
+            curSet.add(name);
+            if (!superset.contains(name)) throw new NoSuchCalendarException(name);
+        }
+        visibleCals = curSet;
+        draw();
+    }
+}
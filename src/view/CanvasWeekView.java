@@ -0,0 +1,173 @@
+package view;
+
+import controller.CalendarController;
+import javafx.geometry.VPos;
+import javafx.scene.Node;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.TextAlignment;
+import javafx.util.Pair;
+import model.CalendarEvent;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * A week view which paints its days and events onto a canvas, for weeks too full of
+ * events for {@link WeekView} to lay out quickly. Events which overlap are painted
+ * side by side, in as many lanes as the day needs.
+ *
+ * @author Kitty Elliott
+ */
+public class CanvasWeekView extends CanvasView {
+    private static final String[] WEEK_DAYS = {"Sunday", "Monday", "Tuesday", "Wednesday", "Thursday",
+            "Friday", "Saturday"};
+    private static final double HEADER_HEIGHT = 25;
+    private static final double HOUR_COLUMN_WIDTH = 75;
+    private static final double ROW_HEIGHT = 50;
+    private static final double MIN_CHIP_HEIGHT = 15;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    // packs the events of the day being painted into lanes, and the arrays it is given
+    private final ColumnPacker packer = new ColumnPacker();
+    private int[] starts = new int[64], ends = new int[64], lanes = new int[64];
+
+    public CanvasWeekView(CalendarController controller) {
+        super(controller);
+    }
+
+    @Override
+    LocalDate anchorOf(LocalDate date) {
+        // the week starts on the sunday on or before the date
+        return date.minusDays(date.getDayOfWeek().getValue() % 7);
+    }
+
+    @Override
+    LocalDate step(LocalDate anchor, int direction) {
+        return anchor.plusWeeks(direction);
+    }
+
+    @Override
+    LocalDate firstShown(LocalDate anchor) {
+        return anchor;
+    }
+
+    @Override
+    int numShown() {
+        return 7;
+    }
+
+    @Override
+    String titleOf(LocalDate anchor) {
+        LocalDate end = anchor.plusDays(6);
+        return String.format("Week of %d/%d - %d/%d", anchor.getMonthValue(), anchor.getDayOfMonth(),
+                end.getMonthValue(), end.getDayOfMonth());
+    }
+
+    @Override
+    Node layout(Pane holder) {
+        holder.setPrefHeight(HEADER_HEIGHT + 24 * ROW_HEIGHT);
+        holder.setMinHeight(HEADER_HEIGHT + 24 * ROW_HEIGHT);
+        canvas.widthProperty().bind(holder.widthProperty());
+        canvas.setHeight(HEADER_HEIGHT + 24 * ROW_HEIGHT);
+        ScrollPane scroll = new ScrollPane(holder);
+        scroll.setPrefSize(750, 750);
+        scroll.setFitToWidth(true);
+        return scroll;
+    }
+
+    @Override
+    void paintDays(GraphicsContext gc, LocalDate anchor, List<List<Pair<String, CalendarEvent>>> days) {
+        double colWidth = (canvas.getWidth() - HOUR_COLUMN_WIDTH) / 7;
+        LocalDate today = LocalDate.now();
+
+        gc.setLineWidth(0.5);
+        gc.setStroke(Color.BLACK);
+        gc.setFont(LABEL_FONT);
+        gc.setTextBaseline(VPos.CENTER);
+        for (int hour = 0; hour < 24; hour++) {
+            double y = HEADER_HEIGHT + hour * ROW_HEIGHT;
+            gc.setFill(Color.BLACK);
+            gc.setTextAlign(TextAlignment.LEFT);
+            gc.fillText(String.format("%02d:00", hour), CHIP_PADDING, y + ROW_HEIGHT / 2);
+            gc.strokeLine(0, y, canvas.getWidth(), y);
+        }
+
+        for (int col = 0; col < 7; col++) {
+            LocalDate day = anchor.plusDays(col);
+            double x = HOUR_COLUMN_WIDTH + col * colWidth;
+            if (day.equals(today)) {
+                gc.setFill(Color.AQUA);
+                gc.fillRect(x, HEADER_HEIGHT, colWidth, 24 * ROW_HEIGHT);
+                gc.setStroke(Color.BLACK);
+                for (int hour = 0; hour < 24; hour++) {
+                    double y = HEADER_HEIGHT + hour * ROW_HEIGHT;
+                    gc.strokeLine(x, y, x + colWidth, y);
+                }
+            }
+            gc.setStroke(Color.BLACK);
+            gc.strokeLine(x, 0, x, canvas.getHeight());
+            gc.setFill(Color.BLACK);
+            gc.setFont(LABEL_FONT);
+            gc.setTextBaseline(VPos.CENTER);
+            gc.setTextAlign(TextAlignment.CENTER);
+            gc.fillText(String.format("%s %d/%d", WEEK_DAYS[col], day.getMonthValue(), day.getDayOfMonth()),
+                    x + colWidth / 2, HEADER_HEIGHT / 2, colWidth);
+            gc.setTextAlign(TextAlignment.LEFT);
+
+            if (col < days.size()) paintEvents(gc, days.get(col), x, colWidth);
+        }
+    }
+
+    /**
+     * paint the events of one day, with events which overlap side by side
+     */
+    private void paintEvents(GraphicsContext gc, List<Pair<String, CalendarEvent>> events, double x, double width) {
+        int n = events.size();
+        if (lanes.length < n) {
+            lanes = new int[Math.max(n, 2 * lanes.length)];
+            starts = new int[lanes.length];
+            ends = new int[lanes.length];
+        }
+        for (int i = 0; i < n; i++) {
+            CalendarEvent e = events.get(i).getValue();
+            starts[i] = startMinute(e);
+            ends[i] = endMinute(e, starts[i]);
+        }
+        int numLanes = packer.pack(starts, ends, n, lanes);
+
+        double laneWidth = width / Math.max(numLanes, 1);
+        for (int i = 0; i < n; i++) {
+            double y = HEADER_HEIGHT + starts[i] * ROW_HEIGHT / 60;
+            double h = Math.max((ends[i] - starts[i]) * ROW_HEIGHT / 60, MIN_CHIP_HEIGHT);
+            paintChip(gc, x + lanes[i] * laneWidth, y, laneWidth, h, events.get(i));
+        }
+    }
+
+    private static int startMinute(CalendarEvent e) {
+        return e.getStartTime().getHour() * 60 + e.getStartTime().getMinute();
+    }
+
+    /**
+     * @return the minute of the day the event ends, which is at least a little after it starts
+     */
+    private static int endMinute(CalendarEvent e, int start) {
+        LocalTime end = e.getEndTime();
+        int minute = end == null ? start : end.equals(LocalTime.MAX) ? MINUTES_PER_DAY : end.getHour() * 60 + end.getMinute();
+        return Math.max(minute, start + (int) (MIN_CHIP_HEIGHT * 60 / ROW_HEIGHT));
+    }
+
+    @Override
+    EventDialog newEventAt(double x, double y) {
+        if (x < HOUR_COLUMN_WIDTH || y < HEADER_HEIGHT) return null;
+        int col = (int) ((x - HOUR_COLUMN_WIDTH) / ((canvas.getWidth() - HOUR_COLUMN_WIDTH) / 7));
+        int hour = (int) ((y - HEADER_HEIGHT) / ROW_HEIGHT);
+        if (col >= 7 || hour >= 24) return null;
+        return EventDialog.newEventAt(LocalDateTime.of(getDate().plusDays(col), LocalTime.of(hour, 0)),
+                controller.getCalendarNames());
+    }
+}
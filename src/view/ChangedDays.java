@@ -0,0 +1,51 @@
+package view;
+
+import model.CalendarChange;
+import model.EventChange;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Works out which days a change to a calendar touches, so that a view only has to redraw
+ * the parts of itself which show those days
+ *
+ * @author Kitty Elliott
+ */
+final class ChangedDays {
+    private ChangedDays() {
+    }
+
+    /**
+     * @param change a change to a calendar
+     * @param first  the first day a view shows
+     * @param last   the last day a view shows
+     * @return the days from first to last on which an event was added, removed or modified,
+     * including the days a modified event was on before it was modified
+     */
+    static SortedSet<LocalDate> within(CalendarChange change, LocalDate first, LocalDate last) {
+        SortedSet<LocalDate> days = new TreeSet<>();
+        for (EventChange c : change.getChanges()) {
+            if (c instanceof EventChange.Modified) {
+                // a moved event touches where it was and where it is, but not the days in between
+                EventChange.Modified m = (EventChange.Modified) c;
+                addDays(days, m.getStartBefore(), m.getEndBefore(), first, last);
+                addDays(days, m.getStartAfter(), m.getEndAfter(), first, last);
+            } else {
+                addDays(days, c.getFrom(), c.getTo(), first, last);
+            }
+        }
+        return days;
+    }
+
+    private static void addDays(SortedSet<LocalDate> days, LocalDateTime from, LocalDateTime to,
+                                LocalDate first, LocalDate last) {
+        LocalDate day = from.toLocalDate().isBefore(first) ? first : from.toLocalDate();
+        LocalDate end = to.toLocalDate().isAfter(last) ? last : to.toLocalDate();
+        for (; !day.isAfter(end); day = day.plusDays(1)) {
+            days.add(day);
+        }
+    }
+}
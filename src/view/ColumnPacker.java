@@ -0,0 +1,80 @@
+package view;
+
+import java.util.Arrays;
+
+/**
+ * Packs intervals, such as the events of a day, into as few side by side columns as possible
+ * so that no two intervals in a column overlap. The intervals are swept in order of start,
+ * keeping a min-heap of the time each column is free from, so packing n intervals takes
+ * O(n log n). Each interval goes in the column which has been free the longest, and ties are
+ * broken by column number, so the same intervals are always packed the same way.
+ * <p>
+ * A packer keeps its arrays between calls, so it should only be used by one view.
+ *
+ * @author Kitty Elliott
+ */
+public final class ColumnPacker {
+    // each interval's start and index, sorted by start and then index
+    private long[] order = new long[64];
+    // each column's end and number, as a min-heap
+    private long[] heap = new long[16];
+    private int heapSize;
+
+    /**
+     * Packs intervals into columns
+     *
+     * @param starts  where each interval starts
+     * @param ends    where each interval ends. An interval does not overlap one which
+     *                starts where it ends.
+     * @param n       the number of intervals
+     * @param columns receives the column of each interval, numbered from 0
+     * @return the number of columns used
+     */
+    public int pack(int[] starts, int[] ends, int n, int[] columns) {
+        if (order.length < n) order = new long[Math.max(n, 2 * order.length)];
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) starts[i] << 32) | i;
+        }
+        Arrays.sort(order, 0, n);
+
+        heapSize = 0;
+        int numColumns = 0;
+        for (int k = 0; k < n; k++) {
+            int i = (int) order[k];
+            int column;
+            if (heapSize > 0 && (int) (heap[0] >> 32) <= starts[i]) {
+                // the column which has been free the longest
+                column = (int) heap[0];
+                heap[0] = ((long) ends[i] << 32) | column;
+                siftDown(0);
+            } else {
+                column = numColumns++;
+                push(((long) ends[i] << 32) | column);
+            }
+            columns[i] = column;
+        }
+        return numColumns;
+    }
+
+    private void push(long entry) {
+        if (heapSize == heap.length) heap = Arrays.copyOf(heap, 2 * heapSize);
+        int i = heapSize++;
+        while (i > 0 && heap[(i - 1) / 2] > entry) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = entry;
+    }
+
+    private void siftDown(int i) {
+        long entry = heap[i];
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= entry) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = entry;
+    }
+}
@@ -2,15 +2,16 @@ package view;
 
 import controller.CalendarController;
 import controller.NoSuchCalendarException;
+import javafx.geometry.Bounds;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.util.Pair;
+import model.CalendarChange;
 import model.CalendarEvent;
 
 import java.time.LocalDate;
@@ -31,50 +32,71 @@ public class DayView implements CalendarViewMode {
     private final Button forward;
     private final Button backward;
     private final Label header;
-    private GridPane dayPane;
+    private final ScrollPane scroll;
+    private final Pane dayPane;
+    // the labels of the rows in view, which are reused as the day is scrolled
+    private final List<Label> timeLabels = new ArrayList<>();
+    // the buttons of the events in view, which are reused as the day is scrolled or redrawn
+    private final List<Button> eventButtons = new ArrayList<>();
+    private final EventButtonPool buttonPool;
     private Set<String> visibleCalendars;
+    // gets the events of the days before and after this one ahead of time
+    private final Prefetcher<List<List<Pair<String, CalendarEvent>>>> prefetcher;
     private LocalDate date;
+    private List<List<Pair<String, CalendarEvent>>> eventColumns = Collections.emptyList();
+    // the events in view, and the column of each
+    private final List<Pair<String, CalendarEvent>> visibleEvents = new ArrayList<>();
+    private int[] visibleColumns = new int[64];
 
-    private static final int COL0_PERCENT = 10;
+    private static final int NUM_ROWS = 24 * NUM_HOUR_SUBSECTIONS;
+    private static final double ROW_HEIGHT = 25;
+    private static final double COL0_WIDTH = 60;
+    private static final double MIN_COLUMN_WIDTH = 100;
+    // the hour:minute label of each row
+    private static final String[] TIMES = new String[NUM_ROWS];
+
+    static {
+        for (int row = 0; row < NUM_ROWS; row++) {
+            TIMES[row] = String.format("%02d:%02d", row / NUM_HOUR_SUBSECTIONS,
+                    (row % NUM_HOUR_SUBSECTIONS) * MINUTE_INCREMENT);
+        }
+    }
 
     /**
+     * Packs the events of a day into as few columns as possible, by the rows they occupy.
+     * This does not touch the view, so it can be done on any thread.
+     *
+     * @param events the events of the day, in order of start
      * @return a list of columns containing events, used for displaying the events
      */
-    private List<List<Pair<String, CalendarEvent>>> getEventColumns() {
-        List<List<Pair<String, CalendarEvent>>> eventColumns = new ArrayList<>(new ArrayList<>());
-        visibleCalendars.stream()
-                // filter out names that would throw an exception
-                .filter(controller.getCalendarNames()::contains)
-                // get all events for this day from the controller, flattening them into a single stream
-                .flatMap(name -> {
-                    try {
-                        return Arrays.stream(controller.getEventsInDay(name, date)).map(e -> new Pair<>(name, e));
-                    } catch (NoSuchCalendarException e) {
-                        // should never get here: filtered out
-                        return null;
-                    }
-                }).forEach(pair -> {
-            // find any one column which the event could be added to
-            // without overlapping any other events in said column
-            Optional<List<Pair<String, CalendarEvent>>> selectedColumn = eventColumns.parallelStream()
-                    // filter out columns which contain events that overlap with the event to be added
-                    .filter(col -> col.parallelStream().noneMatch(b -> eventsOverlap(pair.getValue(), b.getValue())))
-                    .findAny();
-            if (selectedColumn.isPresent()) {
-                selectedColumn.get().add(pair);
-            } else {
-                // if all columns contained an event that would overlap,
-                // then add a new column
-                List<Pair<String, CalendarEvent>> newColumn = new ArrayList<>();
-                newColumn.add(pair);
-                eventColumns.add(newColumn);
-            }
-        });
+    private static List<List<Pair<String, CalendarEvent>>> packColumns(List<Pair<String, CalendarEvent>> events) {
+        List<List<Pair<String, CalendarEvent>>> eventColumns = new ArrayList<>();
+        int n = events.size();
+        int[] starts = new int[n], ends = new int[n], columns = new int[n];
+        for (int i = 0; i < n; i++) {
+            CalendarEvent event = events.get(i).getValue();
+            starts[i] = getRowNumber(event.getStartTime());
+            ends[i] = getEndRow(event) + 1;
+        }
+        int nCols = new ColumnPacker().pack(starts, ends, n, columns);
+        for (int col = 0; col < nCols; col++) {
+            eventColumns.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            eventColumns.get(columns[i]).add(events.get(i));
+        }
         return eventColumns;
     }
 
     public DayView(CalendarController controller) {
         this.controller = controller;
+        buttonPool = new EventButtonPool(butt -> {
+            butt.setMinSize(0, 0);
+            butt.setAlignment(Pos.TOP_CENTER);
+            butt.setOnAction(actionEvent -> EventDialog.editAndSave(controller,
+                    EventButtonPool.calendarOf(butt), EventButtonPool.eventOf(butt)));
+        });
+        prefetcher = new Prefetcher<>(controller, this, 1, events -> packColumns(events.get(0)));
         date = LocalDate.now();
         visibleCalendars = controller.getCalendarNames();
 
@@ -91,24 +113,33 @@ public class DayView implements CalendarViewMode {
         top.setRight(forward);
         top.setCenter(header);
         root.setTop(top);
-//        dayPane.setMaxSize(Region.USE_COMPUTED_SIZE, Region.USE_COMPUTED_SIZE);
+        // only the part of the day which is scrolled into view has nodes
+        dayPane = new Pane();
+        scroll = new ScrollPane(dayPane);
+        scroll.setPrefSize(500, 400);
+        scroll.setFitToHeight(false);
+        scroll.vvalueProperty().addListener(o -> layoutViewport());
+        scroll.hvalueProperty().addListener(o -> layoutViewport());
+        scroll.viewportBoundsProperty().addListener(o -> layoutViewport());
+        root.setCenter(scroll);
 
         drawDay();
+
+        // redraw the events when the day changes, rather than the whole pane
+        controller.addListener(this::calendarChanged);
     }
 
     /**
-     * test if the given events overlap
+     * Redraws the events if one of the visible calendars changed on the day shown.
      *
-     * @param a a CalendarEvent
-     * @param b a CalendarEvent
-     * @return true iff "a" and "b" would occupy the same row.
+     * @param calName the name of the calendar which changed
+     * @param change  what changed in it
      */
-    private static boolean eventsOverlap(CalendarEvent a, CalendarEvent b) {
-        int startA = getRowNumber(a.getStartTime());
-        int startB = getRowNumber(b.getStartTime());
-        int endA = getRowNumber(a.getEndTime()) + 1;
-        int endB = getRowNumber(b.getEndTime()) + 1;
-        return startA <= endB && startB <= endA;
+    private void calendarChanged(String calName, CalendarChange change) {
+        if (!isShown() || !visibleCalendars.contains(calName)) return;
+        if (ChangedDays.within(change, date, date).isEmpty()) return;
+
+        loadDay();
     }
 
     /**
@@ -121,26 +152,78 @@ public class DayView implements CalendarViewMode {
     }
 
     /**
-     * construct a new GridPane to represent the current day.
-     * Consists of one column, holding the hour:minute labels
-     *
-     * @return a new GridPane to represent the current day
+     * Position the nodes for the part of the day which is scrolled into view: the labels
+     * of the rows which can be seen, and the buttons of the events in the columns which can
+     * be seen. Nodes are only created when more can be seen at once than before, otherwise
+     * the ones which showed another part of the day are moved and bound to this one.
      */
-    private GridPane constructDayPane() {
+    private void layoutViewport() {
+        Bounds viewport = scroll.getViewportBounds();
+        final int nCols = eventColumns.size();
+        // columns share the width of the view, until they would be too narrow to read
+        double contentWidth = Math.max(viewport.getWidth(), COL0_WIDTH + nCols * MIN_COLUMN_WIDTH);
+        double contentHeight = NUM_ROWS * ROW_HEIGHT;
+        dayPane.setPrefSize(contentWidth, contentHeight);
+        double colWidth = nCols == 0 ? 0 : (contentWidth - COL0_WIDTH) / nCols;
+
+        // the part of the day which is scrolled into view
+        double top = scroll.getVvalue() * Math.max(contentHeight - viewport.getHeight(), 0);
+        double left = scroll.getHvalue() * Math.max(contentWidth - viewport.getWidth(), 0);
+        int firstRow = Math.max((int) (top / ROW_HEIGHT), 0);
+        int lastRow = Math.min((int) ((top + viewport.getHeight()) / ROW_HEIGHT), NUM_ROWS - 1);
+        int firstCol = 0, lastCol = nCols - 1;
+        if (colWidth > 0) {
+            firstCol = Math.max((int) ((left - COL0_WIDTH) / colWidth), 0);
+            lastCol = Math.min((int) ((left + viewport.getWidth() - COL0_WIDTH) / colWidth), nCols - 1);
+        }
+
+        layoutTimeLabels(firstRow, lastRow);
+
+        visibleEvents.clear();
+        for (int colNum = firstCol; colNum <= lastCol; colNum++) {
+            for (Pair<String, CalendarEvent> pair : eventColumns.get(colNum)) {
+                CalendarEvent event = pair.getValue();
+                if (getRowNumber(event.getStartTime()) <= lastRow && getEndRow(event) >= firstRow) {
+                    if (visibleColumns.length == visibleEvents.size()) {
+                        visibleColumns = Arrays.copyOf(visibleColumns, 2 * visibleColumns.length);
+                    }
+                    visibleColumns[visibleEvents.size()] = colNum;
+                    visibleEvents.add(pair);
+                }
+            }
+        }
+        buttonPool.show(eventButtons, visibleEvents, dayPane.getChildren()::add);
+        for (int i = 0; i < visibleEvents.size(); i++) {
+            CalendarEvent event = visibleEvents.get(i).getValue();
+            int rowNum = getRowNumber(event.getStartTime());
+            int height = getEndRow(event) + 1 - rowNum;
+            Button butt = eventButtons.get(i);
+            butt.relocate(COL0_WIDTH + visibleColumns[i] * colWidth, rowNum * ROW_HEIGHT);
+            butt.setPrefSize(colWidth, height * ROW_HEIGHT);
+        }
+    }
+
+    /**
+     * show the hour:minute labels of the rows which can be seen, highlighting the current
+     * time if the day is today
+     */
+    private void layoutTimeLabels(int firstRow, int lastRow) {
         boolean today = date.equals(LocalDate.now());
         int now = getRowNumber(LocalTime.now());
-        GridPane dayPane = new GridPane();
-//        dayPane.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
-//        dayPane.setPrefSize(Double.MAX_VALUE, Double.MAX_VALUE);
-        ColumnConstraints col0 = new ColumnConstraints();
-        col0.setPercentWidth(COL0_PERCENT);
-//        col0.setMinWidth(50);
-        dayPane.getColumnConstraints().add(col0);
-        final int NUM_ROWS = 24 * NUM_HOUR_SUBSECTIONS;
-        int hour = 0, minute = 0;
-        for (int row = 0; row < NUM_ROWS; row++) {
-            String timeStr = String.format("%02d:%02d", hour, minute);
-            Label l = new Label(timeStr);
+        int i = 0;
+        for (int row = firstRow; row <= lastRow; row++, i++) {
+            if (i == timeLabels.size()) {
+                Label l = new Label();
+                l.setFont(new Font(15));
+                l.setMinSize(0, 0);
+                l.setPrefSize(COL0_WIDTH, ROW_HEIGHT);
+                timeLabels.add(l);
+                dayPane.getChildren().add(l);
+            }
+            Label l = timeLabels.get(i);
+            l.setText(TIMES[row]);
+            l.relocate(0, row * ROW_HEIGHT);
+            l.setVisible(true);
             if (today && row == now) {
                 l.setStyle("-fx-background-color: aqua; -fx-border-color: black");
             } else if (row % 2 == 0) {
@@ -148,77 +231,44 @@ public class DayView implements CalendarViewMode {
             } else {
                 l.setStyle("-fx-border-color: black");
             }
-            l.setFont(new Font(15));
-            dayPane.add(l, 0, row);
-
-            minute += MINUTE_INCREMENT;
-            if (minute >= 60) {
-                minute = 0;
-                hour++;
-            }
         }
-        return dayPane;
+        for (; i < timeLabels.size(); i++) {
+            timeLabels.get(i).setVisible(false);
+        }
     }
 
     /**
-     * add the given collection of events to the dayPane as buttons
-     *
-     * @param eventColumns a grouping of event information of the kind returned by
-     *                     {@link #getEventColumns()}.
+     * @param event an event
+     * @return the last row the event occupies
      */
-    private void displayEvents(List<List<Pair<String, CalendarEvent>>> eventColumns) {
-        final int nCols = eventColumns.size();
-        for (int colNum = 1; colNum <= nCols; colNum++) {
-            ColumnConstraints constraints = new ColumnConstraints();
-            constraints.setPercentWidth((100f - COL0_PERCENT) / nCols);
-            dayPane.getColumnConstraints().add(constraints);
-            for (Pair<String, CalendarEvent> pair : eventColumns.get(colNum - 1)) {
-                String calName = pair.getKey();
-                CalendarEvent event = pair.getValue();
-                int rowNum = getRowNumber(event.getStartTime());
-                int height = getRowNumber(event.getEndTime()) + 1 - rowNum;
-                Button butt = new Button(event.getTitle());
-                butt.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
-                butt.setAlignment(Pos.TOP_CENTER);
-                Color c = event.getColor();
-                butt.setBackground(new Background(new BackgroundFill(c, null, null)));
-                butt.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
-                butt.setOnAction(actionEvent ->
-                        EventDialog.editEvent(event, calName, controller.getCalendarNames())
-                                .showAndWait()
-                                .ifPresent(p -> {
-                                    try {
-                                        // move between calendars if necessary
-                                        if (!calName.equals(p.getKey())) {
-                                            controller.removeEvent(calName, event);
-                                            controller.addEvent(p.getKey(), event);
-                                        }
-                                    } catch (NoSuchCalendarException ex) {
-                                        ex.printStackTrace();
-                                    }
-                                    drawDay();
-                                })
-                );
-                dayPane.add(butt, colNum, rowNum, 1, height);
-//                GridPane.setFillHeight(butt, true);
-            }
-        }
+    private static int getEndRow(CalendarEvent event) {
+        LocalTime end = event.getEndTime();
+        return end == null ? getRowNumber(event.getStartTime()) : getRowNumber(end);
     }
 
     /**
      * refresh and draw the current day
      */
     private void drawDay() {
-        header.setText(date.toString());
-        List<List<Pair<String, CalendarEvent>>> eventColumns = getEventColumns();
-        dayPane = constructDayPane();
-        displayEvents(eventColumns);
+        loadDay();
+        // get the days either side ready, in case the user moves to them
+        prefetcher.prefetch(date.minusDays(1), date.plusDays(1));
+    }
 
-        ScrollPane scroll = new ScrollPane(dayPane);
-        scroll.setPrefSize(500, 400);
-        scroll.setFitToWidth(true);
-        scroll.setFitToHeight(false);
-        root.setCenter(scroll);
+    /**
+     * fetch the events of the current day and pack them into columns in the background,
+     * then draw them
+     */
+    private void loadDay() {
+        LocalDate day = date;
+        // filter out names that would throw an exception
+        Set<String> names = new HashSet<>(visibleCalendars);
+        names.retainAll(controller.getCalendarNames());
+        prefetcher.load(names, day, columns -> {
+            header.setText(day.toString());
+            eventColumns = columns;
+            layoutViewport();
+        });
     }
 
     @Override
@@ -250,5 +300,6 @@ public class DayView implements CalendarViewMode {
             if (!superset.contains(name)) throw new NoSuchCalendarException(name);
         }
         visibleCalendars = curSet;
+        drawDay();
     }
 }
@@ -0,0 +1,96 @@
+package view;
+
+import javafx.scene.control.Button;
+import javafx.scene.layout.Background;
+import javafx.scene.layout.BackgroundFill;
+import javafx.scene.paint.Color;
+import javafx.util.Pair;
+import model.CalendarEvent;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Recycles the buttons which show events, so that redrawing a view rebinds the buttons it
+ * already has to the events it now shows instead of creating new ones. A button's handlers
+ * are installed once, when it is created, and look up the event it is bound to when they run.
+ *
+ * @author Kitty Elliott
+ */
+final class EventButtonPool {
+    private final Consumer<Button> init;
+    // one background per color, shared by every button showing an event of that color
+    private final Map<Color, Background> backgrounds = new HashMap<>();
+
+    /**
+     * @param init called once with each new button, to set up the parts of it which are
+     *             the same for every event, such as its size and handlers
+     */
+    EventButtonPool(Consumer<Button> init) {
+        this.init = init;
+    }
+
+    /**
+     * Show events in a list of buttons, in order. The buttons already in the list are bound
+     * to the first events, new buttons are only created if there are more events than buttons,
+     * and buttons left over are hidden until they are needed again.
+     *
+     * @param buttons the buttons to show the events in. New buttons are added to the end.
+     * @param events  the (calendar name, event) pairs to show
+     * @param added   called with each new button, to add it to the scene graph
+     */
+    void show(List<Button> buttons, List<Pair<String, CalendarEvent>> events, Consumer<Button> added) {
+        int i = 0;
+        for (Pair<String, CalendarEvent> pair : events) {
+            Button b;
+            if (i < buttons.size()) {
+                b = buttons.get(i);
+            } else {
+                b = new Button();
+                init.accept(b);
+                buttons.add(b);
+                added.accept(b);
+            }
+            bind(b, pair);
+            i++;
+        }
+        for (; i < buttons.size(); i++) {
+            Button b = buttons.get(i);
+            if (b.getUserData() == null) break; // the rest are already hidden
+            b.setUserData(null);
+            b.setVisible(false);
+            b.setManaged(false);
+        }
+    }
+
+    /**
+     * @param b a button shown by a pool
+     * @return the name of the calendar of the event the button shows
+     */
+    @SuppressWarnings("unchecked")
+    static String calendarOf(Button b) {
+        return ((Pair<String, CalendarEvent>) b.getUserData()).getKey();
+    }
+
+    /**
+     * @param b a button shown by a pool
+     * @return the event the button shows
+     */
+    @SuppressWarnings("unchecked")
+    static CalendarEvent eventOf(Button b) {
+        return ((Pair<String, CalendarEvent>) b.getUserData()).getValue();
+    }
+
+    private void bind(Button b, Pair<String, CalendarEvent> pair) {
+        CalendarEvent event = pair.getValue();
+        b.setUserData(pair);
+        b.setText(event.getTitle());
+        Color c = event.getColor();
+        b.setBackground(backgrounds.computeIfAbsent(c, color -> new Background(new BackgroundFill(color, null, null))));
+        b.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
+        b.setVisible(true);
+        b.setManaged(true);
+    }
+}
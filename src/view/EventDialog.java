@@ -1,5 +1,7 @@
 package view;
 
+import controller.CalendarController;
+import controller.NoSuchCalendarException;
 import javafx.event.ActionEvent;
 import javafx.geometry.Pos;
 import javafx.scene.control.*;
@@ -175,6 +177,32 @@ public class EventDialog extends Dialog<Pair<String, CalendarEvent>> {
         throw new IllegalArgumentException(message);
     }
 
+    /**
+     * Let the user edit an event, then tell the controller, moving the event to another
+     * calendar if they chose one. Blocks until the dialog is closed.
+     *
+     * @param controller the controller of the calendars
+     * @param calName    the name of the calendar the event is in
+     * @param event      the event to edit
+     */
+    static void editAndSave(CalendarController controller, String calName, CalendarEvent event) {
+        editEvent(event, calName, controller.getCalendarNames())
+                .showAndWait()
+                .ifPresent(p -> {
+                    try {
+                        // move between calendars if necessary
+                        if (!calName.equals(p.getKey())) {
+                            controller.removeEvent(calName, event);
+                            controller.addEvent(p.getKey(), event);
+                        } else {
+                            controller.markModified(calName, event);
+                        }
+                    } catch (NoSuchCalendarException ex) {
+                        ex.printStackTrace();
+                    }
+                });
+    }
+
     /**
      * create a new instance of this class to create a new CalendarEvent.
      *
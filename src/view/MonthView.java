@@ -2,6 +2,7 @@ package view;
 
 import controller.CalendarController;
 import controller.NoSuchCalendarException;
+import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
@@ -10,11 +11,15 @@ import javafx.scene.control.Label;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
+import javafx.util.Pair;
+import model.CalendarChange;
 import model.CalendarEvent;
 
 import java.time.LocalDate;
 import java.time.format.TextStyle;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.function.Function;
 /**
  * @author andrewfiliberti
  */
@@ -26,6 +31,16 @@ public class MonthView implements CalendarViewMode {
     private Label title;
     private CalendarController controller;
     private Set<String> visibleCals;
+    // gets the events of the months before and after this one ahead of time
+    private final Prefetcher<List<List<Pair<String, CalendarEvent>>>> prefetcher;
+    // the buttons of each pane, which are bound to other events when the month is redrawn
+    private final List<List<Button>> cellButtons = new ArrayList<>();
+    private final EventButtonPool buttonPool = new EventButtonPool(button -> {
+        button.setPrefSize(100, 5);
+        button.setStyle("-fx-font-size:5");
+        button.setOnMouseClicked(butt -> EventDialog.editAndSave(controller,
+                EventButtonPool.calendarOf(button), EventButtonPool.eventOf(button)));
+    });
 
     /**
      * The start method overridden from Application
@@ -39,6 +54,7 @@ public class MonthView implements CalendarViewMode {
         currentView = LocalDate.now();
         this.controller = controller;
         visibleCals = controller.getCalendarNames();
+        prefetcher = new Prefetcher<>(controller, this, 6 * 7, Function.identity());
 
         // Label on Calendar with all the weekdays as well as month/year label
         GridPane dayNames = new GridPane();
@@ -88,6 +104,7 @@ public class MonthView implements CalendarViewMode {
                 VBox eventBox = new VBox();
                 b.setCenter(eventBox);
                 panes.add(b);
+                cellButtons.add(new ArrayList<>());
                 grid.add(b, j, i);
             }
         }
@@ -122,7 +139,6 @@ public class MonthView implements CalendarViewMode {
 										}
 							});
                         }
-                        drawMonth();
                     }
                 }
             }
@@ -142,19 +158,64 @@ public class MonthView implements CalendarViewMode {
 
         outer.setTop(vbox);
         outer.setCenter(grid);
+
+        // redraw the days which change, rather than the whole month
+        controller.addListener(this::calendarChanged);
+    }
+
+    /**
+     * Redraws only the days of the current month on which one of the visible calendars changed.
+     *
+     * @param calName the name of the calendar which changed
+     * @param change  what changed in it
+     */
+    private void calendarChanged(String calName, CalendarChange change) {
+        if (!isShown() || !visibleCals.contains(calName)) return;
+        // the month being loaded is fetched again with the change
+        if (prefetcher.isLoading()) return;
+        LocalDate first = currentView.withDayOfMonth(1);
+        SortedSet<LocalDate> changed = ChangedDays.within(change, first, first.plusMonths(1).minusDays(1));
+        if (changed.isEmpty()) return;
+
+        int numDays = (int) ChronoUnit.DAYS.between(changed.first(), changed.last()) + 1;
+        List<List<Pair<String, CalendarEvent>>> cells;
+        try {
+            cells = controller.getChangedEventsByDay(visibleCals, changed.first(), numDays);
+        } catch (NoSuchCalendarException e) {
+            e.printStackTrace();
+            return;
+        }
+        LocalDate gridStart = getGridStart(currentView);
+        for (LocalDate day : changed) {
+            BorderPane b = panes.get((int) ChronoUnit.DAYS.between(gridStart, day));
+            printEvents(cells.get((int) ChronoUnit.DAYS.between(changed.first(), day)), b);
+        }
     }
 
     /**
-     * This method draws the month view.
+     * This method draws the month view, once the events of the month
+     * have been fetched in the background.
      */
     public void drawMonth() {
-        removeEvents();
+        LocalDate month = currentView;
+        prefetcher.load(visibleCals, getGridStart(month), cells -> showMonth(month, cells));
 
-        String month = currentView.getMonth().getDisplayName(TextStyle.FULL, Locale.US);
-        String year = "" + currentView.getYear();
-        title.setText(month + " " + year);
+        // get the months either side ready, in case the user moves to them
+        prefetcher.prefetch(getGridStart(month.minusMonths(1)), getGridStart(month.plusMonths(1)));
+    }
+
+    /**
+     * This method shows a month in the grid
+     *
+     * @param month any day of the month
+     * @param cells the events of each day in the grid, ordered by start time
+     */
+    private void showMonth(LocalDate month, List<List<Pair<String, CalendarEvent>>> cells) {
+        String monthName = month.getMonth().getDisplayName(TextStyle.FULL, Locale.US);
+        String year = "" + month.getYear();
+        title.setText(monthName + " " + year);
         
-        LocalDate beg = currentView.withDayOfMonth(1);
+        LocalDate beg = month.withDayOfMonth(1);
 
         for (int i = 0; i < 6; i++) {
             for (int j = 0; j < 7; j++) {
@@ -167,12 +228,14 @@ public class MonthView implements CalendarViewMode {
                 if(index == 0 && beg.getDayOfWeek().getValue() == 7) {
                 	;
                 }
-                else if (beg.getMonthValue() > currentView.getMonthValue()) {
+                else if (beg.getMonthValue() > month.getMonthValue()) {
                 	b.setStyle("-fx-background-color:grey");
+                	printEvents(Collections.emptyList(), b);
                 	continue;
                 }
                 else if (index < beg.getDayOfWeek().getValue()) {
                 	b.setStyle("-fx-background-color:grey");
+                	printEvents(Collections.emptyList(), b);
                 	continue;
                 }
                 
@@ -181,22 +244,24 @@ public class MonthView implements CalendarViewMode {
                 if (LocalDate.now().equals(beg))
                     b.setStyle("-fx-background-color:aqua");
 
-                b.getChildren().removeIf(Button.class::isInstance);
-                CalendarEvent[] events;
-                for(String s : visibleCals) {
-                    try {
-                        events = controller.getEventsInDay(s, beg);
-                        printEvents(events, beg, b, s);
-                    } catch (NoSuchCalendarException e) {
-                        e.printStackTrace();
-                    }
-                }
+                printEvents(cells.get(index), b);
 				beg = beg.plusDays(1);
 
             }
         }
     }
 
+    /**
+     * This method returns the first day in the grid of a month
+     *
+     * @param day any day of the month
+     * @return the sunday on or before the first of the month
+     */
+    private static LocalDate getGridStart(LocalDate day) {
+        LocalDate first = day.withDayOfMonth(1);
+        return first.minusDays(first.getDayOfWeek().getValue() % 7);
+    }
+
     /**
      * This method removes events from each pane
      * This method removes all of the events from
@@ -207,8 +272,7 @@ public class MonthView implements CalendarViewMode {
         for (int i = 0; i < 6; i++) {
             for (int j = 0; j < 7; j++) {
             	int index = i * 7 + j;
-                BorderPane t = panes.get(index);
-                ((VBox) t.getChildren().get(1)).getChildren().clear();
+                printEvents(Collections.emptyList(), panes.get(index));
             }
         }
     }
@@ -235,32 +299,15 @@ public class MonthView implements CalendarViewMode {
         }
     }
     
-    public void printEvents(CalendarEvent[] events, LocalDate beg, BorderPane b, String calName) {
-    	Arrays.sort(events, Comparator.comparing(CalendarEvent::getStartTime));
-		for (CalendarEvent event : events) {
-		    Button button = new Button(event.getTitle());
-		    button.setPrefSize(100, 5);
-		    button.setStyle("-fx-font-size:5");
-            Color c = event.getColor();
-            button.setBackground(new Background(new BackgroundFill(c, null, null)));
-            button.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
-		    ((VBox) b.getChildren().get(1)).getChildren().add(button);
-		    button.setOnMouseClicked(butt -> {
-                EventDialog.editEvent(event, calName, controller.getCalendarNames()).showAndWait()
-                        .ifPresent(p -> {
-                            try {
-                                // move between calendars if necessary
-                                if (!calName.equals(p.getKey())) {
-                                    controller.removeEvent(calName, event);
-                                    controller.addEvent(p.getKey(), event);
-                                }
-                            } catch (NoSuchCalendarException ex) {
-                                ex.printStackTrace();
-                            }
-                            drawMonth();
-                        });
-            });
-		}
+    /**
+     * This method adds a button for each of the given events to a pane
+     *
+     * @param events the (calendar name, event) pairs to add, ordered by start time
+     * @param b      the pane of the day on which the events occur
+     */
+    public void printEvents(List<Pair<String, CalendarEvent>> events, BorderPane b) {
+        ObservableList<Node> eventBox = ((VBox) b.getChildren().get(1)).getChildren();
+        buttonPool.show(cellButtons.get(panes.indexOf(b)), events, eventBox::add);
     }
 
     @Override
@@ -0,0 +1,238 @@
+package view;
+
+import controller.CalendarController;
+import controller.NoSuchCalendarException;
+import javafx.application.Platform;
+import javafx.util.Pair;
+import model.CalendarChange;
+import model.CalendarEvent;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Gets the events of the range a view shows, and of the ranges it is likely to move to next,
+ * such as the months before and after the one shown, and lays them out, on a background
+ * thread, so that the FX thread never waits for the calendars. A range which a change
+ * touches is fetched again.
+ * <p>
+ * A prefetcher belongs to one view, and must only be used on the FX thread.
+ *
+ * @param <T> the type of the layout of a range
+ * @author Kitty Elliott
+ */
+final class Prefetcher<T> {
+    // shared by every view. it only reads the calendars, so one thread is plenty
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "calendar-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final CalendarController controller;
+    private final CalendarViewMode view;
+    private final int numDays;
+    private final Function<List<List<Pair<String, CalendarEvent>>>, T> layout;
+    // the ranges fetched or being fetched, by their first day
+    private final Map<LocalDate, Range<T>> ahead = new HashMap<>();
+    private Set<String> calNames = Collections.emptySet();
+    // the range being loaded for the view, if it has not been applied yet
+    private Load<T> loading;
+
+    /**
+     * @param controller the controller of the calendars
+     * @param view       the view the ranges are for
+     * @param numDays    the number of days in each range
+     * @param layout     works out what to show from the events of each day of a range, as
+     *                   returned by {@link CalendarController#getEventsByDay}. It is called on
+     *                   another thread, so it must not touch the view.
+     */
+    Prefetcher(CalendarController controller, CalendarViewMode view, int numDays,
+               Function<List<List<Pair<String, CalendarEvent>>>, T> layout) {
+        this.controller = controller;
+        this.view = view;
+        this.numDays = numDays;
+        this.layout = layout;
+        controller.addListener(this::calendarChanged);
+    }
+
+    /**
+     * Load a range for a view: get its events and lay them out on a background thread, then
+     * apply the layout on the FX thread. Loading another range first cancels this one, so a
+     * view only ever applies the last range it asked for. A range fetched ahead is applied
+     * straight away.
+     *
+     * @param calNames the names of the calendars to get events from
+     * @param first    the first day of the range
+     * @param apply    shows the layout, on the FX thread
+     */
+    void load(Set<String> calNames, LocalDate first, Consumer<T> apply) {
+        if (!calNames.equals(this.calNames)) {
+            // the ranges fetched are of other calendars
+            clear();
+            this.calNames = new HashSet<>(calNames);
+        }
+        start(new Load<>(first, apply));
+    }
+
+    /**
+     * @return whether a range is being loaded which has not been applied yet
+     */
+    boolean isLoading() {
+        return loading != null;
+    }
+
+    private void start(Load<T> load) {
+        if (loading != null) loading.range.cancel();
+        loading = null;
+        Range<T> range = ahead.remove(load.first);
+        if (range == null || range.laidOut.isCompletedExceptionally()) {
+            range = fetch(load.first);
+            if (range == null) return;
+        }
+        load.range = range;
+        if (range.laidOut.isDone()) {
+            // fetched ahead, so there is nothing to wait for
+            range.laidOut.whenComplete(load::applied);
+            return;
+        }
+        loading = load;
+        range.laidOut.whenComplete((result, error) -> Platform.runLater(() -> {
+            // a later load, or a change to the range, superseded this one
+            if (loading != load) return;
+            loading = null;
+            load.applied(result, error);
+        }));
+    }
+
+    /**
+     * Start fetching the events of some ranges, of the calendars last passed to {@link #load},
+     * and forget any other ranges fetched before
+     *
+     * @param firsts the first day of each range
+     */
+    void prefetch(LocalDate... firsts) {
+        List<LocalDate> keep = Arrays.asList(firsts);
+        ahead.entrySet().removeIf(e -> {
+            if (keep.contains(e.getKey())) return false;
+            e.getValue().cancel();
+            return true;
+        });
+        for (LocalDate first : firsts) {
+            if (!ahead.containsKey(first)) fetchAhead(first);
+        }
+    }
+
+    private void fetchAhead(LocalDate first) {
+        Range<T> range = fetch(first);
+        if (range != null) ahead.put(first, range);
+    }
+
+    /**
+     * start getting the events of a range and laying them out
+     *
+     * @return the range, or null if one of the calendars no longer exists
+     */
+    private Range<T> fetch(LocalDate first) {
+        CompletableFuture<List<List<Pair<String, CalendarEvent>>>> events;
+        try {
+            events = controller.getEventsByDayAsync(calNames, first, numDays, EXECUTOR);
+        } catch (NoSuchCalendarException e) {
+            // a calendar was deleted; the next load() fetches with the new calendars
+            e.printStackTrace();
+            return null;
+        }
+        // not thenApply, which would lay out on this thread if the events were already read
+        return new Range<>(events, events.thenApplyAsync(layout, EXECUTOR));
+    }
+
+    /**
+     * forget every range fetched
+     */
+    private void clear() {
+        if (loading != null) loading.range.cancel();
+        loading = null;
+        for (Range<T> range : ahead.values()) {
+            range.cancel();
+        }
+        ahead.clear();
+    }
+
+    /**
+     * fetch again the ranges a change touches, or only forget them if the view is not
+     * {@link CalendarViewMode#isShown() shown}
+     */
+    private void calendarChanged(String calName, CalendarChange change) {
+        if (!calNames.contains(calName)) return;
+        List<LocalDate> stale = new ArrayList<>();
+        for (Map.Entry<LocalDate, Range<T>> e : ahead.entrySet()) {
+            LocalDate first = e.getKey();
+            if (!ChangedDays.within(change, first, first.plusDays(numDays - 1)).isEmpty()) {
+                e.getValue().cancel();
+                stale.add(first);
+            }
+        }
+        if (!view.isShown()) {
+            ahead.keySet().removeAll(stale);
+        } else {
+            for (LocalDate first : stale) {
+                fetchAhead(first);
+            }
+        }
+        // the range being loaded may have been fetched before the change
+        if (loading != null && !ChangedDays.within(change, loading.first,
+                loading.first.plusDays(numDays - 1)).isEmpty()) {
+            start(loading.restart());
+        }
+    }
+
+    /**
+     * the events of a range being fetched, and their layout
+     */
+    private static final class Range<T> {
+        final CompletableFuture<List<List<Pair<String, CalendarEvent>>>> events;
+        final CompletableFuture<T> laidOut;
+
+        Range(CompletableFuture<List<List<Pair<String, CalendarEvent>>>> events, CompletableFuture<T> laidOut) {
+            this.events = events;
+            this.laidOut = laidOut;
+        }
+
+        void cancel() {
+            // a fetch which has not started yet is skipped
+            events.cancel(false);
+            laidOut.cancel(false);
+        }
+    }
+
+    /**
+     * a range being loaded for a view, and what to do with it
+     */
+    private static final class Load<T> {
+        final LocalDate first;
+        final Consumer<T> apply;
+        Range<T> range;
+
+        Load(LocalDate first, Consumer<T> apply) {
+            this.first = first;
+            this.apply = apply;
+        }
+
+        Load<T> restart() {
+            return new Load<>(first, apply);
+        }
+
+        void applied(T result, Throwable error) {
+            if (error != null) {
+                error.printStackTrace();
+            } else {
+                apply.accept(result);
+            }
+        }
+    }
+}
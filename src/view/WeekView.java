@@ -2,6 +2,7 @@ package view;
 
 import controller.CalendarController;
 import controller.NoSuchCalendarException;
+import javafx.geometry.HPos;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
@@ -9,24 +10,25 @@ import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.TextAlignment;
+import javafx.util.Pair;
+import model.CalendarChange;
 import model.CalendarEvent;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
 
 /**
  * @author Jessica Coan
  */
 public class WeekView implements CalendarViewMode {
     private static final int ROW_HEIGHT = 50;
+    // the hour labels and the seven days, and the day headers and the 24 hours
+    private static final int NUM_COLS = 8, NUM_ROWS = 25;
 
     private LocalDate currentView;
     private final CalendarController controller;
@@ -34,10 +36,31 @@ public class WeekView implements CalendarViewMode {
     private final GridPane days;
     private final Label weekLabel;
     private final List<Region> dayRegions = new ArrayList<>();
+    // the header or slot cell at each col and row, so cells are found without searching the grid
+    private final Node[][] cells = new Node[NUM_COLS][NUM_ROWS];
+    // the buttons showing the events of each day, which are reused when a day is redrawn
+    private final List<List<Button>> columnButtons = new ArrayList<>();
+    // the lane of each event of each day, and the number of lanes of each day
+    private final int[][] lanes = new int[7][];
+    private final int[] laneCounts = new int[7];
+    private final EventButtonPool buttonPool;
     private Set<String> currentCalendars;
+    // gets the events of the weeks before and after this one ahead of time
+    private final Prefetcher<Columns> prefetcher;
 
     public WeekView(CalendarController controller) {
         this.controller = controller;
+        buttonPool = new EventButtonPool(b -> {
+            //The parts of an event's button which are the same for every event
+            b.setPadding(new Insets(5));
+            b.setTextAlignment(TextAlignment.CENTER);
+            b.setPrefHeight(Double.MAX_VALUE);
+            b.setPrefWidth(Double.MAX_VALUE);
+            GridPane.setHalignment(b, HPos.LEFT);
+            b.setOnMouseClicked(event -> EventDialog.editAndSave(controller,
+                    EventButtonPool.calendarOf(b), EventButtonPool.eventOf(b)));
+        });
+        prefetcher = new Prefetcher<>(controller, this, 7, WeekView::packLanes);
         root = new BorderPane();
         days = new GridPane();
         days.setPadding(new Insets(0));
@@ -58,11 +81,15 @@ public class WeekView implements CalendarViewMode {
             l.setFont(new Font(15));
             HBox hb = new HBox(l);
             hb.setAlignment(Pos.CENTER);
-            days.add(hb, i + 1, 0);
+            addCell(hb, i + 1, 0, 1);
             Region r = new Region();
             r.setStyle("-fx-background-color: white; -fx-border-color: black");
-            days.add(r, i + 1, 1, 1, 24);
+            addCell(r, i + 1, 1, 24);
             dayRegions.add(r);
+            columnButtons.add(new ArrayList<>());
+            // keep the lanes of the day filling it as it is resized
+            final int col = i;
+            r.widthProperty().addListener(o -> placeLanes(col));
         }
 
         //Add hour labels
@@ -74,7 +101,7 @@ public class WeekView implements CalendarViewMode {
 
             Label l = new Label(String.format("%02d:00", i));
             l.setFont(new Font(15));
-            days.add(l, 0, i + 1);
+            addCell(l, 0, i + 1, 1);
         }
 
         //Top part of the pane - buttons that change the week, and the week display
@@ -112,39 +139,52 @@ public class WeekView implements CalendarViewMode {
         scroll.setContent(days);
         root.setCenter(scroll);
 
+        // redraw the columns which change, rather than the whole week
+        controller.addListener(this::calendarChanged);
+
         days.setOnMouseClicked(event -> {
-            // get the row and col that is clicked on
-            for (Node node : days.getChildren()) {
-                if (node instanceof Region) {
-                    if (GridPane.getColumnIndex(node) < 1) return;
-                    if (node.getBoundsInParent().contains(event.getX(), event.getY())) {
-                        int clickedX = GridPane.getColumnIndex(node);
-                        int clickedY = (int) (event.getY() / ROW_HEIGHT);
-                        LocalDateTime time = LocalDateTime.of(currentView.plusDays(clickedX - 1), LocalTime.now().withHour(clickedY));
-                        EventDialog.newEventAt(
-                                time,
-                                controller.getCalendarNames()
-                        ).showAndWait().ifPresent(pair -> {
-                            try {
-                                controller.addEvent(pair.getKey(), pair.getValue());
-                            } catch (NoSuchCalendarException e) {
-                                e.printStackTrace();
-                            }
-                        });
-                        drawWeek();
-                        break;
-                    }
+            // get the day that is clicked on, from its header or its region
+            for (int col = 1; col < NUM_COLS; col++) {
+                if (cells[col][0].getBoundsInParent().contains(event.getX(), event.getY())
+                        || cells[col][1].getBoundsInParent().contains(event.getX(), event.getY())) {
+                    int clickedY = (int) (event.getY() / ROW_HEIGHT);
+                    LocalDateTime time = LocalDateTime.of(currentView.plusDays(col - 1), LocalTime.now().withHour(clickedY));
+                    EventDialog.newEventAt(
+                            time,
+                            controller.getCalendarNames()
+                    ).showAndWait().ifPresent(pair -> {
+                        try {
+                            controller.addEvent(pair.getKey(), pair.getValue());
+                        } catch (NoSuchCalendarException e) {
+                            e.printStackTrace();
+                        }
+                    });
+                    break;
                 }
             }
         });
     }
 
     /**
-     * Draws the events in the week
+     * Draws the week, once its events have been fetched and packed into lanes in the background
      */
     private void drawWeek() {
-        String start = currentView.getMonthValue() + "/" + currentView.getDayOfMonth();
-        LocalDate endDate = currentView.plusDays(6);
+        LocalDate week = currentView;
+        prefetcher.load(currentCalendars, week, columns -> showWeek(week, columns));
+
+        // get the weeks either side ready, in case the user moves to them
+        prefetcher.prefetch(week.minusDays(7), week.plusDays(7));
+    }
+
+    /**
+     * Shows a week in the grid
+     *
+     * @param week    the first day of the week
+     * @param columns the events of each day of the week, and their lanes
+     */
+    private void showWeek(LocalDate week, Columns columns) {
+        String start = week.getMonthValue() + "/" + week.getDayOfMonth();
+        LocalDate endDate = week.plusDays(6);
         String end = endDate.getMonthValue() + "/" + endDate.getDayOfMonth();
         weekLabel.setText(String.format("Week of %s - %s", start, end));
 
@@ -152,69 +192,127 @@ public class WeekView implements CalendarViewMode {
             dayRegion.setStyle("-fx-background-color:white");
         }
 
-        days.getChildren().removeIf(Button.class::isInstance);
-
         for (int i = 0; i < 7; i++) {
             Label l = getLabel(i + 1, 0);
             if (l == null) continue;
             String day = l.getText().split(" ")[0];
-            LocalDate date = currentView.plusDays(i);
+            LocalDate date = week.plusDays(i);
             l.setText(String.format("%s %d/%d", day, date.getMonthValue(), date.getDayOfMonth()));
 
             if (date.isEqual(LocalDate.now())) dayRegions.get(i).setStyle("-fx-background-color:aqua");
         }
 
-        //Go through the visible calendars
-        for (String s : currentCalendars) {
-            CalendarEvent[] events;
-            try {
-                events = controller.getEventsInRange(s, currentView.atStartOfDay(),
-                        endDate.atTime(23, 59, 59));
-            } catch (NoSuchCalendarException e) {
-                e.printStackTrace();
-                return;
+        drawColumns(week, columns);
+    }
+
+    /**
+     * Redraws only the columns of the days on which one of the visible calendars changed.
+     *
+     * @param calName the name of the calendar which changed
+     * @param change  what changed in it
+     */
+    private void calendarChanged(String calName, CalendarChange change) {
+        if (!isShown() || !currentCalendars.contains(calName)) return;
+        // the week being loaded is fetched again with the change
+        if (prefetcher.isLoading()) return;
+        SortedSet<LocalDate> changed = ChangedDays.within(change, currentView, currentView.plusDays(6));
+        if (changed.isEmpty()) return;
+        int numDays = (int) ChronoUnit.DAYS.between(changed.first(), changed.last()) + 1;
+        //Get the events of all the visible calendars, by day, in order of start
+        try {
+            drawColumns(changed.first(), packLanes(controller.getChangedEventsByDay(currentCalendars, changed.first(), numDays)));
+        } catch (NoSuchCalendarException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replaces the events shown in the columns of a run of days in the week
+     *
+     * @param first   the first day to redraw
+     * @param columns the events of each day to redraw, in order of start, and their lanes
+     */
+    private void drawColumns(LocalDate first, Columns columns) {
+        int firstCol = (int) ChronoUnit.DAYS.between(currentView, first);
+        for (int i = 0; i < columns.events.size(); i++) {
+            List<Pair<String, CalendarEvent>> dayEvents = columns.events.get(i);
+            List<Button> buttons = columnButtons.get(firstCol + i);
+            buttonPool.show(buttons, dayEvents, days.getChildren()::add);
+            for (int j = 0; j < dayEvents.size(); j++) {
+                place(buttons.get(j), dayEvents.get(j).getValue());
             }
-            //Go through the events in each calendar
-            for (CalendarEvent e : events) {
-                //Do some math to figure out where to put the button
-                int col = e.getDate().getDayOfWeek().getValue() + 1;
-                col = (col == 8) ? 1 : col; //sunday is the 7th day of the week, not the 1st
-                int row = e.getStartTime().getHour() + 1;
-                float diff = (e.getEndTime().getHour() + (e.getEndTime().getMinute() / 60f)) -
-                        (e.getStartTime().getHour() + (e.getStartTime().getMinute() / 60f));
-                int rowSpan = (int) diff + 1;
-                diff += 0.05f; //Fudge the number into something that looks good
-
-                //Create the button that will act as our event view
-                Button b = new Button(e.getTitle());
-                b.setTranslateY(ROW_HEIGHT / 2f * e.getStartTime().getMinute() / 60f - 10); //10 is a magic number to fudge the button into a good looking place
-                b.setPadding(new Insets(5));
-                b.setTextAlignment(TextAlignment.CENTER);
-                b.setMaxHeight(diff * ROW_HEIGHT);
-                b.setPrefHeight(Double.MAX_VALUE);
-                b.setMaxWidth(Double.MAX_VALUE);
-                Color c = e.getColor();
-                b.setBackground(new Background(new BackgroundFill(c, null, null)));
-                b.setTextFill(c.getBrightness() < 0.5 ? Color.WHITE : Color.BLACK);
-
-                //Set up the button event handler
-                b.setOnMouseClicked(event -> EventDialog.editEvent(e, s, controller.getCalendarNames())
-                        .showAndWait().ifPresent(p -> {
-                            try {
-                                // move between calendars if necessary
-                                if (!s.equals(p.getKey())) {
-                                    controller.removeEvent(s, e);
-                                    controller.addEvent(p.getKey(), e);
-                                }
-                            } catch (NoSuchCalendarException ex) {
-                                ex.printStackTrace();
-                            }
-                            drawWeek();
-                        }));
-                days.add(b, col, row, 1, rowSpan);
+            lanes[firstCol + i] = columns.lanes[i];
+            laneCounts[firstCol + i] = columns.laneCounts[i];
+            placeLanes(firstCol + i);
+        }
+    }
+
+    /**
+     * Packs the events of each of a run of days into lanes, so that events which overlap are
+     * shown side by side. This does not touch the view, so it can be done on any thread.
+     *
+     * @param events the events of each day, in order of start
+     * @return the events and the lane of each
+     */
+    private static Columns packLanes(List<List<Pair<String, CalendarEvent>>> events) {
+        ColumnPacker packer = new ColumnPacker();
+        Columns columns = new Columns(events);
+        int[] starts = new int[16], ends = new int[16];
+        for (int i = 0; i < events.size(); i++) {
+            List<Pair<String, CalendarEvent>> dayEvents = events.get(i);
+            int n = dayEvents.size();
+            if (starts.length < n) {
+                starts = new int[Math.max(n, 2 * starts.length)];
+                ends = new int[starts.length];
+            }
+            for (int j = 0; j < n; j++) {
+                CalendarEvent e = dayEvents.get(j).getValue();
+                starts[j] = e.getStartTime().getHour() * 60 + e.getStartTime().getMinute();
+                LocalTime end = e.getEndTime();
+                ends[j] = Math.max(end == null ? 0 : end.getHour() * 60 + end.getMinute(), starts[j] + 1);
             }
+            columns.lanes[i] = new int[n];
+            columns.laneCounts[i] = packer.pack(starts, ends, n, columns.lanes[i]);
         }
+        return columns;
+    }
 
+    /**
+     * Sizes and moves the buttons of a day to their lanes, to fit the width of the day
+     *
+     * @param col the column of the day, from 0
+     */
+    private void placeLanes(int col) {
+        // nothing is shown until the first week is loaded
+        if (lanes[col] == null) return;
+        List<Button> buttons = columnButtons.get(col);
+        double width = dayRegions.get(col).getWidth() / Math.max(laneCounts[col], 1);
+        // the buttons in use come before the hidden ones
+        for (int j = 0; j < buttons.size() && buttons.get(j).isVisible(); j++) {
+            Button b = buttons.get(j);
+            b.setMaxWidth(width);
+            b.setTranslateX(lanes[col][j] * width);
+        }
+    }
+
+    /**
+     * Places the button that shows an event in the grid, at its day and time
+     *
+     * @param b the button
+     * @param e the event
+     */
+    private void place(Button b, CalendarEvent e) {
+        //Do some math to figure out where to put the button
+        int col = (int) ChronoUnit.DAYS.between(currentView, e.getDate()) + 1;
+        int row = e.getStartTime().getHour() + 1;
+        float diff = (e.getEndTime().getHour() + (e.getEndTime().getMinute() / 60f)) -
+                (e.getStartTime().getHour() + (e.getStartTime().getMinute() / 60f));
+        int rowSpan = (int) diff + 1;
+        diff += 0.05f; //Fudge the number into something that looks good
+
+        b.setTranslateY(ROW_HEIGHT / 2f * e.getStartTime().getMinute() / 60f - 10); //10 is a magic number to fudge the button into a good looking place
+        b.setMaxHeight(diff * ROW_HEIGHT);
+        GridPane.setConstraints(b, col, row, 1, rowSpan);
     }
 
     /**
@@ -231,24 +329,46 @@ public class WeekView implements CalendarViewMode {
     }
 
     /**
-     * From a row and col in the grid pane, get the object at that row and col
+     * From a row and col in the grid pane, get the header or slot cell at that row and col.
+     * Event buttons are not cells; they are kept in {@link #columnButtons}.
      *
      * @param col col to retrieve from
      * @param row row to retrieve from
-     * @return the object at row and col
+     * @return the cell covering row and col, or null if there is none
      */
     private Node getNodeAt(int col, int row) {
-        for (Node n : days.getChildren()) {
-            //Children in the GridPane can somehow not be in the GridPane?
-            //getColumnIndex and getRowIndex return Integers, meaning they can be null.
-            Integer getCol = GridPane.getColumnIndex(n);
-            Integer getRow = GridPane.getRowIndex(n);
-
-            if (getCol == null || getRow == null) continue;
-            //I hate this bit so much, so let me know if you can simplify it
-            if (row == getRow && col == getCol) return n;
+        if (col < 0 || col >= NUM_COLS || row < 0 || row >= NUM_ROWS) return null;
+        return cells[col][row];
+    }
+
+    /**
+     * Adds a header or slot cell to the grid pane, and records it at every row and col it covers
+     *
+     * @param n       the cell
+     * @param col     the first col it covers
+     * @param row     the first row it covers
+     * @param rowSpan the number of rows it covers
+     */
+    private void addCell(Node n, int col, int row, int rowSpan) {
+        days.add(n, col, row, 1, rowSpan);
+        for (int r = row; r < row + rowSpan; r++) {
+            cells[col][r] = n;
+        }
+    }
+
+    /**
+     * The events of a run of days, and the lane of each event of each day
+     */
+    private static final class Columns {
+        final List<List<Pair<String, CalendarEvent>>> events;
+        final int[][] lanes;
+        final int[] laneCounts;
+
+        Columns(List<List<Pair<String, CalendarEvent>>> events) {
+            this.events = events;
+            lanes = new int[events.size()][];
+            laneCounts = new int[events.size()];
         }
-        return null;
     }
 
     /**